@@ -4,6 +4,7 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.UnknownHostException;
+import java.util.List;
 
 import client.KVCommInterface;
 import shared.messages.KVMessage;
@@ -108,6 +109,32 @@ public class KVClient implements IKVClient {
 				printError("Invalid number of parameters!");
 			}
 
+		} else if(tokens[0].equals("putttl")) {
+            if(tokens.length >= 4) {
+                if(kvStore != null && kvStore.isRunning()) {
+                    String key = tokens[1];
+                    String value = parseValue(cmdLine);
+                    value = value.substring(value.indexOf(' ') + 1); // Behind the seconds
+                    if (key.length() > 0 && key.length() <= MAX_KEY_BYTES && value.length() <= MAX_VAL_BYTES) {
+                        try {
+                            KVMessage res = kvStore.put(key, value, Long.parseLong(tokens[2]));
+                            System.out.println("Server response: " + res.getStatus());
+                        } catch (NumberFormatException nfe) {
+                            printError("Seconds must be a number!");
+                        } catch (Exception e) {
+                            printError("Unable to perform put request!");
+                            logger.error("Unable to perform put request!", e);
+                        }
+                    } else {
+                        printError("Invalid key or value length!");
+                    }
+                } else {
+                    printError("Not connected!");
+                }
+			} else {
+				printError("Invalid number of parameters!");
+			}
+
 		} else if(tokens[0].equals("get")) {
 			System.out.println("YO WE PROCESSING GET - part1");
             if(tokens.length == 2) {
@@ -131,6 +158,30 @@ public class KVClient implements IKVClient {
 				printError("Invalid number of parameters!");
 			}
 
+		} else if(tokens[0].equals("scan")) {
+            if(tokens.length == 4) {
+				if(kvStore != null && kvStore.isRunning()){
+                    try {
+                        int limit = Integer.parseInt(tokens[3]);
+                        List<KVMessage> res = kvStore.scan(tokens[1], tokens[2], limit);
+                        for (KVMessage entry : res.subList(0, res.size() - 1)) {
+                            System.out.println(entry.getKey() + " " + entry.getValue());
+                        }
+                        System.out.println("Server response: " + res.get(res.size() - 1).getStatus() + " "
+                                + (res.size() - 1) + " pairs");
+                    } catch (NumberFormatException nfe) {
+                        printError("Limit must be a number!");
+                    } catch (Exception e) {
+                        printError("Unable to perform scan request!");
+                        logger.error("Unable to perform scan request!", e);
+                    }
+				} else {
+					printError("Not connected!");
+				}
+			} else {
+				printError("Invalid number of parameters!");
+			}
+
 		} else if(tokens[0].equals("logLevel")) {
 			if(tokens.length == 2) {
 				String level = setLevel(tokens[1]);
@@ -216,8 +267,12 @@ public class KVClient implements IKVClient {
 
         sb.append(PROMPT).append("put <key> <value>");
         sb.append("\t\t inserts a key-value pair to the server\n");
+        sb.append(PROMPT).append("putttl <key> <seconds> <value>");
+        sb.append(" inserts a pair that expires after <seconds>\n");
         sb.append(PROMPT).append("get <key>");
         sb.append("\t\t\t retrieves the value for the key from the server\n");
+        sb.append(PROMPT).append("scan <start> <end> <limit>");
+        sb.append("\t retrieves up to <limit> pairs with start <= key < end\n");
         
         sb.append(PROMPT).append("logLevel");
         sb.append("\t\t\t changes the logLevel\n");
@@ -8,6 +8,8 @@ import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.io.IOException;
+import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 
@@ -19,6 +21,26 @@ public class ClientHandler implements Runnable {
     private KVServer server; 
 
     private static final Logger LOGGER = Logger.getLogger(ClientHandler.class.getName());
+    private static final int SCAN_PAGE_SIZE = 100; // Entries read from storage and flushed to the client at a time
+    private static final int MAX_QUEUED_PUSHES = 1024; // Invalidations waiting for a slow client
+
+    private volatile PrintWriter output; // Also written by the pusher thread
+    private int trackedKeysLimit; // Keys tracked for the client's near cache, 0 if it has none
+    // Lines for the client that no request asked for, written by the pusher thread, so writers never wait for the socket
+    private final PushQueue pushes = new PushQueue(MAX_QUEUED_PUSHES,
+            formatResponse(new SimpleKVMessage(StatusType.INVALIDATE_ALL, null, null)));
+    private Thread pusher;
+    private final InvalidationTracker.Listener invalidationListener = new InvalidationTracker.Listener() {
+        @Override
+        public void invalidate(String key) {
+            push(new SimpleKVMessage(StatusType.INVALIDATE, key, null));
+        }
+
+        @Override
+        public void invalidateAll() {
+            push(new SimpleKVMessage(StatusType.INVALIDATE_ALL, null, null));
+        }
+    };
 
     public ClientHandler(Socket socket, KVServer server) {
         this.clientSocket = socket;
@@ -29,6 +51,7 @@ public class ClientHandler implements Runnable {
     public void run() {
         try (BufferedReader input = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
             PrintWriter output = new PrintWriter(clientSocket.getOutputStream(), true)) {
+            this.output = output;
 
             String requestString;
             while ((requestString = input.readLine()) != null) {
@@ -67,8 +90,14 @@ public class ClientHandler implements Runnable {
                                 responseMessage = new SimpleKVMessage(StatusType.PUT_ERROR, null, null);
                             }
                             break;
+                        case PUT_TTL:
+                            responseMessage = putWithTtl(requestMessage);
+                            break;
                         case GET: 
                             try {
+                                if (trackedKeysLimit > 0) { // Before reading, so a write in between is pushed too
+                                    server.track(requestMessage.getKey(), invalidationListener, trackedKeysLimit);
+                                }
                                 String response = server.getKV(requestMessage.getKey());
                                 StatusType responseType = (response != null) ? StatusType.GET_SUCCESS : StatusType.GET_ERROR;
                                 responseMessage = new SimpleKVMessage(responseType, requestMessage.getKey(), response);
@@ -79,6 +108,14 @@ public class ClientHandler implements Runnable {
                             }
                             break; 
                         
+                        case SCAN:
+                            scan(requestMessage, output);
+                            break;
+
+                        case TRACK:
+                            responseMessage = track(requestMessage);
+                            break;
+
                         //case DELETE: 
                             //
 
@@ -98,6 +135,13 @@ public class ClientHandler implements Runnable {
         } catch (IOException e) {
             LOGGER.log(Level.SEVERE, "Error in ClientHandler", e);
         } finally {
+            output = null;
+            if (trackedKeysLimit > 0) {
+                server.stopTracking(invalidationListener);
+            }
+            if (pusher != null) {
+                pusher.interrupt();
+            }
             try {
                 if (!clientSocket.isClosed()) {
                     clientSocket.close();
@@ -108,6 +152,139 @@ public class ClientHandler implements Runnable {
         }
     }
 
+    /**
+     * Handles PUT_TTL <key> <seconds> <value>: stores the value like a PUT,
+     * and the key expires after the given number of seconds.
+     */
+    private SimpleKVMessage putWithTtl(SimpleKVMessage request) {
+        String[] parts = request.getValue() != null ? request.getValue().split(" ", 2) : new String[0];
+        long seconds;
+        try {
+            seconds = parts.length == 2 ? Long.parseLong(parts[0]) : -1;
+        } catch (NumberFormatException e) {
+            seconds = -1;
+        }
+        if (request.getKey() == null || seconds <= 0 || seconds > Integer.MAX_VALUE || parts[1].isEmpty()) {
+            LOGGER.info("Invalid PUT_TTL request, expected PUT_TTL <key> <seconds> <value>");
+            return new SimpleKVMessage(StatusType.PUT_ERROR, request.getKey(), null);
+        }
+        try {
+            boolean isUpdate = server.inStorage(request.getKey()) || server.inCache(request.getKey());
+            server.putKV(request.getKey(), parts[1], seconds * 1000);
+            return new SimpleKVMessage(isUpdate ? StatusType.PUT_UPDATE : StatusType.PUT_SUCCESS, request.getKey(), null);
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Error processing put request", e);
+            return new SimpleKVMessage(StatusType.PUT_ERROR, null, null);
+        }
+    }
+
+    /**
+     * Handles TRACK <maxKeys>: from now on the server pushes an INVALIDATE
+     * line whenever a key this client has read is written, deleted or
+     * expires, so the client can keep a near cache of what it read. Once the
+     * client has read maxKeys keys that were not invalidated, it gets an
+     * INVALIDATE_ALL and tracking starts over.
+     */
+    private SimpleKVMessage track(SimpleKVMessage request) {
+        int maxKeys;
+        try {
+            maxKeys = request.getKey() != null ? Integer.parseInt(request.getKey()) : -1;
+        } catch (NumberFormatException e) {
+            maxKeys = -1;
+        }
+        if (maxKeys <= 0) {
+            LOGGER.info("Invalid TRACK request, expected TRACK <maxKeys>");
+            return new SimpleKVMessage(StatusType.TRACK_ERROR, request.getKey(), null);
+        }
+        trackedKeysLimit = maxKeys;
+        if (pusher == null) {
+            startPusher();
+        }
+        LOGGER.info("Tracking up to " + maxKeys + " keys for " + clientSocket.getInetAddress());
+        return new SimpleKVMessage(StatusType.TRACK_SUCCESS, request.getKey(), null);
+    }
+
+    /*
+     * Queues a line the client did not ask for, without blocking: it runs on
+     * writer threads that hold a key stripe. The pusher thread may write it
+     * after the writer's acknowledgement, so a near cache drops an old value
+     * eventually: once the pusher catches up, at the latest when the value's
+     * time to live in the near cache ends. Once the queue is full the client
+     * is too slow to follow single keys, so the queue is replaced by one
+     * INVALIDATE_ALL
+     */
+    private void push(SimpleKVMessage message) {
+        if (!pushes.offer(formatResponse(message))) {
+            LOGGER.warning("Client " + clientSocket.getInetAddress() + " falls behind on invalidations");
+        }
+    }
+
+    // Writes the queued pushes until the connection closes; a line is written whole, so it never splits a response
+    private void startPusher() {
+        pusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        String line = pushes.take();
+                        PrintWriter out = output;
+                        if (out == null) {
+                            return;
+                        }
+                        out.println(line);
+                    }
+                } catch (InterruptedException e) {
+                    // Connection closed
+                }
+            }
+        }, "pusher-" + clientSocket.getRemoteSocketAddress());
+        pusher.setDaemon(true);
+        pusher.start();
+    }
+
+    /**
+     * Streams the entries of a SCAN <startKey> <endKey> <limit> request as
+     * SCAN_ENTRY lines, flushing after each page, then a SCAN_SUCCESS with
+     * the number of entries sent. Pages are read from storage one at a time,
+     * so a large scan never has to fit in memory.
+     */
+    private void scan(SimpleKVMessage request, PrintWriter output) {
+        String[] bounds = request.getValue() != null ? request.getValue().trim().split(" ") : new String[0];
+        int limit;
+        try {
+            limit = bounds.length == 2 ? Integer.parseInt(bounds[1]) : -1;
+        } catch (NumberFormatException e) {
+            limit = -1;
+        }
+        if (request.getKey() == null || limit <= 0) {
+            LOGGER.info("Invalid SCAN request, expected SCAN <startKey> <endKey> <limit>");
+            output.println(formatResponse(new SimpleKVMessage(StatusType.SCAN_ERROR, request.getKey(), "usage: SCAN <startKey> <endKey> <limit>")));
+            return;
+        }
+        String from = request.getKey();
+        int sent = 0;
+        try {
+            while (sent < limit) {
+                int wanted = Math.min(SCAN_PAGE_SIZE, limit - sent);
+                List<Map.Entry<String, String>> page = server.scanKV(from, bounds[0], wanted);
+                for (Map.Entry<String, String> entry : page) {
+                    output.print(formatResponse(new SimpleKVMessage(StatusType.SCAN_ENTRY, entry.getKey(), entry.getValue())));
+                }
+                output.flush();
+                sent += page.size();
+                if (page.size() < wanted) {
+                    break;
+                }
+                from = page.get(page.size() - 1).getKey() + '\u0000'; // Smallest key behind the last one sent
+            }
+            output.println(formatResponse(new SimpleKVMessage(StatusType.SCAN_SUCCESS, String.valueOf(sent), null)));
+            LOGGER.info("Processed SCAN from " + request.getKey() + " to " + bounds[0] + ": " + sent + " entries");
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Error processing scan request", e);
+            output.println(formatResponse(new SimpleKVMessage(StatusType.SCAN_ERROR, String.valueOf(sent), null)));
+        }
+    }
+
     private SimpleKVMessage parseRequest(String requestString) {
         LOGGER.info("Received request string: " + requestString);
         if (requestString == null || requestString.trim().isEmpty()) {
@@ -0,0 +1,128 @@
+package app_kvServer;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Sidecar file next to the storage listing the keys written with a TTL, so
+ * a restart can schedule their expiry without reading every value.
+ *
+ * Every TTL write appends a line "expiresAt key". The file is only a hint:
+ * values carry their own expiry, which is what reads check. The server
+ * therefore reads the value of every listed key on start-up and drops lines
+ * that are out of date because the key was written again or deleted; a line
+ * lost in a crash only delays the background deletion of its key. The file
+ * is rewritten from the live entries once out-of-date lines dominate it.
+ */
+public class ExpiryIndex {
+
+	private static final Logger LOGGER = Logger.getLogger(ExpiryIndex.class.getName());
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	public static final String FILE_NAME = "expiries";
+
+	private final File file;
+	private BufferedWriter writer;
+	private long lines; // In the file, out of date or not
+
+	/**
+	 * @param dir directory holding the file, the data directory of the storage
+	 */
+	public ExpiryIndex(File dir) {
+		this.file = new File(dir, FILE_NAME);
+	}
+
+	/**
+	 * @return whether the file was written before; if not, the storage may
+	 * 		still hold keys with a TTL from before the index existed
+	 */
+	public synchronized boolean exists() {
+		return file.exists();
+	}
+
+	/**
+	 * @return expiry by key as listed, the last line of a key winning
+	 */
+	public synchronized Map<String, Long> read() throws IOException {
+		Map<String, Long> listed = new HashMap<>();
+		if (!file.exists()) {
+			return listed;
+		}
+		lines = 0;
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int space = line.indexOf(' ');
+				try {
+					listed.put(line.substring(space + 1), Long.parseLong(line.substring(0, space)));
+					lines++;
+				} catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+					LOGGER.warning("Skipping malformed line of " + file + ": " + line); // Torn by a crash
+				}
+			}
+		}
+		return listed;
+	}
+
+	public synchronized void append(String key, long expiresAt) throws IOException {
+		if (writer == null) {
+			writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), UTF8));
+		}
+		writer.write(expiresAt + " " + key + "\n");
+		lines++;
+	}
+
+	/**
+	 * Pushes appended lines to the OS; the file needs no fsync, being a hint.
+	 */
+	public synchronized void flush() throws IOException {
+		if (writer != null) {
+			writer.flush();
+		}
+	}
+
+	/**
+	 * Replaces the file with one line per live entry. Appends wait meanwhile,
+	 * so an entry added to a concurrent map while it is iterated is either
+	 * written here or appended right after.
+	 */
+	public synchronized void rewrite(Map<String, Long> live) throws IOException {
+		close();
+		File tmp = new File(file.getPath() + ".tmp");
+		long written = 0;
+		try (BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), UTF8))) {
+			for (Map.Entry<String, Long> entry : live.entrySet()) {
+				out.write(entry.getValue() + " " + entry.getKey() + "\n");
+				written++;
+			}
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		lines = written;
+	}
+
+	/**
+	 * @return lines in the file, including out-of-date ones
+	 */
+	public synchronized long getLines() {
+		return lines;
+	}
+
+	public synchronized void close() throws IOException {
+		if (writer != null) {
+			writer.close();
+			writer = null;
+		}
+	}
+}
@@ -5,7 +5,9 @@ public interface IKVServer {
         None,
         LRU,
         LFU,
-        FIFO
+        FIFO,
+        WTINYLFU, /* Window TinyLFU: LRU window, frequency-filtered admission to a segmented LRU */
+        ARC /* Adaptive Replacement Cache */
     };
 
     /**
@@ -0,0 +1,126 @@
+package app_kvServer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Remembers which client connections have read which keys, so that a write
+ * can tell them to drop the value from their near caches.
+ *
+ * A key is tracked for a listener from its read until the next write of the
+ * key, which notifies the listener once and forgets it; the client reads the
+ * key again to be tracked again. Tracking and invalidating the same key must
+ * not run concurrently, so the server calls both under the key's stripe;
+ * different keys need no coordination.
+ */
+public class InvalidationTracker {
+
+	/**
+	 * Receives the invalidations of one client connection.
+	 */
+	public interface Listener {
+		/**
+		 * The key was written or deleted since the listener read it.
+		 */
+		void invalidate(String key);
+
+		/**
+		 * Every key the listener read may have changed.
+		 */
+		void invalidateAll();
+	}
+
+	private final ConcurrentMap<String, Set<Listener>> readers = new ConcurrentHashMap<>();
+	private final ConcurrentMap<Listener, Set<String>> keysByListener = new ConcurrentHashMap<>();
+
+	/**
+	 * Tracks a key for the listener before the listener reads it, so a write
+	 * between the read and the tracking cannot go unnoticed.
+	 */
+	public void track(String key, Listener listener) {
+		Set<Listener> listeners = readers.get(key);
+		if (listeners == null) {
+			listeners = newConcurrentSet();
+			readers.put(key, listeners);
+		}
+		listeners.add(listener);
+		keysOf(listener).add(key);
+	}
+
+	/**
+	 * Notifies and forgets every listener that read the key.
+	 */
+	public void invalidate(String key) {
+		Set<Listener> listeners = readers.remove(key);
+		if (listeners == null) {
+			return;
+		}
+		for (Listener listener : listeners) {
+			Set<String> keys = keysByListener.get(listener);
+			if (keys != null) {
+				keys.remove(key);
+			}
+			listener.invalidate(key);
+		}
+	}
+
+	/**
+	 * Stops tracking one key for the listener, without notifying it.
+	 */
+	public void untrack(String key, Listener listener) {
+		Set<Listener> listeners = readers.get(key);
+		if (listeners != null) {
+			listeners.remove(listener);
+			if (listeners.isEmpty()) {
+				readers.remove(key, listeners);
+			}
+		}
+		Set<String> keys = keysByListener.get(listener);
+		if (keys != null) {
+			keys.remove(key);
+		}
+	}
+
+	/**
+	 * @return keys tracked for the listener, a copy
+	 */
+	public List<String> getTrackedKeys(Listener listener) {
+		Set<String> keys = keysByListener.get(listener);
+		return keys == null ? Collections.<String>emptyList() : new ArrayList<>(keys);
+	}
+
+	/**
+	 * @return number of keys tracked for the listener
+	 */
+	public int countTrackedKeys(Listener listener) {
+		Set<String> keys = keysByListener.get(listener);
+		return keys == null ? 0 : keys.size();
+	}
+
+	/**
+	 * Forgets a listener whose keys have all been untracked.
+	 */
+	public void remove(Listener listener) {
+		keysByListener.remove(listener);
+	}
+
+	private Set<String> keysOf(Listener listener) {
+		Set<String> keys = keysByListener.get(listener);
+		if (keys == null) {
+			Set<String> created = newConcurrentSet();
+			keys = keysByListener.putIfAbsent(listener, created);
+			if (keys == null) {
+				keys = created;
+			}
+		}
+		return keys;
+	}
+
+	private static <T> Set<T> newConcurrentSet() {
+		return Collections.newSetFromMap(new ConcurrentHashMap<T, Boolean>());
+	}
+}
@@ -6,7 +6,9 @@ import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.File;
 
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import java.io.IOException;
@@ -15,12 +17,20 @@ import java.net.UnknownHostException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.Iterator;
 import java.util.Map;
-import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.Map.Entry;
@@ -28,6 +38,15 @@ import java.net.BindException;
 
 
 import app_kvServer.ClientHandler;
+import app_kvServer.cache.Cache;
+import app_kvServer.cache.CacheFactory;
+import app_kvServer.cache.SegmentedCache;
+import app_kvServer.cache.Weigher;
+import app_kvServer.storage.Durability;
+import app_kvServer.storage.OrderedStorageEngine;
+import app_kvServer.storage.StorageConfig;
+import app_kvServer.storage.StorageFactory;
+import app_kvServer.storage.ValueCodec;
 
 
 public class KVServer implements IKVServer {
@@ -54,18 +73,53 @@ public class KVServer implements IKVServer {
 
 	private List<Thread> clientHandlerThreads;
 	
-	private Map<String, String> storage;
-    private Map<String, String> cache;
-    private Queue<String> fifoQueue; // For FIFO caching
-	private Map<String, Integer> accessFrequency; // For LFU caching 
+	private OrderedStorageEngine storage;
+	private ValueCodec codec; // Storage and cache both hold values in its stored form
+
+	// Keys written with a TTL, by expiry in ms since the epoch. A timer wheel
+	// deletes them in the background; until it does, reads treat them as gone.
+	private final ConcurrentMap<String, Long> expiries = new ConcurrentHashMap<>();
+	private final TimerWheel timerWheel = new TimerWheel(EXPIRY_TICK_MILLIS, System.currentTimeMillis()); // Guarded by itself
+	private ExpiryIndex expiryIndex; // Keys with a TTL as a sidecar of the storage; null for the memory engine
+	private ScheduledExecutorService maintenance; // Expiry and statistics
+	private final Object[] keyStripes = new Object[KEY_STRIPES]; // Orders writes and expiry of the same key
+    private Cache cache; // Null without caching; thread-safe, shared by all client handlers and maintenance
+	private final AtomicLong cacheHits = new AtomicLong();
+	private final AtomicLong cacheMisses = new AtomicLong();
+	private final boolean readThrough; // GET misses fill the cache
+	private final ConcurrentMap<String, FutureTask<String>> loads = new ConcurrentHashMap<>(); // Running read-through loads
+	private final AtomicLong cacheLoads = new AtomicLong();
+	private final InvalidationTracker invalidations = new InvalidationTracker(); // Keys read by clients with a near cache
 
     private int cacheSize;
 	private IKVServer.CacheStrategy strategy; // Correct type for strategy
 
 	private static final Logger LOGGER = Logger.getLogger(ClientHandler.class.getName());
 
+	private static final long EXPIRY_TICK_MILLIS = 100;
+	private static final int KEY_STRIPES = 64;
+	private static final long EXPIRY_INDEX_SLACK_LINES = 1024;
+	private static final long CACHE_STATS_INTERVAL_SECONDS = 60;
+	private static final int MAX_TRACKED_KEYS = 1 << 16; // Per client connection
+
 
 	public KVServer(int port, int cacheSize, String strategy) {
+		this(port, cacheSize, strategy, new StorageConfig());
+	}
+
+	/**
+	 * @param storageConfig selects the storage engine ("memory", "log",
+	 *           "lsm", "bitcask", "mmap" or "tiered") and where it keeps its files
+	 */
+	public KVServer(int port, int cacheSize, String strategy, StorageConfig storageConfig) {
+		this(port, cacheSize, strategy, storageConfig, 0);
+	}
+
+	/**
+	 * @param cacheBytes if positive, bounds the cache by the approximate heap
+	 *           size of its keys and values instead of by cacheSize entries
+	 */
+	public KVServer(int port, int cacheSize, String strategy, StorageConfig storageConfig, long cacheBytes) {
         this.port = port;
 		this.running = true; 
         this.cacheSize = cacheSize;
@@ -73,17 +127,29 @@ public class KVServer implements IKVServer {
 
 		this.clientHandlerThreads = new ArrayList<>();
 		this.activeClientHandlers = Collections.synchronizedSet(new HashSet<ClientHandler>());
+		for (int i = 0; i < KEY_STRIPES; i++) {
+			keyStripes[i] = new Object();
+		}
 
-        this.storage = new HashMap<>();
+        this.storage = StorageFactory.createStorageEngine(storageConfig);
+		LOGGER.info("Using storage engine: " + storageConfig.getEngine() + " in " + storageConfig.getDataDir() + " with "
+				+ storageConfig.getPartitions() + " partitions, durability: " + storageConfig.getDurability());
+		this.codec = new ValueCodec(storageConfig.getCompression(), storageConfig.getCompressionThresholdBytes());
+		if (!StorageFactory.MEMORY.equals(storageConfig.getEngine())) {
+			this.expiryIndex = new ExpiryIndex(storageConfig.getDataDir());
+		}
+		LOGGER.info("Value compression: " + codec.getName() + " from " + codec.getThresholdBytes() + " bytes");
 
-        if (cacheSize > 0) { // Initialize cache for all strategies if cacheSize > 0
-            this.cache = new HashMap<>();
-            if ("FIFO".equals(strategy)) {
-                this.fifoQueue = new LinkedList<>();
-            } else if ("LFU".equals(strategy)) {
-                this.accessFrequency = new HashMap<>();
-            }
-        }
+		if (cacheBytes > 0) {
+			this.cache = CacheFactory.createConcurrentCache(this.strategy, cacheBytes, Weigher.BYTES);
+		} else {
+			this.cache = CacheFactory.createConcurrentCache(this.strategy, cacheSize, Weigher.ENTRIES); // Null if cacheSize is 0 or strategy None
+		}
+		if (cache instanceof SegmentedCache) {
+			LOGGER.info("Cache " + this.strategy + " in " + ((SegmentedCache) cache).getSegmentCount() + " segments");
+		}
+		this.readThrough = cache != null && storageConfig.isReadThrough();
+		LOGGER.info("Read-through caching: " + readThrough);
 
 		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() { // close when hit CTRL+C
             @Override
@@ -136,14 +202,26 @@ public class KVServer implements IKVServer {
 
 	@Override
     public boolean inStorage(String key){
-		// TODO Auto-generated method stub
-		return storage.containsKey(key);
+		try {
+			return !isExpired(key) && storage.containsKey(key);
+		} catch (IOException e) {
+			LOGGER.log(Level.SEVERE, "Error checking storage for key: " + key, e);
+			return false;
+		}
 	}
 
 	@Override
     public boolean inCache(String key){
 		// TODO Auto-generated method stub
-		return cache != null && cache.containsKey(key);
+		if (cache == null || isExpired(key)) {
+			return false;
+		}
+		return cache.containsKey(key);
+	}
+
+	private boolean isExpired(String key) {
+		Long expiresAt = expiries.get(key);
+		return expiresAt != null && expiresAt <= System.currentTimeMillis();
 	}
 
 
@@ -151,156 +229,383 @@ public class KVServer implements IKVServer {
 	public String getKV(String key) throws Exception {
 		LOGGER.info("GETKV PROCESSING");
 		String value = null; // Initialize value to null
-		
-		if (cache != null && inCache(key)) {
-			value = cache.get(key);
-			LOGGER.fine("Cache hit for key: " + key);
+
+		if (isExpired(key)) { // Answered without a disk read; maintenance deletes it from storage
+			if (cache != null) {
+				removeFromCache(key);
+			}
+			LOGGER.fine("Expired key: " + key);
+			return null;
+		}
+		if (cache != null) {
+			value = cache.get(key); // Counts as a use for the replacement strategy
+			if (value != null) {
+				cacheHits.incrementAndGet();
+				LOGGER.fine("Cache hit for key: " + key);
+			} else {
+				cacheMisses.incrementAndGet();
+			}
 		} 
 
-		if (value == null && inStorage(key)){
+		if (value == null && readThrough) {
+			value = load(key);
+		} else if (value == null && inStorage(key)){
 			value = storage.get(key);
 			LOGGER.fine("Storage hit for key: " + key);
 		}
-		return value;
+		long expiresAt = ValueCodec.getExpiry(value);
+		if (expiresAt != 0 && expiresAt <= System.currentTimeMillis()) { // Expired while it was read
+			return null;
+		}
+		return codec.decode(value);
+	}
+
+	/*
+	 * Reads a key that missed the cache from storage and caches it.
+	 * Concurrent misses on the same key share one load. The load holds the
+	 * key's stripe, so no write falls between reading and caching, and it
+	 * first looks at the cache again in case a load or write finished since
+	 * the miss. A write drops the shared load, so reads after the write wait
+	 * for a new one rather than take the value from before it.
+	 */
+	private String load(final String key) throws Exception {
+		FutureTask<String> task = new FutureTask<>(new Callable<String>() {
+			@Override
+			public String call() throws IOException {
+				synchronized (stripeOf(key)) {
+					String stored = cache.get(key);
+					if (stored != null) {
+						return stored;
+					}
+					stored = storage.get(key);
+					cacheLoads.incrementAndGet();
+					long expiresAt = ValueCodec.getExpiry(stored);
+					if (stored != null && (expiresAt == 0 || expiresAt > System.currentTimeMillis())) {
+						updateCache(key, stored);
+					}
+					return stored;
+				}
+			}
+		});
+		FutureTask<String> running = loads.putIfAbsent(key, task);
+		if (running == null) {
+			running = task;
+			try {
+				task.run();
+			} finally {
+				loads.remove(key, task);
+			}
+		}
+		try {
+			return running.get();
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+		}
+	}
+
+	/**
+	 * Reads one page of a range scan straight from storage, which every
+	 * acknowledged PUT has reached.
+	 * @param toKey end of the range (exclusive), null for no end
+	 * @return up to limit entries with fromKey <= key < toKey in key order,
+	 * 		skipping expired keys
+	 */
+	public List<Map.Entry<String, String>> scanKV(String fromKey, String toKey, int limit) throws Exception {
+		List<Map.Entry<String, String>> page = new ArrayList<>();
+		long now = System.currentTimeMillis();
+		String from = fromKey;
+		while (page.size() < limit) {
+			int wanted = limit - page.size();
+			List<Map.Entry<String, String>> entries = storage.scan(from, toKey, wanted);
+			for (Map.Entry<String, String> entry : entries) {
+				long expiresAt = ValueCodec.getExpiry(entry.getValue());
+				if (expiresAt == 0 || expiresAt > now) {
+					page.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), codec.decode(entry.getValue())));
+				}
+			}
+			if (entries.size() < wanted) {
+				break;
+			}
+			from = entries.get(entries.size() - 1).getKey() + '\u0000'; // Refill the page behind skipped keys
+		}
+		return page;
+	}
+
+	public long getCacheHits() {
+		return cacheHits.get();
+	}
+
+	public long getCacheMisses() {
+		return cacheMisses.get();
+	}
+
+	/**
+	 * @return storage reads made to fill the cache on misses; concurrent
+	 *           misses on one key count once
+	 */
+	public long getCacheLoads() {
+		return cacheLoads.get();
+	}
+
+	/**
+	 * @return share of GETs of live keys answered from the cache since
+	 *           start-up, 0 before the first one
+	 */
+	public double getCacheHitRatio() {
+		long hits = cacheHits.get();
+		long lookups = hits + cacheMisses.get();
+		return lookups == 0 ? 0 : (double) hits / lookups;
+	}
+
+	/**
+	 * @return codec of stored values, with compression ratio and CPU time
+	 */
+	public ValueCodec getValueCodec() {
+		return codec;
 	}
 
 
 
 	@Override
     public void putKV(String key, String value) throws Exception{
+		putKV(key, value, 0);
+	}
+
+	/**
+	 * Like putKV(key, value), but the key expires after the given time. The
+	 * expiry is stored with the value, so it holds across restarts.
+	 * @param ttlMillis time to live in milliseconds, 0 for none
+	 */
+	public void putKV(String key, String value, long ttlMillis) throws Exception{
 		// TODO Auto-generated method stub
 		// LOGGER.info("Attempting to put key: " + key + ", value: " + value);
 		try{
-			if (value == null){ //DELETE OPERATION 
-				LOGGER.info("Empty value, doing DELETE OPERATION in putKV");
-				storage.remove(key); 
-				if (cache != null){
-					cache.remove(key); 
-				}
-				LOGGER.info("Key removed from storage and cache: "+key); 
+			synchronized (stripeOf(key)) {
+				putKVLocked(key, value, ttlMillis);
 			}
+		} catch (Exception e){
+			LOGGER.severe("Error while putting key: " + key+ " with value: "+ value); 
+			LOGGER.log(Level.SEVERE, e.getMessage(), e);
+			throw e; 
+		}
+	}
 
-			storage.put(key, value); // if key already exists, get new val, will be updated 
+	private void putKVLocked(String key, String value, long ttlMillis) throws IOException {
+		loads.remove(key);
+		if (value == null){ //DELETE OPERATION 
+			LOGGER.info("Empty value, doing DELETE OPERATION in putKV");
+			storage.delete(key); // Engines persist a tombstone, so the key stays deleted after a restart
+			expiries.remove(key);
+			if (cache != null){
+				removeFromCache(key);
+			}
+			LOGGER.info("Key removed from storage and cache: "+key); 
+		}
+		else {
+			long expiresAt = ttlMillis > 0 ? System.currentTimeMillis() + ttlMillis : 0;
+			String stored = codec.encode(value, expiresAt); // Compressed once for both storage and cache
+			storage.put(key, stored); // if key already exists, get new val, will be updated 
 									// if key not available, will be put in. 
+			if (expiresAt > 0) {
+				expiries.put(key, expiresAt);
+				synchronized (timerWheel) {
+					timerWheel.schedule(key, expiresAt);
+				}
+				if (expiryIndex != null) {
+					try {
+						expiryIndex.append(key, expiresAt);
+					} catch (IOException e) { // The value carries its expiry, so reads still honour it
+						LOGGER.log(Level.WARNING, "Error recording the expiry of key: " + key, e);
+					}
+				}
+			} else {
+				expiries.remove(key);
+			}
 			LOGGER.info("Storage updated for key: " + key);
 			if (cache != null) {
-				updateCache(key, value);  
+				updateCache(key, stored);  
 				LOGGER.info("Cache updated for key: " + key);
 			}
-			saveDataToStorage(); 
-		} catch (Exception e){
-			LOGGER.severe("Error while putting key: " + key+ " with value: "+ value); 
-			LOGGER.log(Level.SEVERE, e.getMessage(), e);
-			throw e; 
 		}
+		invalidations.invalidate(key); // Queued before the write is acknowledged, but may reach the client after it
 	}
 
-
-	// UPDATING CACHE 
-	private void updateCache(String key, String value) {
-		LOGGER.info("UPDATING CACHE"); 	
-		switch (getCacheStrategy()) {
-			case FIFO:
-				LOGGER.info("Update FIFO: Put Key: " + key + " with value:" + value); 	
-				updateCacheFIFO(key, value);
-				break;
-			case LRU:
-				updateCacheLRU(key, value);
-				LOGGER.info("LRU: Put Key: " + key + " with value:" + value); 	
-				break;
-			case LFU:
-				updateCacheLFU(key, value);
-				LOGGER.info("LFU: Put Key: " + key + " with value:" + value); 	
-				break;
-			case None:
-				// No caching
-				break;
+	/**
+	 * Tracks a key a client with a near cache is about to read, so that it is
+	 * told when the key is written, deleted or expires. A client already
+	 * tracking maxKeys keys is first told to drop all of them and starts over.
+	 */
+	public void track(String key, InvalidationTracker.Listener listener, int maxKeys) {
+		if (invalidations.countTrackedKeys(listener) >= Math.min(maxKeys, MAX_TRACKED_KEYS)) {
+			untrackAll(listener);
+			listener.invalidateAll();
+		}
+		synchronized (stripeOf(key)) {
+			invalidations.track(key, listener);
 		}
 	}
 
-	// FIFO: The oldest item is evicted when the cache is full.
-	// LRU: The least recently used item is evicted. Your implementation keeps the most recently used items at the end of the cache map.
-	// LFU: The least frequently used item is evicted. You use an accessFrequency map to track the access frequency of each key.
-	private void updateCacheFIFO(String key, String value){
-        if (cache == null) {
-			LOGGER.info("FIFO Cache is NULL"); 	
-			return;
+	/**
+	 * Forgets a client connection that closed.
+	 */
+	public void stopTracking(InvalidationTracker.Listener listener) {
+		untrackAll(listener);
+		invalidations.remove(listener);
+	}
+
+	private void untrackAll(InvalidationTracker.Listener listener) {
+		for (String key : invalidations.getTrackedKeys(listener)) {
+			synchronized (stripeOf(key)) {
+				invalidations.untrack(key, listener);
+			}
 		}
-	
-		if (!cache.containsKey(key) && fifoQueue.size() >= cacheSize) {
-			String oldestKey = fifoQueue.poll();
-			cache.remove(oldestKey);
+	}
+
+	private Object stripeOf(String key) {
+		return keyStripes[(key.hashCode() & Integer.MAX_VALUE) % KEY_STRIPES];
+	}
+
+	// EXPIRY
+	/*
+	 * Files every stored key that carries a TTL; keys already expired go on
+	 * the next tick. Only the keys in the expiry index are read, and every
+	 * value only when the index does not exist yet
+	 */
+	private void scheduleStoredExpiries() throws IOException {
+		if (expiryIndex == null) {
+			return; // Nothing survives a restart of the memory engine
 		}
-		cache.put(key, value);
-		fifoQueue.add(key);
-		LOGGER.info("FIFO || Put Key: " + key + " with value:" + value); 
-		// Confirmation // 	
-		if (cache.containsKey(key)) {
-			LOGGER.info("FIFO Cache update confirmed for key: " + key + " with value: " + value);
+		long started = System.currentTimeMillis();
+		if (expiryIndex.exists()) {
+			for (String key : expiryIndex.read().keySet()) {
+				scheduleStoredExpiry(key, storage.get(key)); // The value has the expiry that is still valid, if any
+			}
 		} else {
-			LOGGER.warning("FIFO Cache update failed for key: " + key);
+			for (Iterator<Map.Entry<String, String>> it = storage.iterator(); it.hasNext();) {
+				Map.Entry<String, String> entry = it.next();
+				scheduleStoredExpiry(entry.getKey(), entry.getValue());
+			}
 		}
+		expiryIndex.rewrite(expiries); // Drops the out-of-date lines
+		LOGGER.info("Scheduled " + expiries.size() + " keys with a TTL in " + (System.currentTimeMillis() - started) + " ms");
 	}
 
-    private void updateCacheLRU(String key, String value) {
-        // Remove key to re-insert and maintain order
-        if (cache.containsKey(key)) {
-            cache.remove(key);
-        } 
-		else if (cache.size() >= cacheSize) {
-            String oldestKey = cache.keySet().iterator().next();
-            cache.remove(oldestKey);
-        }
-        cache.put(key, value);
-    }
+	private void scheduleStoredExpiry(String key, String stored) {
+		long expiresAt = ValueCodec.getExpiry(stored);
+		if (expiresAt > 0) {
+			expiries.put(key, expiresAt);
+			synchronized (timerWheel) {
+				timerWheel.schedule(key, expiresAt);
+			}
+		}
+	}
 
-	private void updateCacheLFU(String key, String value) {
-		if (cache.containsKey(key)) {
-			cache.put(key, value);
-			accessFrequency.put(key, accessFrequency.get(key) + 1);
-		} 
-		else {
-			if (cache.size() >= cacheSize) {
-                String leastFrequentKey = findLeastFrequentKeyLFU(); // Use a separate method for Java 7 compatibility
-                cache.remove(leastFrequentKey);
-                accessFrequency.remove(leastFrequentKey);
-            }
-            cache.put(key, value);
-            accessFrequency.put(key, 1);
+	// Flushes the expiry index, and rewrites it once most of its lines are out of date
+	private void maintainExpiryIndex() {
+		try {
+			if (expiryIndex.getLines() > 2L * expiries.size() + EXPIRY_INDEX_SLACK_LINES) {
+				expiryIndex.rewrite(expiries);
+			} else {
+				expiryIndex.flush();
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Error writing the expiry index", e);
 		}
 	}
-	
-	private String findLeastFrequentKeyLFU() {
-        String leastFrequentKey = null;
-        int minFreq = Integer.MAX_VALUE;
-        for (Map.Entry<String, Integer> entry : accessFrequency.entrySet()) {
-            if (entry.getValue() < minFreq) {
-                minFreq = entry.getValue();
-                leastFrequentKey = entry.getKey();
-            }
-        }
-        return leastFrequentKey;
-    }
+
+	private void startMaintenance() {
+		maintenance = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "maintenance");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		maintenance.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				expireDue();
+				if (expiryIndex != null) {
+					maintainExpiryIndex();
+				}
+			}
+		}, EXPIRY_TICK_MILLIS, EXPIRY_TICK_MILLIS, TimeUnit.MILLISECONDS);
+		if (cache != null) {
+			maintenance.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					logCacheStats();
+				}
+			}, CACHE_STATS_INTERVAL_SECONDS, CACHE_STATS_INTERVAL_SECONDS, TimeUnit.SECONDS);
+		}
+	}
+
+	private void logCacheStats() {
+		LOGGER.info(String.format("Cache %s (weight %d of %d): %d hits, %d misses, hit ratio %.3f, %d loads", strategy,
+				cache.getWeight(), cache.getCapacity(), getCacheHits(), getCacheMisses(), getCacheHitRatio(), getCacheLoads()));
+	}
+
+	private void expireDue() {
+		List<TimerWheel.Timer> due;
+		synchronized (timerWheel) {
+			due = timerWheel.advance(System.currentTimeMillis());
+		}
+		for (TimerWheel.Timer timer : due) {
+			try {
+				expire(timer.getKey(), timer.getExpiresAt());
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Error expiring key: " + timer.getKey(), e); // Still hidden from reads
+			}
+		}
+	}
+
+	// Deletes a key from storage and cache unless it was written again since the timer was set
+	private void expire(String key, long expiresAt) throws IOException {
+		synchronized (stripeOf(key)) {
+			if (!expiries.remove(key, expiresAt)) {
+				return;
+			}
+			loads.remove(key);
+			storage.delete(key);
+			if (cache != null) {
+				removeFromCache(key);
+			}
+			invalidations.invalidate(key);
+		}
+		LOGGER.fine("Expired key: " + key);
+	}
+
+
+	// UPDATING CACHE 
+	// A deleted key must not linger in the cache
+	private void removeFromCache(String key) {
+		cache.remove(key);
+	}
+
+	private void updateCache(String key, String value) {
+		LOGGER.fine("UPDATING CACHE (" + strategy + "): Put Key: " + key);
+		cache.put(key, value);
+	}
 
 	@Override
 	public void clearCache() {
 		if (cache != null) {
 			cache.clear();
 		}
-		if (fifoQueue != null) { // For FIFO
-			fifoQueue.clear();
-		}
-		if (accessFrequency != null) { // For LFU
-			accessFrequency.clear();
-		}
 		LOGGER.info("Cache cleared");
 	}
 
 	@Override
     public void clearStorage(){
 		// TODO Auto-generated method stub
-		storage.clear();
-    	LOGGER.info("Storage cleared");
+		try {
+			storage.clear();
+			expiries.clear(); // Pending timers no longer match and are ignored
+			LOGGER.info("Storage cleared");
+		} catch (IOException e) {
+			LOGGER.log(Level.SEVERE, "Error clearing storage", e);
+		}
 	}
 
 	private boolean isRunning() {
@@ -315,6 +620,7 @@ public class KVServer implements IKVServer {
 			LOGGER.info("KV Server listening on port " + getPort());
 
 			loadDataFromStorage(); // Load data from the file into the storage map if the file exists
+			startMaintenance();
 
 			while (isRunning()) {
 				try {
@@ -338,36 +644,16 @@ public class KVServer implements IKVServer {
 		}
 	}
 
+	// Stops the server if the storage cannot be opened, rather than serving from an engine that holds nothing
 	private void loadDataFromStorage() {
-		String filePath = "kvstorage.txt"; // Relative path to the file
-		File file = new File(filePath);
-	
 		try {
-			if (!file.exists()) {
-				// If the file doesn't exist, create an empty file
-				boolean created = file.createNewFile();
-				if (created) {
-					LOGGER.info("Created new " + filePath + " file");
-				} else {
-					LOGGER.warning("Failed to create " + filePath + " file");
-				}
-			}
-	
-			// Now you can open the file for reading
-			try (BufferedReader reader = new BufferedReader(new FileReader(filePath))) {
-				String line;
-				while ((line = reader.readLine()) != null) {
-					String[] parts = line.split(",");
-					if (parts.length == 2) {
-						storage.put(parts[0], parts[1]);
-					}
-				}
-				LOGGER.info("Loaded data from " + filePath + " file");
-			} catch (IOException e) {
-				LOGGER.log(Level.SEVERE, "Error loading data from " + filePath + " file", e);
-			}
+			storage.open();
+			LOGGER.info("Storage loaded");
+			scheduleStoredExpiries();
 		} catch (IOException e) {
-			LOGGER.log(Level.SEVERE, "Error creating " + filePath + " file", e);
+			LOGGER.log(Level.SEVERE, "Error loading data from storage", e);
+			stopServer();
+			throw new IllegalStateException("Cannot open storage", e);
 		}
 	}
 	
@@ -402,15 +688,14 @@ public class KVServer implements IKVServer {
 
 
 
+	// PUTs are already durable once acknowledged; this lets the engine compact
+	// or flush what it buffered so the next start-up is fast.
 	private void saveDataToStorage() {
-		try (BufferedWriter writer = new BufferedWriter(new FileWriter("kvstorage.txt"))) {
-			for (Entry<String, String> entry : storage.entrySet()) {
-				writer.write(entry.getKey() + "," + entry.getValue());
-				writer.newLine();
-			}
-			LOGGER.info("Storage data saved to file");
+		try {
+			storage.flush();
+			LOGGER.info("Storage flushed");
 		} catch (IOException e) {
-			LOGGER.log(Level.SEVERE, "Error saving data to storage file", e);
+			LOGGER.log(Level.SEVERE, "Error flushing storage", e);
 		}
 	}
 	
@@ -435,8 +720,25 @@ public class KVServer implements IKVServer {
 				}
 			}
 
+			if (maintenance != null) {
+				maintenance.shutdown();
+				try {
+					maintenance.awaitTermination(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+
 			// Perform any necessary cleanup, like saving data to storage
 			saveDataToStorage();
+			storage.close();
+			if (expiryIndex != null) {
+				expiryIndex.close();
+			}
+			LOGGER.info("Value compression: " + codec);
+			if (cache != null) {
+				logCacheStats();
+			}
 		} catch (IOException e) {
 			LOGGER.warning("Error while closing the server: " + e.getMessage());
 			e.printStackTrace();
@@ -466,21 +768,121 @@ public class KVServer implements IKVServer {
 		// Default values
 		int port = 50005;
 		int cacheSize = 10; // Example default cache
+		long cacheBytes = 0;
 		String ipAddress = "127.0.0.1";
 		String strategy = "FIFO";
+		StorageConfig storageConfig = new StorageConfig();
+		Durability.Mode durabilityMode = Durability.DEFAULT.getMode();
+		long commitInterval = Durability.DEFAULT_INTERVAL_MILLIS;
+		int commitBatch = Durability.DEFAULT_BATCH_RECORDS;
 		
 		// Parse command line arguments
 		for (int i = 0; i < args.length; i++) {
 			if ("-p".equals(args[i]) && i + 1 < args.length) {
 				port = Integer.parseInt(args[i + 1]);
 			}
+			if ("-c".equals(args[i]) && i + 1 < args.length) { // Cache capacity in entries, 0 for no cache
+				cacheSize = Integer.parseInt(args[i + 1]);
+			}
+			if ("-cb".equals(args[i]) && i + 1 < args.length) { // Cache capacity in bytes of keys and values, instead of -c
+				cacheBytes = Long.parseLong(args[i + 1]);
+			}
+			if ("-cs".equals(args[i]) && i + 1 < args.length) { // Cache strategy
+				strategy = args[i + 1];
+				try {
+					IKVServer.CacheStrategy.valueOf(strategy);
+				} catch (IllegalArgumentException e) {
+					System.err.println("Unknown cache strategy " + strategy + ". Possible strategies are: "
+							+ Arrays.toString(IKVServer.CacheStrategy.values()));
+					return;
+				}
+			}
 			if ("-a".equals(args[i]) && i + 1 < args.length) {
 				ipAddress = args[i + 1];
 			}
+			if ("-s".equals(args[i]) && i + 1 < args.length) {
+				storageConfig.setEngine(args[i + 1]);
+			}
+			if ("-w".equals(args[i]) && i + 1 < args.length) { // Write durability: none, batch or sync
+				try {
+					durabilityMode = Durability.parseMode(args[i + 1]);
+				} catch (IllegalArgumentException e) {
+					System.err.println(e.getMessage() + ". Possible modes are: " + Durability.getPossibleModes());
+					return;
+				}
+			}
+			if ("-wi".equals(args[i]) && i + 1 < args.length) { // Group commit interval in ms
+				commitInterval = Long.parseLong(args[i + 1]);
+			}
+			if ("-wn".equals(args[i]) && i + 1 < args.length) { // Group commit batch size in records
+				commitBatch = Integer.parseInt(args[i + 1]);
+			}
+			if ("-si".equals(args[i]) && i + 1 < args.length) { // Seconds between snapshots of the log engine
+				storageConfig.setSnapshotIntervalSeconds(Long.parseLong(args[i + 1]));
+			}
+			if ("-m".equals(args[i]) && i + 1 < args.length) { // Heap budget of the tiered engine in bytes
+				storageConfig.setMemoryBudgetBytes(Long.parseLong(args[i + 1]));
+			}
+			if ("-bf".equals(args[i]) && i + 1 < args.length) { // False-positive rate of the LSM Bloom filters
+				double rate = Double.parseDouble(args[i + 1]);
+				if (rate <= 0 || rate >= 1) {
+					System.err.println("Bloom filter false-positive rate must be between 0 and 1");
+					return;
+				}
+				storageConfig.setBloomFalsePositiveRate(rate);
+			}
+			if ("-cr".equals(args[i]) && i + 1 < args.length) { // Compaction I/O rate in bytes per second, 0 for no limit
+				storageConfig.setCompactionBytesPerSecond(Long.parseLong(args[i + 1]));
+			}
+			if ("-z".equals(args[i]) && i + 1 < args.length) { // Value compression codec
+				String compression = args[i + 1];
+				if (!ValueCodec.NONE.equals(compression) && !ValueCodec.DEFLATE.equals(compression)
+						&& !ValueCodec.FAST.equals(compression)) {
+					System.err.println("Unknown compression codec " + compression + ". Possible codecs are: "
+							+ ValueCodec.getPossibleCodecs());
+					return;
+				}
+				storageConfig.setCompression(compression);
+			}
+			if ("-zt".equals(args[i]) && i + 1 < args.length) { // Value size in bytes from which values are compressed
+				storageConfig.setCompressionThresholdBytes(Integer.parseInt(args[i + 1]));
+			}
+			if ("-dd".equals(args[i]) && i + 1 < args.length) { // Value length from which equal values are stored once, 0 for off
+				storageConfig.setDedupMinValueLength(Integer.parseInt(args[i + 1]));
+			}
+			if ("-d".equals(args[i]) && i + 1 < args.length) { // Data directory of the storage engine
+				storageConfig.setDataDir(new File(args[i + 1]));
+			}
+			if ("-n".equals(args[i]) && i + 1 < args.length) { // Number of hash partitions of the storage
+				int partitions = Integer.parseInt(args[i + 1]);
+				if (partitions < 1) {
+					System.err.println("Number of partitions must be at least 1");
+					return;
+				}
+				storageConfig.setPartitions(partitions);
+			}
+			if ("-rt".equals(args[i]) && i + 1 < args.length) { // Read-through caching: on or off, by default on unless in memory
+				String readThrough = args[i + 1];
+				if (!"on".equals(readThrough) && !"off".equals(readThrough)) {
+					System.err.println("Read-through must be on or off, not " + readThrough);
+					return;
+				}
+				storageConfig.setReadThrough("on".equals(readThrough));
+			}
+			if ("-mv".equals(args[i])) { // Multi-version storage: lock-free reads and snapshot scans
+				storageConfig.setMultiVersion(true);
+			}
 		}
+		storageConfig.setDurability(new Durability(durabilityMode, commitInterval, commitBatch));
 	
 		// Initialize and start the server
-		KVServer server = new KVServer(port, cacheSize, strategy);
+		KVServer server;
+		try {
+			server = new KVServer(port, cacheSize, strategy, storageConfig, cacheBytes);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage() + ". Possible engines are: " + StorageFactory.getPossibleEngines());
+			return;
+		}
     	server.run();
 	}
 	
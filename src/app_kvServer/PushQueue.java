@@ -0,0 +1,46 @@
+package app_kvServer;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Lines the server pushes to one client, queued by writer threads without
+ * blocking and taken by the thread that writes them to the client's socket.
+ *
+ * The queue is bounded. A line that does not fit replaces everything queued
+ * by a single overflow line, which tells the client that it missed some.
+ */
+public class PushQueue {
+
+	private final BlockingQueue<String> lines;
+	private final String overflowLine;
+
+	public PushQueue(int capacity, String overflowLine) {
+		this.lines = new ArrayBlockingQueue<>(capacity);
+		this.overflowLine = overflowLine;
+	}
+
+	/**
+	 * @return false if the line did not fit, so the queue now only holds the
+	 * 		overflow line
+	 */
+	public synchronized boolean offer(String line) {
+		if (lines.offer(line)) {
+			return true;
+		}
+		lines.clear();
+		lines.offer(overflowLine);
+		return false;
+	}
+
+	/**
+	 * Waits for the next line.
+	 */
+	public String take() throws InterruptedException {
+		return lines.take();
+	}
+
+	public int size() {
+		return lines.size();
+	}
+}
@@ -0,0 +1,134 @@
+package app_kvServer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hierarchical hashed timer wheel for key expiry.
+ *
+ * Time is cut into ticks. Level 0 has one slot per tick for the next
+ * SLOTS ticks; every higher level has SLOTS slots that each span a whole
+ * turn of the level below. A timer is filed in the lowest level whose range
+ * covers its deadline, and whenever a level completes a turn the next slot
+ * of the level above is emptied and its timers are filed again, now one
+ * level lower. Scheduling is O(1) and every timer is moved at most once per
+ * level, however many keys expire.
+ *
+ * Timers are never cancelled: a key that is written again simply gets a new
+ * timer, and the owner ignores fired timers whose expiry is out of date.
+ * Not thread-safe; the owner synchronizes.
+ */
+public class TimerWheel {
+
+	private static final int SLOT_BITS = 6;
+	private static final int SLOTS = 1 << SLOT_BITS;
+	private static final int LEVELS = 5; // 64^5 ticks: over three years at 100 ms
+
+	/**
+	 * Expiry of one key.
+	 */
+	public static class Timer {
+		private final String key;
+		private final long expiresAt;
+		private final long deadline; // In ticks
+
+		private Timer(String key, long expiresAt, long deadline) {
+			this.key = key;
+			this.expiresAt = expiresAt;
+			this.deadline = deadline;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		/**
+		 * @return expiry time in milliseconds since the epoch
+		 */
+		public long getExpiresAt() {
+			return expiresAt;
+		}
+	}
+
+	private final long tickMillis;
+	private final long startMillis;
+	private final List<List<Timer>> slots = new ArrayList<>(); // LEVELS * SLOTS, level by level
+	private final List<Timer> overdue = new ArrayList<>();
+	private long currentTick;
+	private int size;
+
+	/**
+	 * @param tickMillis resolution of the wheel; timers fire up to one tick late
+	 * @param startMillis time of tick 0
+	 */
+	public TimerWheel(long tickMillis, long startMillis) {
+		this.tickMillis = tickMillis;
+		this.startMillis = startMillis;
+		for (int i = 0; i < LEVELS * SLOTS; i++) {
+			slots.add(new ArrayList<Timer>());
+		}
+	}
+
+	/**
+	 * Adds a timer that fires once the wheel has advanced to the given time.
+	 */
+	public void schedule(String key, long expiresAt) {
+		long deadline = (expiresAt - startMillis + tickMillis - 1) / tickMillis; // First tick at or after expiry
+		file(new Timer(key, expiresAt, deadline));
+		size++;
+	}
+
+	private void file(Timer timer) {
+		long delta = timer.deadline - currentTick;
+		if (delta <= 0) {
+			overdue.add(timer);
+			return;
+		}
+		int level = 0;
+		while (level < LEVELS - 1 && delta >= 1L << (SLOT_BITS * (level + 1))) {
+			level++;
+		}
+		long tick = Math.min(timer.deadline, currentTick + (1L << (SLOT_BITS * LEVELS)) - 1); // Far timers wait on the top level
+		int slot = (int) ((tick >>> (SLOT_BITS * level)) & (SLOTS - 1));
+		slots.get(level * SLOTS + slot).add(timer);
+	}
+
+	/**
+	 * Moves the wheel forward to the given time.
+	 * @return timers whose deadline has passed, in no particular order
+	 */
+	public List<Timer> advance(long nowMillis) {
+		List<Timer> due = new ArrayList<>(overdue);
+		overdue.clear();
+		long targetTick = (nowMillis - startMillis) / tickMillis;
+		while (currentTick < targetTick) {
+			currentTick++;
+			for (int level = 1; level < LEVELS; level++) {
+				if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) != 0) {
+					break; // The level below has not completed a turn
+				}
+				int slot = (int) ((currentTick >>> (SLOT_BITS * level)) & (SLOTS - 1));
+				List<Timer> cascading = slots.get(level * SLOTS + slot);
+				List<Timer> moved = new ArrayList<>(cascading);
+				cascading.clear();
+				for (Timer timer : moved) {
+					file(timer);
+				}
+			}
+			List<Timer> slot = slots.get((int) (currentTick & (SLOTS - 1)));
+			due.addAll(slot);
+			slot.clear();
+			due.addAll(overdue); // Cascaded onto this very tick
+			overdue.clear();
+		}
+		size -= due.size();
+		return due;
+	}
+
+	/**
+	 * @return number of timers that have not fired yet, including outdated ones
+	 */
+	public int size() {
+		return size;
+	}
+}
@@ -0,0 +1,219 @@
+package app_kvServer.cache;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Adaptive Replacement Cache (Megiddo and Modha): balances recency against
+ * frequency by learning from the keys it recently evicted.
+ *
+ * Cached entries are split between recent (accessed once since they were
+ * cached) and frequent (accessed again since). Each list has a ghost list of
+ * keys recently evicted from it, without values. Writing a key found on the
+ * recent ghost list means the recent list was too small, so its target size
+ * grows; finding it on the frequent ghost list shrinks it. Evictions take
+ * the least recently used entry of whichever list is over its target, so a
+ * scan of keys read once only displaces other entries of the recent list.
+ *
+ * Sizes are weights rather than entry counts: ghosts keep the weight of the
+ * entry they stand for, and the target moves by the weight of the entry
+ * written.
+ */
+public class ARCCache implements Cache {
+
+	private final long capacity;
+	private final Weigher weigher;
+	private long recentTarget; // Target weight of the recent list, adapted between 0 and capacity
+	// Each in order of last access, least recent first, with its total weight
+	private final LinkedHashMap<String, String> recent = new LinkedHashMap<>();
+	private final LinkedHashMap<String, String> frequent = new LinkedHashMap<>();
+	private final LinkedHashMap<String, Long> recentGhosts = new LinkedHashMap<>(); // Key to weight
+	private final LinkedHashMap<String, Long> frequentGhosts = new LinkedHashMap<>();
+	private long recentWeight;
+	private long frequentWeight;
+	private long recentGhostWeight;
+	private long frequentGhostWeight;
+
+	/**
+	 * @param capacity number of entries
+	 */
+	public ARCCache(long capacity) {
+		this(capacity, Weigher.ENTRIES);
+	}
+
+	public ARCCache(long capacity, Weigher weigher) {
+		this.capacity = Math.max(1, capacity);
+		this.weigher = weigher;
+	}
+
+	@Override
+	public String get(String key) {
+		String value = recent.remove(key);
+		if (value != null) {
+			long entryWeight = weigher.weigh(key, value);
+			recentWeight -= entryWeight;
+			frequentWeight += entryWeight;
+		} else {
+			value = frequent.remove(key);
+		}
+		if (value != null) {
+			frequent.put(key, value);
+		}
+		return value;
+	}
+
+	@Override
+	public boolean containsKey(String key) {
+		return recent.containsKey(key) || frequent.containsKey(key);
+	}
+
+	@Override
+	public void put(String key, String value) {
+		long entryWeight = weigher.weigh(key, value);
+		boolean cached = containsKey(key);
+		remove(key);
+		if (entryWeight > capacity) {
+			return;
+		}
+		Long ghostWeight;
+		if (cached) {
+			makeRoom(entryWeight, false);
+			addFrequent(key, value, entryWeight);
+		} else if ((ghostWeight = recentGhosts.remove(key)) != null) {
+			recentGhostWeight -= ghostWeight;
+			long ratio = frequentGhostWeight / (recentGhostWeight + ghostWeight);
+			recentTarget = Math.min(capacity, recentTarget + entryWeight * Math.max(1, ratio));
+			makeRoom(entryWeight, false);
+			addFrequent(key, value, entryWeight);
+		} else if ((ghostWeight = frequentGhosts.remove(key)) != null) {
+			frequentGhostWeight -= ghostWeight;
+			long ratio = recentGhostWeight / (frequentGhostWeight + ghostWeight);
+			recentTarget = Math.max(0, recentTarget - entryWeight * Math.max(1, ratio));
+			makeRoom(entryWeight, true);
+			addFrequent(key, value, entryWeight);
+		} else {
+			// Leaves room on the recent list for the new entry too
+			while (recentWeight + recentGhostWeight + entryWeight > capacity && !recentGhosts.isEmpty()) {
+				recentGhostWeight -= removeEldestGhost(recentGhosts);
+			}
+			while (recentWeight + entryWeight > capacity) {
+				recentWeight -= weighEvicted(removeEldest(recent)); // Recent list alone fills the cache: no ghost
+			}
+			makeRoom(entryWeight, false);
+			recent.put(key, value);
+			recentWeight += entryWeight;
+		}
+	}
+
+	private void addFrequent(String key, String value, long entryWeight) {
+		frequent.put(key, value);
+		frequentWeight += entryWeight;
+	}
+
+	/*
+	 * Evicts entries to the ghost lists until an entry of the given weight
+	 * fits: from the recent list while it is above its target (or at it, when
+	 * the new key is a frequent ghost), from the frequent list otherwise. Then
+	 * drops ghosts until recent entries and their ghosts stay within the
+	 * capacity and all lists with the new entry within twice that
+	 */
+	private void makeRoom(long entryWeight, boolean frequentGhostHit) {
+		while (getWeight() + entryWeight > capacity) {
+			if (!recent.isEmpty() && (recentWeight > recentTarget
+					|| (frequentGhostHit && recentWeight == recentTarget) || frequent.isEmpty())) {
+				Map.Entry<String, String> evicted = removeEldest(recent);
+				long evictedWeight = weighEvicted(evicted);
+				recentWeight -= evictedWeight;
+				recentGhosts.put(evicted.getKey(), evictedWeight);
+				recentGhostWeight += evictedWeight;
+			} else {
+				Map.Entry<String, String> evicted = removeEldest(frequent);
+				long evictedWeight = weighEvicted(evicted);
+				frequentWeight -= evictedWeight;
+				frequentGhosts.put(evicted.getKey(), evictedWeight);
+				frequentGhostWeight += evictedWeight;
+			}
+		}
+		while (recentWeight + recentGhostWeight > capacity && !recentGhosts.isEmpty()) {
+			recentGhostWeight -= removeEldestGhost(recentGhosts);
+		}
+		while (getWeight() + recentGhostWeight + frequentGhostWeight + entryWeight > 2 * capacity
+				&& !frequentGhosts.isEmpty()) {
+			frequentGhostWeight -= removeEldestGhost(frequentGhosts);
+		}
+	}
+
+	private long weighEvicted(Map.Entry<String, String> evicted) {
+		return weigher.weigh(evicted.getKey(), evicted.getValue());
+	}
+
+	private static Map.Entry<String, String> removeEldest(LinkedHashMap<String, String> list) {
+		Iterator<Map.Entry<String, String>> it = list.entrySet().iterator();
+		Map.Entry<String, String> eldest = it.next();
+		Map.Entry<String, String> removed = new SimpleImmutableEntry<>(eldest.getKey(), eldest.getValue());
+		it.remove();
+		return removed;
+	}
+
+	// Drops the oldest ghost and returns its weight
+	private static long removeEldestGhost(LinkedHashMap<String, Long> ghosts) {
+		Iterator<Map.Entry<String, Long>> it = ghosts.entrySet().iterator();
+		long weight = it.next().getValue();
+		it.remove();
+		return weight;
+	}
+
+	@Override
+	public void remove(String key) {
+		String value;
+		if ((value = recent.remove(key)) != null) {
+			recentWeight -= weigher.weigh(key, value);
+		} else if ((value = frequent.remove(key)) != null) {
+			frequentWeight -= weigher.weigh(key, value);
+		}
+	}
+
+	@Override
+	public void clear() {
+		recent.clear();
+		frequent.clear();
+		recentGhosts.clear();
+		frequentGhosts.clear();
+		recentWeight = 0;
+		frequentWeight = 0;
+		recentGhostWeight = 0;
+		frequentGhostWeight = 0;
+		recentTarget = 0;
+	}
+
+	@Override
+	public int size() {
+		return recent.size() + frequent.size();
+	}
+
+	@Override
+	public long getWeight() {
+		return recentWeight + frequentWeight;
+	}
+
+	@Override
+	public long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return current target weight of the list of entries accessed once
+	 */
+	public long getRecentTarget() {
+		return recentTarget;
+	}
+
+	/**
+	 * @return weight of the keys on both ghost lists
+	 */
+	public long getGhostWeight() {
+		return recentGhostWeight + frequentGhostWeight;
+	}
+}
@@ -0,0 +1,48 @@
+package app_kvServer.cache;
+
+/**
+ * Bounded in-memory map from keys to values in their stored form, in front
+ * of the storage engine. Implementations differ in which entries they evict
+ * when the total weight of the entries, as measured by their Weigher, would
+ * exceed the capacity. Not thread-safe unless stated otherwise; the server
+ * shares a SegmentedCache of them between its threads.
+ */
+public interface Cache {
+
+	/**
+	 * Reads a value and records the access for the eviction policy.
+	 * @return the cached value, null on a miss
+	 */
+	public String get(String key);
+
+	/**
+	 * @return whether the key is cached, without recording an access
+	 */
+	public boolean containsKey(String key);
+
+	/**
+	 * Adds or replaces a value, evicting other entries until the total weight
+	 * fits the capacity. Counts as an access. An entry heavier than the whole
+	 * capacity is not cached, and an older value of its key is removed.
+	 */
+	public void put(String key, String value);
+
+	public void remove(String key);
+
+	public void clear();
+
+	/**
+	 * @return number of cached entries
+	 */
+	public int size();
+
+	/**
+	 * @return total weight of the cached entries
+	 */
+	public long getWeight();
+
+	/**
+	 * @return maximum total weight of the cached entries
+	 */
+	public long getCapacity();
+}
@@ -0,0 +1,68 @@
+package app_kvServer.cache;
+
+import app_kvServer.IKVServer.CacheStrategy;
+
+public final class CacheFactory {
+
+	/**
+	 * Segments per available processor of a concurrent cache, so that
+	 * threads rarely hit the same segment at once.
+	 */
+	public static final int SEGMENTS_PER_PROCESSOR = 4;
+	/**
+	 * Fewest entries a segment should hold, counting an entry as at least the
+	 * weight of an empty key and value; smaller
+	 * caches get fewer segments, down to one.
+	 */
+	public static final long MIN_SEGMENT_ENTRIES = 16;
+
+	private CacheFactory() {
+	}
+
+	/*
+	 * Creates an empty cache with the given replacement strategy, or returns
+	 * null if the strategy is None or the capacity is not positive. The
+	 * capacity is a total weight as measured by the weigher: entries with
+	 * Weigher.ENTRIES, approximate heap bytes with Weigher.BYTES
+	 */
+	public static Cache createCache(CacheStrategy strategy, long capacity, Weigher weigher) {
+		if (capacity <= 0) {
+			return null;
+		}
+		switch (strategy) {
+			case LRU:
+				return new LRUCache(capacity, weigher);
+			case LFU:
+				return new LFUCache(capacity, weigher, LFUCache.DEFAULT_AGING_FACTOR);
+			case FIFO:
+				return new FIFOCache(capacity, weigher);
+			case WTINYLFU:
+				return new WTinyLFUCache(capacity, weigher);
+			case ARC:
+				return new ARCCache(capacity, weigher);
+			default:
+				return null;
+		}
+	}
+
+	/*
+	 * Creates a thread-safe cache split into segments of the given strategy,
+	 * as many as fit the capacity up to SEGMENTS_PER_PROCESSOR per available
+	 * processor, or returns null like createCache
+	 */
+	public static Cache createConcurrentCache(CacheStrategy strategy, long capacity, Weigher weigher) {
+		long minSegmentWeight = MIN_SEGMENT_ENTRIES * weigher.weigh("", "");
+		long wanted = Math.min((long) SEGMENTS_PER_PROCESSOR * Runtime.getRuntime().availableProcessors(),
+				capacity / Math.max(1, minSegmentWeight));
+		int count = (int) Long.highestOneBit(Math.max(1, wanted));
+		Cache[] segments = new Cache[count];
+		for (int i = 0; i < count; i++) {
+			long share = capacity / count + (i < capacity % count ? 1 : 0);
+			segments[i] = createCache(strategy, share, weigher);
+			if (segments[i] == null) {
+				return null;
+			}
+		}
+		return new SegmentedCache(segments);
+	}
+}
@@ -0,0 +1,88 @@
+package app_kvServer.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Evicts the entries that were added first; reading or replacing an entry
+ * does not change its position.
+ */
+public class FIFOCache implements Cache {
+
+	private final long capacity;
+	private final Weigher weigher;
+	private final LinkedHashMap<String, String> entries = new LinkedHashMap<>(); // In insertion order
+	private long weight;
+
+	/**
+	 * @param capacity number of entries
+	 */
+	public FIFOCache(long capacity) {
+		this(capacity, Weigher.ENTRIES);
+	}
+
+	public FIFOCache(long capacity, Weigher weigher) {
+		this.capacity = Math.max(1, capacity);
+		this.weigher = weigher;
+	}
+
+	@Override
+	public String get(String key) {
+		return entries.get(key);
+	}
+
+	@Override
+	public boolean containsKey(String key) {
+		return entries.containsKey(key);
+	}
+
+	@Override
+	public void put(String key, String value) {
+		long entryWeight = weigher.weigh(key, value);
+		if (entryWeight > capacity) {
+			remove(key);
+			return;
+		}
+		String previous = entries.put(key, value); // A replaced value keeps its place
+		weight += entryWeight - (previous == null ? 0 : weigher.weigh(key, previous));
+		Iterator<Map.Entry<String, String>> oldest = entries.entrySet().iterator();
+		while (weight > capacity) {
+			Map.Entry<String, String> entry = oldest.next();
+			if (entry.getKey().equals(key)) { // Keep the entry just written, which fits on its own
+				continue;
+			}
+			weight -= weigher.weigh(entry.getKey(), entry.getValue());
+			oldest.remove();
+		}
+	}
+
+	@Override
+	public void remove(String key) {
+		String value = entries.remove(key);
+		if (value != null) {
+			weight -= weigher.weigh(key, value);
+		}
+	}
+
+	@Override
+	public void clear() {
+		entries.clear();
+		weight = 0;
+	}
+
+	@Override
+	public int size() {
+		return entries.size();
+	}
+
+	@Override
+	public long getWeight() {
+		return weight;
+	}
+
+	@Override
+	public long getCapacity() {
+		return capacity;
+	}
+}
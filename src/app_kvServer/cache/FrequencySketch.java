@@ -0,0 +1,104 @@
+package app_kvServer.cache;
+
+import java.util.Arrays;
+
+/**
+ * Count-min sketch of recent access frequencies, for admission decisions.
+ *
+ * Each key increments one counter in each of DEPTH rows, picked by a
+ * different hash per row, and its estimate is the smallest of them, so
+ * collisions can only overestimate. Counters saturate at MAX_COUNT, and
+ * once the sketch has counted a sample of accesses all counters are halved,
+ * so the estimates follow a shifting workload. The sketch is widened as the
+ * number of keys to tell apart grows, starting over with empty counters.
+ */
+class FrequencySketch {
+
+	private static final int DEPTH = 4;
+	private static final int MAX_COUNT = 15;
+	private static final int[] SEEDS = { 0x97cb3127, 0xb5b2bd07, 0x2545f491, 0x9e3779b9 };
+
+	private static final int MAX_WIDTH = 1 << 24;
+
+	private byte[][] counters;
+	private int mask;
+	private int sampleSize;
+	private int additions;
+
+	/**
+	 * @param expectedKeys number of keys whose frequency should be told apart,
+	 * 		usually the cache capacity
+	 */
+	FrequencySketch(int expectedKeys) {
+		allocate(expectedKeys);
+	}
+
+	/**
+	 * Widens the sketch if it is narrower than the number of keys.
+	 */
+	void ensureCapacity(int expectedKeys) {
+		if (expectedKeys > counters[0].length && counters[0].length < MAX_WIDTH) {
+			allocate(expectedKeys);
+		}
+	}
+
+	private void allocate(int expectedKeys) {
+		int width = Integer.highestOneBit(Math.min(MAX_WIDTH / 2, Math.max(16, expectedKeys - 1)) << 1); // Power of two >= expectedKeys
+		counters = new byte[DEPTH][width];
+		mask = width - 1;
+		sampleSize = (int) Math.min(Integer.MAX_VALUE, 10L * width);
+		additions = 0;
+	}
+
+	void increment(String key) {
+		int hash = spread(key.hashCode());
+		boolean added = false;
+		for (int row = 0; row < DEPTH; row++) {
+			int index = indexOf(hash, row);
+			if (counters[row][index] < MAX_COUNT) {
+				counters[row][index]++;
+				added = true;
+			}
+		}
+		if (added && ++additions >= sampleSize) {
+			reset();
+		}
+	}
+
+	int frequency(String key) {
+		int hash = spread(key.hashCode());
+		int frequency = MAX_COUNT;
+		for (int row = 0; row < DEPTH; row++) {
+			frequency = Math.min(frequency, counters[row][indexOf(hash, row)]);
+		}
+		return frequency;
+	}
+
+	void clear() {
+		for (byte[] row : counters) {
+			Arrays.fill(row, (byte) 0);
+		}
+		additions = 0;
+	}
+
+	// Halves all counters
+	private void reset() {
+		for (byte[] row : counters) {
+			for (int i = 0; i < row.length; i++) {
+				row[i] = (byte) (row[i] >>> 1);
+			}
+		}
+		additions /= 2;
+	}
+
+	private int indexOf(int hash, int row) {
+		int h = hash * SEEDS[row];
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	private static int spread(int hash) {
+		hash ^= hash >>> 17;
+		hash *= 0xed5ad4bb;
+		return hash ^ (hash >>> 11);
+	}
+}
@@ -0,0 +1,234 @@
+package app_kvServer.cache;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Evicts the entry with the fewest accesses, and of those the one that was
+ * accessed longest ago; reads and writes both count.
+ *
+ * Entries with the same access count share a bucket, and buckets form a
+ * doubly linked list in ascending count order. An access moves the entry to
+ * the bucket for the next count, creating it next to the current one if
+ * needed, and eviction takes the oldest entry of the first bucket, so get,
+ * put and eviction take constant time.
+ *
+ * With aging, every count is halved after a number of accesses per cached
+ * entry, so keys that were hot long ago do not stay cached forever. Halving
+ * walks all entries, which is constant time per access over that period.
+ */
+public class LFUCache implements Cache {
+
+	public static final int DEFAULT_AGING_FACTOR = 10;
+
+	private final long capacity;
+	private final Weigher weigher;
+	private final int agingFactor;
+	private final Map<String, Entry> index = new HashMap<>();
+	private final Bucket buckets = new Bucket(0); // Sentinel: buckets.next has the lowest count
+	private long accesses; // Since the last halving
+	private long weight;
+
+	private static class Entry {
+		final String key;
+		String value;
+		long weight;
+		Bucket bucket;
+		Entry prev;
+		Entry next;
+
+		Entry(String key, String value) {
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+	// Entries with one access count, oldest access first
+	private static class Bucket {
+		int count;
+		Bucket prev = this;
+		Bucket next = this;
+		final Entry entries = new Entry(null, null); // Sentinel
+
+		Bucket(int count) {
+			this.count = count;
+			entries.prev = entries;
+			entries.next = entries;
+		}
+
+		boolean isEmpty() {
+			return entries.next == entries;
+		}
+	}
+
+	/**
+	 * Without aging.
+	 * @param capacity number of entries
+	 */
+	public LFUCache(long capacity) {
+		this(capacity, Weigher.ENTRIES, 0);
+	}
+
+	/**
+	 * @param agingFactor accesses per cached entry after which all counts
+	 * 		are halved, 0 for no aging
+	 */
+	public LFUCache(long capacity, Weigher weigher, int agingFactor) {
+		this.capacity = Math.max(1, capacity);
+		this.weigher = weigher;
+		this.agingFactor = agingFactor;
+	}
+
+	@Override
+	public String get(String key) {
+		Entry entry = index.get(key);
+		if (entry == null) {
+			return null;
+		}
+		touch(entry);
+		return entry.value;
+	}
+
+	@Override
+	public boolean containsKey(String key) {
+		return index.containsKey(key);
+	}
+
+	@Override
+	public void put(String key, String value) {
+		long entryWeight = weigher.weigh(key, value);
+		if (entryWeight > capacity) {
+			remove(key);
+			return;
+		}
+		Entry entry = index.get(key);
+		if (entry != null) {
+			weight += entryWeight - entry.weight;
+			entry.value = value;
+			entry.weight = entryWeight;
+			touch(entry);
+		} else {
+			entry = new Entry(key, value);
+			entry.weight = entryWeight;
+			weight += entryWeight;
+			index.put(key, entry);
+			Bucket first = buckets.next;
+			append(first.count == 1 ? first : insertAfter(buckets, 1), entry);
+			countAccess();
+		}
+		while (weight > capacity) {
+			Entry victim = buckets.next.entries.next;
+			if (victim == entry) { // Keep the entry just written, which fits on its own
+				victim = victim.next != victim.bucket.entries ? victim.next : victim.bucket.next.entries.next;
+			}
+			unlink(victim);
+			index.remove(victim.key);
+			weight -= victim.weight;
+		}
+	}
+
+	// Moves an entry to the bucket for its next count
+	private void touch(Entry entry) {
+		Bucket bucket = entry.bucket;
+		if (bucket.count == Integer.MAX_VALUE) {
+			unlink(entry);
+			append(bucket.isEmpty() ? insertAfter(bucket.prev, bucket.count) : bucket, entry);
+		} else {
+			Bucket next = bucket.next;
+			if (next == buckets || next.count != bucket.count + 1) {
+				next = insertAfter(bucket, bucket.count + 1);
+			}
+			unlink(entry);
+			append(next, entry);
+		}
+		countAccess();
+	}
+
+	private void countAccess() {
+		if (agingFactor > 0 && ++accesses >= (long) agingFactor * Math.max(1, index.size())) {
+			accesses = 0;
+			halveCounts();
+		}
+	}
+
+	// Halves every count, at least to 1, merging buckets that end up with the same count
+	private void halveCounts() {
+		Bucket target = null;
+		for (Bucket bucket = buckets.next; bucket != buckets;) {
+			Bucket next = bucket.next;
+			int count = Math.max(1, bucket.count >>> 1);
+			if (target != null && target.count == count) {
+				while (!bucket.isEmpty()) { // Behind the target's entries: fewer accesses before halving
+					Entry entry = bucket.entries.next;
+					unlink(entry);
+					append(target, entry);
+				}
+			} else {
+				bucket.count = count;
+				target = bucket;
+			}
+			bucket = next;
+		}
+	}
+
+	@Override
+	public void remove(String key) {
+		Entry entry = index.remove(key);
+		if (entry != null) {
+			unlink(entry);
+			weight -= entry.weight;
+		}
+	}
+
+	@Override
+	public void clear() {
+		index.clear();
+		buckets.prev = buckets;
+		buckets.next = buckets;
+		accesses = 0;
+		weight = 0;
+	}
+
+	@Override
+	public int size() {
+		return index.size();
+	}
+
+	@Override
+	public long getWeight() {
+		return weight;
+	}
+
+	@Override
+	public long getCapacity() {
+		return capacity;
+	}
+
+	private Bucket insertAfter(Bucket before, int count) {
+		Bucket bucket = new Bucket(count);
+		bucket.prev = before;
+		bucket.next = before.next;
+		before.next.prev = bucket;
+		before.next = bucket;
+		return bucket;
+	}
+
+	private void append(Bucket bucket, Entry entry) {
+		entry.bucket = bucket;
+		entry.prev = bucket.entries.prev;
+		entry.next = bucket.entries;
+		bucket.entries.prev.next = entry;
+		bucket.entries.prev = entry;
+	}
+
+	// Unlinks an entry from its bucket, and the bucket from the list once it is empty
+	private void unlink(Entry entry) {
+		entry.prev.next = entry.next;
+		entry.next.prev = entry.prev;
+		Bucket bucket = entry.bucket;
+		if (bucket.isEmpty()) {
+			bucket.prev.next = bucket.next;
+			bucket.next.prev = bucket.prev;
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package app_kvServer.cache;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Evicts the least recently used entry, where reads and writes both count as
+ * a use.
+ *
+ * Entries are kept in a doubly linked list in order of last use, most recent
+ * first, and indexed by key in a hash map, so get, put and eviction each
+ * relink a constant number of nodes.
+ */
+public class LRUCache implements Cache {
+
+	private final long capacity;
+	private final Weigher weigher;
+	private final Map<String, Node> index = new HashMap<>();
+	private long weight;
+	private final Node head = new Node(null, null); // Sentinel: head.next is the most recently used entry, head.prev the least
+
+	private static class Node {
+		final String key;
+		String value;
+		long weight;
+		Node prev;
+		Node next;
+
+		Node(String key, String value) {
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * @param capacity number of entries
+	 */
+	public LRUCache(long capacity) {
+		this(capacity, Weigher.ENTRIES);
+	}
+
+	public LRUCache(long capacity, Weigher weigher) {
+		this.capacity = Math.max(1, capacity);
+		this.weigher = weigher;
+		head.prev = head;
+		head.next = head;
+	}
+
+	@Override
+	public String get(String key) {
+		Node node = index.get(key);
+		if (node == null) {
+			return null;
+		}
+		unlink(node);
+		linkFirst(node);
+		return node.value;
+	}
+
+	@Override
+	public boolean containsKey(String key) {
+		return index.containsKey(key);
+	}
+
+	@Override
+	public void put(String key, String value) {
+		long entryWeight = weigher.weigh(key, value);
+		if (entryWeight > capacity) {
+			remove(key);
+			return;
+		}
+		Node node = index.get(key);
+		if (node != null) {
+			weight -= node.weight;
+			node.value = value;
+			unlink(node);
+		} else {
+			node = new Node(key, value);
+			index.put(key, node);
+		}
+		node.weight = entryWeight;
+		weight += entryWeight;
+		linkFirst(node);
+		while (weight > capacity) { // Stops before the new entry, which fits on its own
+			Node eldest = head.prev;
+			unlink(eldest);
+			index.remove(eldest.key);
+			weight -= eldest.weight;
+		}
+	}
+
+	@Override
+	public void remove(String key) {
+		Node node = index.remove(key);
+		if (node != null) {
+			unlink(node);
+			weight -= node.weight;
+		}
+	}
+
+	@Override
+	public void clear() {
+		index.clear();
+		head.prev = head;
+		head.next = head;
+		weight = 0;
+	}
+
+	@Override
+	public int size() {
+		return index.size();
+	}
+
+	@Override
+	public long getWeight() {
+		return weight;
+	}
+
+	@Override
+	public long getCapacity() {
+		return capacity;
+	}
+
+	private void unlink(Node node) {
+		node.prev.next = node.next;
+		node.next.prev = node.prev;
+	}
+
+	private void linkFirst(Node node) {
+		node.prev = head;
+		node.next = head.next;
+		head.next.prev = node;
+		head.next = node;
+	}
+}
@@ -0,0 +1,113 @@
+package app_kvServer.cache;
+
+/**
+ * Thread-safe cache made of independent segments, each a single-threaded
+ * cache with its own eviction structure and its own lock. A key always maps
+ * to the same segment by its hash, so threads working on keys in different
+ * segments never wait for each other.
+ *
+ * Each segment evicts within its share of the capacity, so eviction is only
+ * approximately global: a segment can evict while another still has room.
+ * With many keys spread by their hash the difference is small.
+ */
+public class SegmentedCache implements Cache {
+
+	private final Cache[] segments;
+	private final int mask;
+
+	/**
+	 * @param segments caches with a share of the capacity each, a power of
+	 * 		two of them; owned and locked by this cache from now on
+	 */
+	public SegmentedCache(Cache[] segments) {
+		if (Integer.bitCount(segments.length) != 1) {
+			throw new IllegalArgumentException("Segment count must be a power of two: " + segments.length);
+		}
+		this.segments = segments.clone();
+		this.mask = segments.length - 1;
+	}
+
+	@Override
+	public String get(String key) {
+		Cache segment = segmentOf(key);
+		synchronized (segment) {
+			return segment.get(key);
+		}
+	}
+
+	@Override
+	public boolean containsKey(String key) {
+		Cache segment = segmentOf(key);
+		synchronized (segment) {
+			return segment.containsKey(key);
+		}
+	}
+
+	@Override
+	public void put(String key, String value) {
+		Cache segment = segmentOf(key);
+		synchronized (segment) {
+			segment.put(key, value);
+		}
+	}
+
+	@Override
+	public void remove(String key) {
+		Cache segment = segmentOf(key);
+		synchronized (segment) {
+			segment.remove(key);
+		}
+	}
+
+	/**
+	 * Clears one segment after the other; entries put meanwhile may survive.
+	 */
+	@Override
+	public void clear() {
+		for (Cache segment : segments) {
+			synchronized (segment) {
+				segment.clear();
+			}
+		}
+	}
+
+	@Override
+	public int size() {
+		int size = 0;
+		for (Cache segment : segments) {
+			synchronized (segment) {
+				size += segment.size();
+			}
+		}
+		return size;
+	}
+
+	@Override
+	public long getWeight() {
+		long weight = 0;
+		for (Cache segment : segments) {
+			synchronized (segment) {
+				weight += segment.getWeight();
+			}
+		}
+		return weight;
+	}
+
+	@Override
+	public long getCapacity() {
+		long capacity = 0;
+		for (Cache segment : segments) {
+			capacity += segment.getCapacity(); // Fixed, no lock needed
+		}
+		return capacity;
+	}
+
+	public int getSegmentCount() {
+		return segments.length;
+	}
+
+	private Cache segmentOf(String key) {
+		int hash = key.hashCode();
+		return segments[(hash ^ (hash >>> 16)) & mask]; // High bits too, since the mask keeps only a few
+	}
+}
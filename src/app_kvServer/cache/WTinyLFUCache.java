@@ -0,0 +1,244 @@
+package app_kvServer.cache;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Window TinyLFU: a small LRU window in front of a segmented LRU main area,
+ * with a frequency sketch deciding what gets into the main area.
+ *
+ * New entries go to the window, which takes WINDOW_PERCENT of the capacity
+ * and absorbs bursts of recent keys. An entry pushed out of the window only
+ * enters the full main area if the sketch has seen it more often than the
+ * entries the main area would evict for it, so a scan of keys read once
+ * cannot flush out frequently used ones. In the main area, entries start
+ * in the probation segment and move to the protected segment when accessed
+ * again; the protected segment pushes its least recently used entries back
+ * to probation.
+ *
+ * The sketch counts every read, hit or miss, and every write, and grows
+ * with the number of cached entries.
+ */
+public class WTinyLFUCache implements Cache {
+
+	private static final int WINDOW_PERCENT = 1;
+	private static final int PROTECTED_PERCENT = 80; // Of the main area
+
+	private final long capacity;
+	private final Weigher weigher;
+	private final long windowCapacity;
+	private final long mainCapacity;
+	private final long protectedCapacity;
+	private final FrequencySketch sketch;
+	// Each in order of last access, least recent first, with its total weight
+	private final LinkedHashMap<String, String> window = new LinkedHashMap<>();
+	private final LinkedHashMap<String, String> probation = new LinkedHashMap<>();
+	private final LinkedHashMap<String, String> protectedSegment = new LinkedHashMap<>();
+	private long windowWeight;
+	private long probationWeight;
+	private long protectedWeight;
+
+	/**
+	 * @param capacity number of entries
+	 */
+	public WTinyLFUCache(long capacity) {
+		this(capacity, Weigher.ENTRIES);
+	}
+
+	public WTinyLFUCache(long capacity, Weigher weigher) {
+		this.capacity = Math.max(1, capacity);
+		this.weigher = weigher;
+		this.windowCapacity = Math.max(1, this.capacity * WINDOW_PERCENT / 100);
+		this.mainCapacity = this.capacity - windowCapacity;
+		this.protectedCapacity = mainCapacity * PROTECTED_PERCENT / 100;
+		this.sketch = new FrequencySketch((int) Math.min(this.capacity, 1024));
+	}
+
+	@Override
+	public String get(String key) {
+		sketch.increment(key);
+		String value = window.remove(key);
+		if (value != null) {
+			window.put(key, value);
+			return value;
+		}
+		value = probation.remove(key);
+		if (value != null) {
+			probationWeight -= weigher.weigh(key, value);
+			protect(key, value);
+			return value;
+		}
+		value = protectedSegment.remove(key);
+		if (value != null) {
+			protectedSegment.put(key, value);
+		}
+		return value;
+	}
+
+	@Override
+	public boolean containsKey(String key) {
+		return window.containsKey(key) || probation.containsKey(key) || protectedSegment.containsKey(key);
+	}
+
+	@Override
+	public void put(String key, String value) {
+		long entryWeight = weigher.weigh(key, value);
+		if (entryWeight > capacity) {
+			remove(key);
+			return;
+		}
+		sketch.increment(key);
+		String previous;
+		if ((previous = window.remove(key)) != null) {
+			windowWeight -= weigher.weigh(key, previous);
+			addToWindow(key, value, entryWeight);
+		} else if ((previous = probation.remove(key)) != null) {
+			probationWeight -= weigher.weigh(key, previous);
+			protect(key, value);
+		} else if ((previous = protectedSegment.remove(key)) != null) {
+			protectedWeight -= weigher.weigh(key, previous);
+			protectedSegment.put(key, value);
+			protectedWeight += entryWeight;
+			trimMain(); // The new value may be heavier
+		} else {
+			addToWindow(key, value, entryWeight);
+			sketch.ensureCapacity(size());
+		}
+	}
+
+	// Adds an entry to the window and offers what falls out of it to the main area
+	private void addToWindow(String key, String value, long entryWeight) {
+		window.put(key, value);
+		windowWeight += entryWeight;
+		while (windowWeight > windowCapacity) { // An entry heavier than the window goes straight on
+			Map.Entry<String, String> candidate = removeEldest(window);
+			long candidateWeight = weigher.weigh(candidate.getKey(), candidate.getValue());
+			windowWeight -= candidateWeight;
+			admit(candidate.getKey(), candidate.getValue(), candidateWeight);
+		}
+	}
+
+	// Moves an entry accessed on probation to the protected segment
+	private void protect(String key, String value) {
+		long entryWeight = weigher.weigh(key, value);
+		if (entryWeight > protectedCapacity) {
+			probation.put(key, value);
+			probationWeight += entryWeight;
+			trimMain();
+			return;
+		}
+		protectedSegment.put(key, value);
+		protectedWeight += entryWeight;
+		while (protectedWeight > protectedCapacity) {
+			Map.Entry<String, String> demoted = removeEldest(protectedSegment);
+			long demotedWeight = weigher.weigh(demoted.getKey(), demoted.getValue());
+			protectedWeight -= demotedWeight;
+			probation.put(demoted.getKey(), demoted.getValue());
+			probationWeight += demotedWeight;
+		}
+		trimMain();
+	}
+
+	/*
+	 * Lets an entry from the window into the main area if there is room, or
+	 * if it is used more often than each entry that has to make room for it.
+	 * All of those are compared before any is evicted, so a rejected entry
+	 * leaves the main area as it was
+	 */
+	private void admit(String key, String value, long entryWeight) {
+		if (entryWeight > mainCapacity) {
+			return;
+		}
+		long excess = probationWeight + protectedWeight + entryWeight - mainCapacity;
+		if (excess > 0 && sketch.frequency(key) <= maxVictimFrequency(excess)) {
+			return; // Rejected
+		}
+		while (probationWeight + protectedWeight + entryWeight > mainCapacity) {
+			evictEldest(!probation.isEmpty());
+		}
+		probation.put(key, value);
+		probationWeight += entryWeight;
+	}
+
+	// Highest frequency among the eldest entries, probation first, that free weight
+	private int maxVictimFrequency(long weight) {
+		int max = 0;
+		for (LinkedHashMap<String, String> segment : Arrays.asList(probation, protectedSegment)) {
+			for (Map.Entry<String, String> victim : segment.entrySet()) {
+				if (weight <= 0) {
+					return max;
+				}
+				max = Math.max(max, sketch.frequency(victim.getKey()));
+				weight -= weigher.weigh(victim.getKey(), victim.getValue());
+			}
+		}
+		return max;
+	}
+
+	// Evicts from probation, then from protected, until the main area fits its capacity
+	private void trimMain() {
+		while (probationWeight + protectedWeight > mainCapacity) {
+			evictEldest(!probation.isEmpty());
+		}
+	}
+
+	private void evictEldest(boolean fromProbation) {
+		Map.Entry<String, String> evicted = removeEldest(fromProbation ? probation : protectedSegment);
+		long evictedWeight = weigher.weigh(evicted.getKey(), evicted.getValue());
+		if (fromProbation) {
+			probationWeight -= evictedWeight;
+		} else {
+			protectedWeight -= evictedWeight;
+		}
+	}
+
+	private static Map.Entry<String, String> removeEldest(LinkedHashMap<String, String> segment) {
+		Iterator<Map.Entry<String, String>> it = segment.entrySet().iterator();
+		Map.Entry<String, String> eldest = it.next();
+		String key = eldest.getKey();
+		String value = eldest.getValue();
+		it.remove();
+		return new SimpleImmutableEntry<>(key, value);
+	}
+
+	@Override
+	public void remove(String key) {
+		String value;
+		if ((value = window.remove(key)) != null) {
+			windowWeight -= weigher.weigh(key, value);
+		} else if ((value = probation.remove(key)) != null) {
+			probationWeight -= weigher.weigh(key, value);
+		} else if ((value = protectedSegment.remove(key)) != null) {
+			protectedWeight -= weigher.weigh(key, value);
+		}
+	}
+
+	@Override
+	public void clear() {
+		window.clear();
+		probation.clear();
+		protectedSegment.clear();
+		windowWeight = 0;
+		probationWeight = 0;
+		protectedWeight = 0;
+		sketch.clear();
+	}
+
+	@Override
+	public int size() {
+		return window.size() + probation.size() + protectedSegment.size();
+	}
+
+	@Override
+	public long getWeight() {
+		return windowWeight + probationWeight + protectedWeight;
+	}
+
+	@Override
+	public long getCapacity() {
+		return capacity;
+	}
+}
@@ -0,0 +1,34 @@
+package app_kvServer.cache;
+
+/**
+ * Weight of a cache entry; a cache's capacity is the total weight it holds.
+ */
+public interface Weigher {
+
+	/**
+	 * Every entry weighs 1, so the capacity is a number of entries.
+	 */
+	public static final Weigher ENTRIES = new Weigher() {
+		@Override
+		public long weigh(String key, String value) {
+			return 1;
+		}
+	};
+
+	/**
+	 * Estimated heap bytes of the entry: both strings at two bytes per char
+	 * with their object headers, and the cache's own node for the entry. A
+	 * JVM with compact strings may use less, never more.
+	 */
+	public static final Weigher BYTES = new Weigher() {
+		private static final int STRING_OVERHEAD = 40; // String and char array headers and fields
+		private static final int ENTRY_OVERHEAD = 64; // Map entry and list links
+
+		@Override
+		public long weigh(String key, String value) {
+			return ENTRY_OVERHEAD + 2 * STRING_OVERHEAD + 2L * (key.length() + value.length());
+		}
+	};
+
+	public long weigh(String key, String value);
+}
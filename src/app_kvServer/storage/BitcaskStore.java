@@ -0,0 +1,691 @@
+package app_kvServer.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hashed log storage engine in the style of Bitcask.
+ *
+ * Values live in append-only data files; the heap only holds a directory
+ * from every key to the file, offset and length of its latest value, so a
+ * GET is one hash lookup plus one positional read. When a data file is
+ * closed (because it grew too large or the store shuts down) a hint file is
+ * written next to it listing the directory entries it contributes. On open
+ * the directory is rebuilt from the hint files and only data files without
+ * a hint (e.g. after a crash) are scanned record by record.
+ *
+ * Once enough closed data files pile up they are merged in the background:
+ * their live values are copied into one new file and the inputs, with their
+ * overwritten values and tombstones, are deleted. The merged file starts
+ * with a marker record naming its newest input, so an open after a crash in
+ * the middle of a merge deletes leftover inputs and loads the merged file
+ * before all newer ones. Merges are throttled by a {@link RateLimiter}.
+ *
+ * Data record: see {@link Record}; a deletion is a record flagged as tombstone
+ * Hint record: int keyLength, key, byte flags, long valueOffset, int valueLength
+ */
+public class BitcaskStore implements StorageEngine {
+
+	private static final Logger LOGGER = Logger.getLogger(BitcaskStore.class.getName());
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	public static final long DEFAULT_MAX_FILE_BYTES = 64L * 1024 * 1024;
+	public static final int DEFAULT_MERGE_TRIGGER = 4;
+	public static final long DEFAULT_COMPACTION_BYTES_PER_SECOND = 16L * 1024 * 1024;
+
+	private static final byte FLAG_TOMBSTONE = Record.FLAG_TOMBSTONE;
+	private static final byte FLAG_MERGED = 2; // Marker record of a merged file; its value is the newest input id
+	private static final String DATA_SUFFIX = ".data";
+	private static final String HINT_SUFFIX = ".hint";
+
+	private final File dir;
+	private final long maxFileBytes;
+	private final Durability durability;
+	private final int mergeTrigger;
+	private final RateLimiter limiter;
+	private GroupCommit commit;
+	private ExecutorService merger;
+	private boolean mergeScheduled;
+	private long clears; // Bumped by clear, so a merge running across it discards its result
+
+	private final ConcurrentMap<String, Location> directory = new ConcurrentHashMap<>();
+	private final Map<Integer, FileChannel> readers = new ConcurrentHashMap<>();
+	private FileChannel active;
+	private int activeId;
+	private int nextFileId;
+	private long activeSize;
+	private Set<String> activeTombstones = new HashSet<>(); // Keys last deleted in the active file
+	private boolean open;
+
+	/**
+	 * Position of the current value of a key.
+	 */
+	private static class Location {
+		final int fileId;
+		final long offset;
+		final int length;
+
+		Location(int fileId, long offset, int length) {
+			this.fileId = fileId;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	public BitcaskStore(File dir) {
+		this(dir, DEFAULT_MAX_FILE_BYTES);
+	}
+
+	/**
+	 * @param dir directory holding the data and hint files
+	 * @param maxFileBytes size at which the active data file is closed and a
+	 * 		new one is started
+	 */
+	public BitcaskStore(File dir, long maxFileBytes) {
+		this(dir, maxFileBytes, Durability.DEFAULT);
+	}
+
+	/**
+	 * @param durability when appended records are synced to disk
+	 */
+	public BitcaskStore(File dir, long maxFileBytes, Durability durability) {
+		this(dir, maxFileBytes, durability, DEFAULT_MERGE_TRIGGER, DEFAULT_COMPACTION_BYTES_PER_SECOND);
+	}
+
+	/**
+	 * @param mergeTrigger number of closed data files that starts a merge
+	 * @param compactionBytesPerSecond I/O rate of merges, 0 for no limit
+	 */
+	public BitcaskStore(File dir, long maxFileBytes, Durability durability, int mergeTrigger,
+			long compactionBytesPerSecond) {
+		this.dir = dir;
+		this.maxFileBytes = maxFileBytes;
+		this.durability = durability;
+		this.mergeTrigger = Math.max(2, mergeTrigger);
+		this.limiter = new RateLimiter(compactionBytesPerSecond);
+	}
+
+	/**
+	 * Rebuilds the key directory from hint files (or data files lacking one)
+	 * and starts a fresh active data file.
+	 */
+	@Override
+	public synchronized void open() throws IOException {
+		if (open) {
+			return;
+		}
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create storage directory " + dir);
+		}
+		long started = System.currentTimeMillis();
+		int hinted = 0;
+		int scanned = 0;
+		List<Integer> ids = listDataFiles();
+		nextFileId = ids.isEmpty() ? 1 : ids.get(ids.size() - 1) + 1;
+		for (int id : orderForLoading(ids)) {
+			readers.put(id, FileChannel.open(dataFile(id).toPath(), StandardOpenOption.READ));
+			if (hintFile(id).exists()) {
+				loadHints(id);
+				hinted++;
+			} else {
+				writeHints(id, scanDataFile(id));
+				scanned++;
+			}
+		}
+		activeId = nextFileId++;
+		openActive();
+		commit = new GroupCommit(dir.getName(), new GroupCommit.Syncable() {
+			@Override
+			public void sync(boolean force) throws IOException {
+				syncActive(force);
+			}
+		}, durability);
+		merger = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "merge-" + dir.getName());
+				thread.setDaemon(true); // A store that is never closed must not keep the JVM alive
+				return thread;
+			}
+		});
+		open = true;
+		LOGGER.info("Opened bitcask store in " + dir + ": " + directory.size() + " keys from " + hinted
+				+ " hint files and " + scanned + " scanned data files in " + (System.currentTimeMillis() - started) + " ms");
+		scheduleMergeIfDue();
+	}
+
+	/**
+	 * Deletes the inputs a crash left next to the newest merged file and puts
+	 * that file first, since its values are older than those of every other
+	 * remaining file.
+	 * @param ids data files in the directory in ascending order
+	 */
+	private List<Integer> orderForLoading(List<Integer> ids) throws IOException {
+		for (int i = ids.size() - 1; i >= 0; i--) {
+			int merged = ids.get(i);
+			int newestInput = mergedInputOf(merged);
+			if (newestInput < 0) {
+				continue;
+			}
+			List<Integer> order = new ArrayList<>();
+			order.add(merged);
+			for (int id : ids) {
+				if (id <= newestInput) {
+					LOGGER.warning("Deleting data file " + id + " left over from the merge into file " + merged);
+					Files.deleteIfExists(dataFile(id).toPath());
+					Files.deleteIfExists(hintFile(id).toPath());
+				} else if (id != merged) {
+					order.add(id);
+				}
+			}
+			return order;
+		}
+		return ids;
+	}
+
+	// Newest input of a merged file, or -1 if the file is not the result of a merge
+	private int mergedInputOf(int id) throws IOException {
+		try (RecordReader reader = new RecordReader(dataFile(id), 0)) {
+			Record first = reader.next();
+			return first != null && first.hasFlag(FLAG_MERGED) ? Integer.parseInt(first.getValue()) : -1;
+		}
+	}
+
+	/**
+	 * Reads the latest value of a key. If a merge moves the value while it
+	 * is being read, the read is repeated at the new location.
+	 */
+	@Override
+	public String get(String key) throws IOException {
+		while (true) {
+			Location location = directory.get(key);
+			if (location == null) {
+				return null;
+			}
+			FileChannel channel = readers.get(location.fileId);
+			if (channel != null) {
+				try {
+					return new String(read(channel, location), UTF8);
+				} catch (ClosedChannelException e) {
+					// Merged away after the directory lookup
+				}
+			}
+			if (directory.get(key) == location) {
+				throw new IOException("Data file " + location.fileId + " holding " + key + " is no longer open");
+			}
+		}
+	}
+
+	private static byte[] read(FileChannel channel, Location location) throws IOException {
+		ByteBuffer value = ByteBuffer.allocate(location.length);
+		while (value.hasRemaining()) {
+			if (channel.read(value, location.offset + value.position()) < 0) {
+				throw new EOFException("Value runs past the end of data file " + location.fileId);
+			}
+		}
+		return value.array();
+	}
+
+	@Override
+	public boolean containsKey(String key) {
+		return directory.containsKey(key);
+	}
+
+	@Override
+	public void put(String key, String value) throws IOException {
+		byte[] valueBytes = value.getBytes(UTF8);
+		long ticket;
+		synchronized (this) {
+			long valueOffset = append(key.getBytes(UTF8), valueBytes, (byte) 0);
+			directory.put(key, new Location(activeId, valueOffset, valueBytes.length));
+			activeTombstones.remove(key);
+			ticket = commit.appended();
+			rotateIfFull();
+		}
+		commit.await(ticket);
+	}
+
+	/**
+	 * Appends a tombstone so the deletion survives a restart and removes the
+	 * key from the directory. The tombstone is dropped by the first merge
+	 * that includes its file.
+	 */
+	@Override
+	public void delete(String key) throws IOException {
+		long ticket;
+		synchronized (this) {
+			append(key.getBytes(UTF8), new byte[0], FLAG_TOMBSTONE);
+			directory.remove(key);
+			activeTombstones.add(key);
+			ticket = commit.appended();
+			rotateIfFull();
+		}
+		commit.await(ticket);
+	}
+
+	// Records go straight to the channel, so only a forced sync has work to do
+	private synchronized void syncActive(boolean force) throws IOException {
+		if (force && active.isOpen()) {
+			active.force(false);
+		}
+	}
+
+	public int size() {
+		return directory.size();
+	}
+
+	/**
+	 * Closes the active data file and writes its hint file. Hints are only
+	 * written for files that will never be appended to again.
+	 */
+	@Override
+	public synchronized void flush() throws IOException {
+		if (open && activeSize > 0) {
+			rotate();
+		}
+	}
+
+	/**
+	 * Deletes all data and hint files and starts over with an empty active file.
+	 */
+	@Override
+	public synchronized void clear() throws IOException {
+		clears++;
+		active.close();
+		for (FileChannel channel : readers.values()) {
+			channel.close();
+		}
+		readers.clear();
+		directory.clear();
+		for (int id : listDataFiles()) {
+			Files.deleteIfExists(dataFile(id).toPath());
+			Files.deleteIfExists(hintFile(id).toPath());
+		}
+		activeId = nextFileId++;
+		openActive();
+		LOGGER.info("Cleared bitcask store in " + dir);
+	}
+
+	/**
+	 * Iterates over the keys in the directory, reading each value when it is
+	 * reached. Keys deleted during the iteration are skipped.
+	 */
+	@Override
+	public Iterator<Map.Entry<String, String>> iterator() {
+		final Iterator<String> keys = directory.keySet().iterator();
+		return new Iterator<Map.Entry<String, String>>() {
+			private Map.Entry<String, String> next = advance();
+
+			private Map.Entry<String, String> advance() {
+				while (keys.hasNext()) {
+					String key = keys.next();
+					try {
+						String value = get(key);
+						if (value != null) {
+							return new SimpleImmutableEntry<>(key, value);
+						}
+					} catch (IOException e) {
+						throw new IllegalStateException("Error reading value of " + key, e);
+					}
+				}
+				return null;
+			}
+
+			@Override
+			public boolean hasNext() {
+				return next != null;
+			}
+
+			@Override
+			public Map.Entry<String, String> next() {
+				if (next == null) {
+					throw new NoSuchElementException();
+				}
+				Map.Entry<String, String> current = next;
+				next = advance();
+				return current;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	// Writes one record to the active file and returns the offset of its value
+	private long append(byte[] key, byte[] value, byte flags) throws IOException {
+		ByteBuffer record = Record.encode(key, value, flags);
+		long recordOffset = activeSize;
+		activeSize += writeFully(active, record, activeSize);
+		return recordOffset + Record.HEADER_BYTES + key.length;
+	}
+
+	private static long writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		long written = 0;
+		while (buffer.hasRemaining()) {
+			written += channel.write(buffer, position + written);
+		}
+		return written;
+	}
+
+	private void rotateIfFull() throws IOException {
+		if (activeSize >= maxFileBytes) {
+			rotate();
+		}
+	}
+
+	private void rotate() throws IOException {
+		active.force(false); // Writes waiting for a group commit on this file are covered
+		active.close();
+		writeHints(activeId, activeTombstones);
+		activeId = nextFileId++;
+		openActive();
+		scheduleMergeIfDue();
+	}
+
+	private void openActive() throws IOException {
+		File file = dataFile(activeId);
+		active = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		activeSize = 0;
+		activeTombstones = new HashSet<>();
+		readers.put(activeId, FileChannel.open(file.toPath(), StandardOpenOption.READ));
+	}
+
+	// Caller holds this store's lock
+	private void scheduleMergeIfDue() {
+		if (mergeScheduled || readers.size() - 1 < mergeTrigger) {
+			return;
+		}
+		mergeScheduled = true;
+		merger.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					merge();
+				} catch (IOException | RuntimeException e) {
+					LOGGER.log(Level.SEVERE, "Merge of data files in " + dir + " failed", e);
+				} finally {
+					synchronized (BitcaskStore.this) {
+						mergeScheduled = false;
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Copies the live values of all closed data files into one new file, then
+	 * points the directory at it and deletes the inputs. Writes continue while
+	 * the values are copied; a key written again meanwhile keeps its newer
+	 * location.
+	 */
+	private void merge() throws IOException {
+		long started = System.currentTimeMillis();
+		Set<Integer> inputs = new HashSet<>();
+		int newestInput = -1;
+		int outputId;
+		long clearsBefore;
+		synchronized (this) {
+			if (!open) {
+				return;
+			}
+			for (int id : readers.keySet()) {
+				if (id != activeId) {
+					inputs.add(id);
+					newestInput = Math.max(newestInput, id);
+				}
+			}
+			outputId = nextFileId++;
+			clearsBefore = clears;
+		}
+
+		File tmp = new File(dir, outputId + DATA_SUFFIX + ".tmp");
+		List<String> keys = new ArrayList<>();
+		List<Location> from = new ArrayList<>();
+		List<Location> to = new ArrayList<>();
+		try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			long size = writeFully(out, Record.encode("", String.valueOf(newestInput), FLAG_MERGED), 0);
+			for (Map.Entry<String, Location> entry : directory.entrySet()) {
+				Location location = entry.getValue();
+				if (!inputs.contains(location.fileId)) {
+					continue;
+				}
+				FileChannel channel = readers.get(location.fileId);
+				if (channel == null) {
+					throw new IOException("Data file " + location.fileId + " vanished during the merge");
+				}
+				byte[] key = entry.getKey().getBytes(UTF8);
+				ByteBuffer record = Record.encode(key, read(channel, location), (byte) 0);
+				limiter.acquire(location.length + record.remaining()); // Value read plus record written
+				keys.add(entry.getKey());
+				from.add(location);
+				to.add(new Location(outputId, size + Record.HEADER_BYTES + key.length, location.length));
+				size += writeFully(out, record, size);
+			}
+			out.force(false);
+		} catch (IOException e) {
+			Files.deleteIfExists(tmp.toPath());
+			throw e;
+		}
+
+		long inputBytes = 0;
+		synchronized (this) {
+			if (!open || clears != clearsBefore) {
+				Files.deleteIfExists(tmp.toPath());
+				return;
+			}
+			Files.move(tmp.toPath(), dataFile(outputId).toPath(), StandardCopyOption.ATOMIC_MOVE);
+			readers.put(outputId, FileChannel.open(dataFile(outputId).toPath(), StandardOpenOption.READ));
+			for (int i = 0; i < keys.size(); i++) {
+				directory.replace(keys.get(i), from.get(i), to.get(i)); // Unless written again meanwhile
+			}
+			writeHints(outputId, Collections.<String>emptySet());
+			for (int id : inputs) {
+				inputBytes += dataFile(id).length();
+				readers.remove(id).close();
+				Files.deleteIfExists(dataFile(id).toPath());
+				Files.deleteIfExists(hintFile(id).toPath());
+			}
+		}
+		LOGGER.info("Merged " + inputs.size() + " data files of " + inputBytes + " bytes into file " + outputId + " of "
+				+ dataFile(outputId).length() + " bytes with " + keys.size() + " keys in "
+				+ (System.currentTimeMillis() - started) + " ms");
+	}
+
+	/**
+	 * Waits for a running merge, writes the hint file of the active data file
+	 * so the next open can skip scanning it, then closes all files.
+	 */
+	@Override
+	public void close() throws IOException {
+		GroupCommit current;
+		ExecutorService currentMerger;
+		synchronized (this) {
+			if (!open) {
+				return;
+			}
+			current = commit;
+			currentMerger = merger;
+		}
+		currentMerger.shutdown(); // A merge takes this store's lock to finish, so it is not awaited while holding it
+		try {
+			currentMerger.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		current.close(); // Final sync; takes this store's lock, so not called while holding it
+		synchronized (this) {
+			closeFiles();
+		}
+		LOGGER.info("Closed bitcask store in " + dir);
+	}
+
+	private void closeFiles() throws IOException {
+		if (!open) {
+			return;
+		}
+		active.close();
+		if (activeSize > 0) {
+			writeHints(activeId, activeTombstones);
+		} else {
+			readers.remove(activeId).close();
+			Files.deleteIfExists(dataFile(activeId).toPath());
+		}
+		for (FileChannel channel : readers.values()) {
+			channel.close();
+		}
+		readers.clear();
+		directory.clear();
+		open = false;
+	}
+
+	/**
+	 * Rebuilds directory entries by reading every record of a data file. A
+	 * torn record at the end, left by a crash, is truncated away.
+	 * @return keys whose last record in the file is a tombstone
+	 */
+	private Set<String> scanDataFile(int id) throws IOException {
+		Set<String> tombstones = new HashSet<>();
+		try (RecordReader reader = new RecordReader(dataFile(id), 0)) {
+			Record record;
+			while ((record = reader.next()) != null) {
+				if (record.hasFlag(FLAG_MERGED)) {
+					continue;
+				}
+				String name = record.getKey();
+				byte flags = record.isTombstone() ? FLAG_TOMBSTONE : 0;
+				applyEntry(name, flags, id, record.getValueOffset(), record.getValueLength());
+				if (record.isTombstone()) {
+					tombstones.add(name);
+				} else {
+					tombstones.remove(name);
+				}
+			}
+			reader.truncateTornTail();
+		}
+		return tombstones;
+	}
+
+	private void loadHints(int id) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(hintFile(id)), 64 * 1024))) {
+			while (true) {
+				int keyLength;
+				try {
+					keyLength = in.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+				byte[] key = new byte[keyLength];
+				in.readFully(key);
+				byte flags = in.readByte();
+				long valueOffset = in.readLong();
+				int valueLength = in.readInt();
+				applyEntry(new String(key, UTF8), flags, id, valueOffset, valueLength);
+			}
+		}
+	}
+
+	private void applyEntry(String key, byte flags, int fileId, long valueOffset, int valueLength) {
+		if ((flags & FLAG_TOMBSTONE) != 0) {
+			directory.remove(key);
+		} else {
+			directory.put(key, new Location(fileId, valueOffset, valueLength));
+		}
+	}
+
+	/**
+	 * Writes the hint file of a closed data file: one entry for every key
+	 * whose latest record in that file is a value or a tombstone.
+	 */
+	private void writeHints(int id, Set<String> tombstones) throws IOException {
+		File tmp = new File(dir, id + HINT_SUFFIX + ".tmp");
+		FileOutputStream fileOut = new FileOutputStream(tmp);
+		int entries = 0;
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 64 * 1024))) {
+			for (Map.Entry<String, Location> entry : directory.entrySet()) {
+				Location location = entry.getValue();
+				if (location.fileId == id) {
+					writeHint(out, entry.getKey(), (byte) 0, location.offset, location.length);
+					entries++;
+				}
+			}
+			for (String deleted : tombstones) {
+				writeHint(out, deleted, FLAG_TOMBSTONE, 0, 0);
+				entries++;
+			}
+			out.flush();
+			fileOut.getFD().sync();
+		}
+		Files.move(tmp.toPath(), hintFile(id).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		LOGGER.fine("Wrote " + entries + " hints for data file " + id);
+	}
+
+	private static void writeHint(DataOutputStream out, String key, byte flags, long offset, int length) throws IOException {
+		byte[] keyBytes = key.getBytes(UTF8);
+		out.writeInt(keyBytes.length);
+		out.write(keyBytes);
+		out.writeByte(flags);
+		out.writeLong(offset);
+		out.writeInt(length);
+	}
+
+	private List<Integer> listDataFiles() {
+		List<Integer> ids = new ArrayList<>();
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				String name = file.getName();
+				if (name.endsWith(DATA_SUFFIX)) {
+					try {
+						ids.add(Integer.parseInt(name.substring(0, name.length() - DATA_SUFFIX.length())));
+					} catch (NumberFormatException e) {
+						LOGGER.warning("Ignoring unexpected file " + file);
+					}
+				}
+			}
+		}
+		Collections.sort(ids);
+		return ids;
+	}
+
+	private File dataFile(int id) {
+		return new File(dir, id + DATA_SUFFIX);
+	}
+
+	private File hintFile(int id) {
+		return new File(dir, id + HINT_SUFFIX);
+	}
+}
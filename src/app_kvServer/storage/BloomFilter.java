@@ -0,0 +1,145 @@
+package app_kvServer.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+
+/**
+ * Set membership filter over keys: {@link #mightContain(String)} never
+ * returns false for a key that was added, and returns true for a key that
+ * was not added with roughly the false-positive rate the filter was sized
+ * for. Lets a lookup skip a {@link Segment} that cannot hold the key
+ * without reading it.
+ *
+ * File layout: int MAGIC, int hashCount, int wordCount, long[wordCount] bits, int crc
+ */
+class BloomFilter {
+
+	private static final int MAGIC = 0x424C4D31; // "BLM1"
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final long[] bits;
+	private final int hashCount;
+	private final long bitCount;
+
+	private BloomFilter(long[] bits, int hashCount) {
+		this.bits = bits;
+		this.hashCount = hashCount;
+		this.bitCount = (long) bits.length * 64;
+	}
+
+	/**
+	 * Creates an empty filter sized for the given number of keys.
+	 */
+	static BloomFilter create(long expectedKeys, double falsePositiveRate) {
+		long keys = Math.max(1, expectedKeys);
+		double ln2 = Math.log(2);
+		long wantedBits = (long) Math.ceil(-keys * Math.log(falsePositiveRate) / (ln2 * ln2));
+		int words = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(1, (wantedBits + 63) / 64));
+		int hashCount = (int) Math.max(1, Math.round((double) words * 64 / keys * ln2));
+		return new BloomFilter(new long[words], Math.min(hashCount, 30));
+	}
+
+	void add(String key) {
+		long hash = hash(key);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		for (int i = 1; i <= hashCount; i++) {
+			long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % bitCount;
+			bits[(int) (bit >>> 6)] |= 1L << bit;
+		}
+	}
+
+	boolean mightContain(String key) {
+		long hash = hash(key);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		for (int i = 1; i <= hashCount; i++) {
+			long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % bitCount;
+			if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// 64-bit FNV-1a over the UTF-8 bytes, finished with the MurmurHash3 mixer
+	private static long hash(String key) {
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : key.getBytes(UTF8)) {
+			hash ^= b & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb93fe53d1a87L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+	/**
+	 * Writes the filter to a temporary file, syncs it and moves it into place.
+	 */
+	void write(File file) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		FileOutputStream fileOut = new FileOutputStream(tmp);
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 64 * 1024))) {
+			out.writeInt(MAGIC);
+			out.writeInt(hashCount);
+			out.writeInt(bits.length);
+			for (long word : bits) {
+				out.writeLong(word);
+			}
+			out.writeInt(checksum(bits));
+			out.flush();
+			fileOut.getFD().sync();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * @return the filter stored in the file, or null if it is missing or damaged
+	 */
+	static BloomFilter read(File file) throws IOException {
+		if (!file.exists()) {
+			return null;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024))) {
+			if (file.length() < 16 || in.readInt() != MAGIC) {
+				return null;
+			}
+			int hashCount = in.readInt();
+			int words = in.readInt();
+			if (hashCount < 1 || words < 1 || file.length() != 16L + 8L * words) {
+				return null;
+			}
+			long[] bits = new long[words];
+			for (int i = 0; i < words; i++) {
+				bits[i] = in.readLong();
+			}
+			return in.readInt() == checksum(bits) ? new BloomFilter(bits, hashCount) : null;
+		}
+	}
+
+	private static int checksum(long[] bits) {
+		CRC32 crc = new CRC32();
+		byte[] word = new byte[8];
+		for (long value : bits) {
+			for (int i = 0; i < 8; i++) {
+				word[i] = (byte) (value >>> (56 - 8 * i));
+			}
+			crc.update(word, 0, 8);
+		}
+		return (int) crc.getValue();
+	}
+}
@@ -0,0 +1,31 @@
+package app_kvServer.storage;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Signals a damaged record in the middle of a storage file, i.e. one that
+ * is followed by intact records and therefore is not a torn write left by a
+ * crash.
+ */
+public class CorruptRecordException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final File file;
+	private final long offset;
+
+	public CorruptRecordException(File file, long offset) {
+		super("Corrupt record at offset " + offset + " of " + file + " is followed by valid records");
+		this.file = file;
+		this.offset = offset;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public long getOffset() {
+		return offset;
+	}
+}
@@ -0,0 +1,326 @@
+package app_kvServer.storage;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Storage engine that keeps each distinct large value once, however many
+ * keys hold it.
+ *
+ * A value of at least the minimum length is stored in the wrapped engine
+ * under a blob key derived from its SHA-256 hash, and the key itself only
+ * holds a reference to that blob. Reference counts live on the heap and are
+ * rebuilt from the references on open; a blob is deleted when its last
+ * reference goes away. A blob is always written before the first reference
+ * to it and deleted after the last one, so a crash can leave an unused blob
+ * (removed on the next open) but never a reference without its blob.
+ *
+ * Entries in the wrapped engine:
+ * 		BLOB + hash          : the value
+ * 		key                  : value shorter than the minimum length, or REF + hash
+ * Keys and inline values that start with ESCAPE get an extra ESCAPE in front,
+ * so they cannot be taken for blob keys or references.
+ */
+public class DedupStore implements StorageEngine {
+
+	private static final Logger LOGGER = Logger.getLogger(DedupStore.class.getName());
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	public static final int DEFAULT_MIN_VALUE_LENGTH = 256;
+
+	private static final char ESCAPE = '\u0000';
+	private static final String BLOB = ESCAPE + "#"; // Prefix of blob keys
+	private static final String REF = ESCAPE + "#"; // Prefix of references in key entries
+	private static final int STRIPES = 64;
+
+	private final StorageEngine inner;
+	private final int minValueLength;
+	private final Map<String, Blob> blobs = new ConcurrentHashMap<>(); // By hash
+	private final Object[] keyStripes = new Object[STRIPES];
+	private final Object[] blobStripes = new Object[STRIPES];
+
+	/**
+	 * Reference count and length of a stored value. Guarded by the blob stripe
+	 * of its hash.
+	 */
+	private static class Blob {
+		int refs;
+		final int length;
+
+		Blob(int length) {
+			this.length = length;
+		}
+	}
+
+	/**
+	 * @param inner engine holding the references and blobs; opened and
+	 * 		closed by this store
+	 * @param minValueLength length from which values are deduplicated;
+	 * 		shorter values are stored with their key
+	 */
+	public DedupStore(StorageEngine inner, int minValueLength) {
+		this.inner = inner;
+		this.minValueLength = Math.max(1, minValueLength);
+		for (int i = 0; i < STRIPES; i++) {
+			keyStripes[i] = new Object();
+			blobStripes[i] = new Object();
+		}
+	}
+
+	/**
+	 * Opens the wrapped engine, counts the references to every blob and
+	 * deletes blobs that are no longer referenced.
+	 */
+	@Override
+	public void open() throws IOException {
+		inner.open();
+		long started = System.currentTimeMillis();
+		Map<String, Integer> refs = new HashMap<>();
+		for (Iterator<Map.Entry<String, String>> it = inner.iterator(); it.hasNext();) {
+			Map.Entry<String, String> entry = it.next();
+			if (entry.getKey().startsWith(BLOB)) {
+				blobs.put(entry.getKey().substring(BLOB.length()), new Blob(entry.getValue().length()));
+			} else if (entry.getValue().startsWith(REF)) {
+				String hash = entry.getValue().substring(REF.length());
+				Integer count = refs.get(hash);
+				refs.put(hash, count == null ? 1 : count + 1);
+			}
+		}
+		for (Map.Entry<String, Integer> count : refs.entrySet()) {
+			Blob blob = blobs.get(count.getKey());
+			if (blob == null) {
+				throw new IOException("Stored value " + count.getKey() + " is referenced " + count.getValue()
+						+ " times but missing");
+			}
+			blob.refs = count.getValue();
+		}
+		List<String> unused = new ArrayList<>();
+		for (Map.Entry<String, Blob> blob : blobs.entrySet()) {
+			if (blob.getValue().refs == 0) {
+				unused.add(blob.getKey());
+			}
+		}
+		for (String hash : unused) {
+			blobs.remove(hash);
+			inner.delete(BLOB + hash);
+		}
+		LOGGER.info("Opened dedup store: " + blobs.size() + " shared values, " + unused.size()
+				+ " unreferenced ones deleted in " + (System.currentTimeMillis() - started) + " ms");
+	}
+
+	@Override
+	public void close() throws IOException {
+		LOGGER.info("Closing dedup store: " + getSharedValues() + " shared values save about " + getSavedChars()
+				+ " characters");
+		inner.close();
+		blobs.clear();
+	}
+
+	@Override
+	public String get(String key) throws IOException {
+		String stored = inner.get(escape(key));
+		while (stored != null && stored.startsWith(REF)) {
+			String value = inner.get(BLOB + stored.substring(REF.length()));
+			if (value != null) {
+				return value;
+			}
+			String again = inner.get(escape(key));
+			if (stored.equals(again)) {
+				throw new IOException("Stored value of " + key + " is missing");
+			}
+			stored = again; // Overwritten meanwhile, and the old value released
+		}
+		return unescapeValue(stored);
+	}
+
+	@Override
+	public boolean containsKey(String key) throws IOException {
+		return inner.containsKey(escape(key));
+	}
+
+	@Override
+	public void put(String key, String value) throws IOException {
+		String name = escape(key);
+		synchronized (stripe(keyStripes, key)) {
+			String previous = inner.get(name);
+			if (value.length() >= minValueLength) {
+				String hash = hash(value);
+				acquire(hash, value);
+				inner.put(name, REF + hash);
+			} else {
+				inner.put(name, escapeValue(value));
+			}
+			if (previous != null && previous.startsWith(REF)) {
+				release(previous.substring(REF.length()));
+			}
+		}
+	}
+
+	@Override
+	public void delete(String key) throws IOException {
+		String name = escape(key);
+		synchronized (stripe(keyStripes, key)) {
+			String previous = inner.get(name);
+			inner.delete(name);
+			if (previous != null && previous.startsWith(REF)) {
+				release(previous.substring(REF.length()));
+			}
+		}
+	}
+
+	// Adds a reference to the blob of a value, storing the blob first if it is new
+	private void acquire(String hash, String value) throws IOException {
+		synchronized (stripe(blobStripes, hash)) {
+			Blob blob = blobs.get(hash);
+			if (blob == null) {
+				inner.put(BLOB + hash, value);
+				blob = new Blob(value.length());
+				blobs.put(hash, blob);
+			}
+			blob.refs++;
+		}
+	}
+
+	// Drops a reference and deletes the blob with its last one
+	private void release(String hash) throws IOException {
+		synchronized (stripe(blobStripes, hash)) {
+			Blob blob = blobs.get(hash);
+			if (blob == null) {
+				return;
+			}
+			if (--blob.refs <= 0) {
+				blobs.remove(hash);
+				inner.delete(BLOB + hash);
+			}
+		}
+	}
+
+	@Override
+	public void clear() throws IOException {
+		inner.clear();
+		blobs.clear();
+	}
+
+	@Override
+	public void flush() throws IOException {
+		inner.flush();
+	}
+
+	/**
+	 * Iterates over the keys of the wrapped engine, resolving references.
+	 * Keys deleted during the iteration are skipped.
+	 */
+	@Override
+	public Iterator<Map.Entry<String, String>> iterator() throws IOException {
+		final Iterator<Map.Entry<String, String>> entries = inner.iterator();
+		return new Iterator<Map.Entry<String, String>>() {
+			private Map.Entry<String, String> next = advance();
+
+			private Map.Entry<String, String> advance() {
+				while (entries.hasNext()) {
+					Map.Entry<String, String> entry = entries.next();
+					if (entry.getKey().startsWith(BLOB)) {
+						continue;
+					}
+					String key = unescapeKey(entry.getKey());
+					String value = unescapeValue(entry.getValue());
+					if (entry.getValue().startsWith(REF)) {
+						try {
+							value = get(key);
+						} catch (IOException e) {
+							throw new IllegalStateException("Error reading value of " + key, e);
+						}
+					}
+					if (value != null) {
+						return new SimpleImmutableEntry<>(key, value);
+					}
+				}
+				return null;
+			}
+
+			@Override
+			public boolean hasNext() {
+				return next != null;
+			}
+
+			@Override
+			public Map.Entry<String, String> next() {
+				if (next == null) {
+					throw new NoSuchElementException();
+				}
+				Map.Entry<String, String> current = next;
+				next = advance();
+				return current;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * @return number of distinct values stored as blobs
+	 */
+	public int getSharedValues() {
+		return blobs.size();
+	}
+
+	/**
+	 * @return characters not stored because keys share a blob
+	 */
+	public long getSavedChars() {
+		long saved = 0;
+		for (Blob blob : blobs.values()) {
+			saved += (long) (blob.refs - 1) * blob.length;
+		}
+		return saved;
+	}
+
+	private static String hash(String value) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e); // Required on every JVM
+		}
+		byte[] bytes = digest.digest(value.getBytes(UTF8));
+		StringBuilder hex = new StringBuilder(2 * bytes.length);
+		for (byte b : bytes) {
+			hex.append(Character.forDigit((b >>> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+
+	private static Object stripe(Object[] stripes, String name) {
+		return stripes[(name.hashCode() & Integer.MAX_VALUE) % STRIPES];
+	}
+
+	private static String escape(String key) {
+		return !key.isEmpty() && key.charAt(0) == ESCAPE ? ESCAPE + key : key;
+	}
+
+	private static String unescapeKey(String name) {
+		return !name.isEmpty() && name.charAt(0) == ESCAPE ? name.substring(1) : name;
+	}
+
+	private static String escapeValue(String value) {
+		return !value.isEmpty() && value.charAt(0) == ESCAPE ? ESCAPE + value : value;
+	}
+
+	private static String unescapeValue(String stored) {
+		return stored != null && !stored.isEmpty() && stored.charAt(0) == ESCAPE ? stored.substring(1) : stored;
+	}
+}
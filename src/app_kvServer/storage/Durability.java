@@ -0,0 +1,66 @@
+package app_kvServer.storage;
+
+/**
+ * When a write counts as done, i.e. when the PUT may be acknowledged.
+ *
+ * 		NONE  : asynchronous write-behind; buffered writes are pushed to the OS
+ * 		        every interval and never fsynced by the write path
+ * 		BATCH : group commit; one fsync every interval or every batchRecords
+ * 		        writes completes all writes that are waiting for it
+ * 		SYNC  : every write is fsynced before it is acknowledged
+ */
+public final class Durability {
+
+	public enum Mode {
+		NONE,
+		BATCH,
+		SYNC
+	};
+
+	public static final long DEFAULT_INTERVAL_MILLIS = 2;
+	public static final int DEFAULT_BATCH_RECORDS = 128;
+	public static final Durability DEFAULT = new Durability(Mode.BATCH, DEFAULT_INTERVAL_MILLIS, DEFAULT_BATCH_RECORDS);
+
+	private final Mode mode;
+	private final long intervalMillis;
+	private final int batchRecords;
+
+	public Durability(Mode mode, long intervalMillis, int batchRecords) {
+		this.mode = mode;
+		this.intervalMillis = Math.max(1, intervalMillis);
+		this.batchRecords = Math.max(1, batchRecords);
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	public long getIntervalMillis() {
+		return intervalMillis;
+	}
+
+	public int getBatchRecords() {
+		return batchRecords;
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *      when the name is not one of none, batch or sync
+	 */
+	public static Mode parseMode(String name) {
+		try {
+			return Mode.valueOf(name.toUpperCase());
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Unknown durability mode: " + name);
+		}
+	}
+
+	public static String getPossibleModes() {
+		return "none | batch | sync";
+	}
+
+	@Override
+	public String toString() {
+		return mode == Mode.BATCH ? mode + " (" + intervalMillis + " ms / " + batchRecords + " records)" : mode.toString();
+	}
+}
@@ -0,0 +1,189 @@
+package app_kvServer.storage;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Coordinates making appended records durable according to a
+ * {@link Durability} mode.
+ *
+ * The owner of a file calls {@link #appended()} (under its own lock) right
+ * after buffering a record and later {@link #await(long)} with the returned
+ * ticket, after releasing its lock so other writers can append meanwhile. In
+ * BATCH mode a committer thread syncs once per interval or once enough
+ * records are pending and wakes every writer covered by that sync.
+ */
+class GroupCommit {
+
+	private static final Logger LOGGER = Logger.getLogger(GroupCommit.class.getName());
+
+	/**
+	 * A file that can push everything appended so far to the OS and,
+	 * if asked, to stable storage.
+	 */
+	interface Syncable {
+		void sync(boolean force) throws IOException;
+	}
+
+	private final String name;
+	private final Syncable target;
+	private final Durability durability;
+	private final Object syncLock = new Object(); // One sync at a time
+
+	private long appended;
+	private long durable;
+	private long failedUpTo;
+	private IOException failure;
+	private boolean closed;
+	private Thread committer;
+
+	GroupCommit(String name, Syncable target, Durability durability) {
+		this.name = name;
+		this.target = target;
+		this.durability = durability;
+		if (durability.getMode() != Durability.Mode.SYNC) {
+			committer = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					runCommitter();
+				}
+			}, "group-commit-" + name);
+			committer.setDaemon(true);
+			committer.start();
+		}
+	}
+
+	/**
+	 * Registers a record that was just buffered.
+	 * @return ticket to pass to {@link #await(long)}
+	 */
+	synchronized long appended() {
+		long ticket = ++appended;
+		long pending = ticket - durable;
+		if (pending == 1 || pending >= durability.getBatchRecords()) {
+			notifyAll(); // First record starts the interval, a full batch ends it early
+		}
+		return ticket;
+	}
+
+	/**
+	 * Blocks until the record with the given ticket is as durable as the mode
+	 * promises. Returns immediately in NONE mode.
+	 * @throws IOException
+	 *      when the sync covering the record failed
+	 */
+	void await(long ticket) throws IOException {
+		switch (durability.getMode()) {
+			case NONE:
+				return;
+			case SYNC:
+				synchronized (syncLock) {
+					if (!isDurable(ticket)) {
+						commit(true);
+					}
+				}
+				return;
+			case BATCH:
+				synchronized (this) {
+					while (durable < ticket) {
+						if (failure != null && ticket <= failedUpTo) {
+							throw failure;
+						}
+						if (closed) {
+							throw new IOException("Log " + name + " closed before the write was synced");
+						}
+						try {
+							wait();
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							throw new IOException("Interrupted while waiting for group commit", e);
+						}
+					}
+				}
+				return;
+		}
+	}
+
+	private synchronized boolean isDurable(long ticket) {
+		return durable >= ticket;
+	}
+
+	// Caller holds syncLock
+	private void commit(boolean force) throws IOException {
+		long upTo;
+		synchronized (this) {
+			upTo = appended;
+		}
+		try {
+			target.sync(force);
+		} catch (IOException e) {
+			synchronized (this) {
+				failure = e;
+				failedUpTo = upTo;
+				notifyAll();
+			}
+			throw e;
+		}
+		synchronized (this) {
+			durable = Math.max(durable, upTo);
+			notifyAll();
+		}
+	}
+
+	private void runCommitter() {
+		boolean force = durability.getMode() == Durability.Mode.BATCH;
+		while (true) {
+			synchronized (this) {
+				try {
+					while (!closed && appended == durable) {
+						wait();
+					}
+					if (closed) {
+						return;
+					}
+					// Gather more records until the interval ends or the batch is full
+					long deadline = System.currentTimeMillis() + durability.getIntervalMillis();
+					long now;
+					while (!closed && appended - durable < durability.getBatchRecords()
+							&& (now = System.currentTimeMillis()) < deadline) {
+						wait(deadline - now);
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+			try {
+				synchronized (syncLock) {
+					commit(force);
+				}
+			} catch (IOException e) {
+				LOGGER.log(Level.SEVERE, "Group commit of " + name + " failed", e);
+			}
+		}
+	}
+
+	/**
+	 * Syncs everything still pending to stable storage and stops the
+	 * committer thread.
+	 */
+	void close() throws IOException {
+		try {
+			synchronized (syncLock) {
+				commit(true);
+			}
+		} finally {
+			synchronized (this) {
+				closed = true;
+				notifyAll();
+			}
+			if (committer != null && committer != Thread.currentThread()) {
+				try {
+					committer.join();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+}
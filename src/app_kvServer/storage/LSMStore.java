@@ -0,0 +1,838 @@
+package app_kvServer.storage;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Log-structured merge storage engine.
+ *
+ * Writes go to a write-ahead log and a sorted in-memory memtable. A full
+ * memtable is frozen and flushed in the background to an immutable sorted
+ * {@link Segment} file, so only the memtable has to fit in the heap. Lookups
+ * check the memtable, the memtables being flushed and then the segments from
+ * newest to oldest. Once enough segments pile up they are merged into one in
+ * the background; the merge keeps only the newest version of every key and
+ * drops deleted keys.
+ *
+ * Flushes and compactions run on threads of their own, so a compaction
+ * throttled to its I/O rate never holds up a flush. Writers wait once
+ * MAX_PENDING_FLUSHES memtables are frozen and not yet flushed, so memtables
+ * and their logs cannot pile up faster than they reach the disk.
+ *
+ * The list of live segments is kept in a MANIFEST file that is replaced
+ * atomically, so a crash during a flush or a compaction never exposes a
+ * half-written set of segments.
+ *
+ * Every segment has a Bloom filter, so a lookup of a missing key usually
+ * touches no segment file at all.
+ */
+public class LSMStore implements OrderedStorageEngine {
+
+	private static final Logger LOGGER = Logger.getLogger(LSMStore.class.getName());
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	public static final long DEFAULT_MEMTABLE_BYTES = 4 * 1024 * 1024;
+	public static final int DEFAULT_COMPACTION_TRIGGER = 4;
+	public static final double DEFAULT_BLOOM_FALSE_POSITIVE_RATE = 0.01;
+	public static final long DEFAULT_COMPACTION_BYTES_PER_SECOND = 16L * 1024 * 1024;
+	public static final int MAX_PENDING_FLUSHES = 4;
+
+	private static final String MANIFEST_FILE = "MANIFEST";
+	private static final String LOG_PREFIX = "wal-";
+	private static final String LOG_SUFFIX = ".log";
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".sst";
+
+	private final File dir;
+	private final long memtableBytes;
+	private final int compactionTrigger;
+	private final Durability durability;
+	private final double bloomFalsePositiveRate;
+	private final RateLimiter compactionLimiter;
+
+	// Guards memtable, flushing and segments; lookups take the read lock
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private Memtable memtable;
+	private final List<Memtable> flushing = new ArrayList<>(); // Newest first
+	private final List<Segment> segments = new ArrayList<>(); // Newest first
+	private final AtomicLong nextSequence = new AtomicLong();
+
+	private ExecutorService flusher; // Runs flushes one at a time, oldest memtable first
+	private ExecutorService compactor; // Runs compactions one at a time
+	private final Semaphore flushSlots = new Semaphore(MAX_PENDING_FLUSHES); // One per frozen memtable
+	private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+	private volatile boolean closing; // Compactions still running are abandoned
+	private boolean open;
+
+	/**
+	 * In-memory sorted table of the most recent writes and the log that
+	 * makes them durable until they are flushed.
+	 */
+	private static class Memtable {
+		final long sequence;
+		final WriteAheadLog log;
+		final ConcurrentSkipListMap<String, String> entries = new ConcurrentSkipListMap<>();
+		final AtomicLong bytes = new AtomicLong();
+
+		Memtable(long sequence, WriteAheadLog log) {
+			this.sequence = sequence;
+			this.log = log;
+		}
+
+		void put(String key, String value) {
+			entries.put(key, value);
+			bytes.addAndGet(2 * (key.length() + value.length()) + 64);
+		}
+	}
+
+	public LSMStore(File dir) {
+		this(dir, DEFAULT_MEMTABLE_BYTES, DEFAULT_COMPACTION_TRIGGER);
+	}
+
+	/**
+	 * @param dir directory holding the logs, segments and manifest
+	 * @param memtableBytes approximate heap size at which a memtable is flushed
+	 * @param compactionTrigger number of segments that starts a compaction
+	 */
+	public LSMStore(File dir, long memtableBytes, int compactionTrigger) {
+		this(dir, memtableBytes, compactionTrigger, Durability.DEFAULT);
+	}
+
+	/**
+	 * @param durability when writes to the memtable logs are synced to disk
+	 */
+	public LSMStore(File dir, long memtableBytes, int compactionTrigger, Durability durability) {
+		this(dir, memtableBytes, compactionTrigger, durability, DEFAULT_BLOOM_FALSE_POSITIVE_RATE);
+	}
+
+	/**
+	 * @param bloomFalsePositiveRate false-positive rate the segment filters
+	 * 		are sized for; lower rates cost more memory per key
+	 */
+	public LSMStore(File dir, long memtableBytes, int compactionTrigger, Durability durability,
+			double bloomFalsePositiveRate) {
+		this(dir, memtableBytes, compactionTrigger, durability, bloomFalsePositiveRate,
+				DEFAULT_COMPACTION_BYTES_PER_SECOND);
+	}
+
+	/**
+	 * @param compactionBytesPerSecond I/O rate of compactions, 0 for no limit;
+	 * 		flushes are never throttled since they free the memtable
+	 */
+	public LSMStore(File dir, long memtableBytes, int compactionTrigger, Durability durability,
+			double bloomFalsePositiveRate, long compactionBytesPerSecond) {
+		if (bloomFalsePositiveRate <= 0 || bloomFalsePositiveRate >= 1) {
+			throw new IllegalArgumentException("Bloom filter false-positive rate must be between 0 and 1");
+		}
+		this.dir = dir;
+		this.memtableBytes = memtableBytes;
+		this.compactionTrigger = Math.max(2, compactionTrigger);
+		this.durability = durability;
+		this.bloomFalsePositiveRate = bloomFalsePositiveRate;
+		this.compactionLimiter = new RateLimiter(compactionBytesPerSecond);
+	}
+
+	/**
+	 * Loads the segments listed in the manifest, recovers writes that were
+	 * only in the logs and starts the background flush and compaction threads.
+	 */
+	@Override
+	public void open() throws IOException {
+		lock.writeLock().lock();
+		try {
+			if (open) {
+				return;
+			}
+			if (!dir.isDirectory() && !dir.mkdirs()) {
+				throw new IOException("Cannot create storage directory " + dir);
+			}
+			flusher = Executors.newSingleThreadExecutor();
+			compactor = Executors.newSingleThreadExecutor();
+			closing = false;
+
+			long maxSequence = 0;
+			for (String name : readManifest()) {
+				Segment segment = Segment.open(new File(dir, name), bloomFalsePositiveRate);
+				segments.add(segment);
+				maxSequence = Math.max(maxSequence, sequenceOf(name, SEGMENT_PREFIX, SEGMENT_SUFFIX));
+			}
+			List<File> logs = listFiles(LOG_PREFIX, LOG_SUFFIX);
+			for (File log : logs) {
+				maxSequence = Math.max(maxSequence, sequenceOf(log.getName(), LOG_PREFIX, LOG_SUFFIX));
+			}
+			nextSequence.set(maxSequence + 1);
+			deleteUnreferencedSegments();
+
+			// Replay leftover logs (oldest first) into one memtable and flush it
+			final Memtable recovered = newMemtable();
+			int replayed = 0;
+			for (File log : logs) {
+				replayed += new WriteAheadLog(log).replay(new WriteAheadLog.Replayer() {
+					@Override
+					public void onPut(String key, String value) {
+						recovered.put(key, value);
+					}
+
+					@Override
+					public void onDelete(String key) {
+						recovered.put(key, Segment.TOMBSTONE);
+					}
+				});
+			}
+			if (replayed > 0) {
+				recovered.log.close();
+				flush(recovered);
+				LOGGER.info("Recovered " + replayed + " logged writes into " + dir);
+			}
+			for (File log : logs) {
+				deleteFile(log);
+			}
+			memtable = replayed > 0 ? newMemtable() : recovered;
+			open = true;
+			LOGGER.info("Opened LSM store in " + dir + " with " + segments.size() + " segments");
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public String get(String key) throws IOException {
+		lock.readLock().lock();
+		try {
+			String value = memtable.entries.get(key);
+			for (int i = 0; value == null && i < flushing.size(); i++) {
+				value = flushing.get(i).entries.get(key);
+			}
+			for (int i = 0; value == null && i < segments.size(); i++) {
+				value = segments.get(i).get(key);
+			}
+			return value == Segment.TOMBSTONE ? null : value;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean containsKey(String key) throws IOException {
+		return get(key) != null;
+	}
+
+	@Override
+	public void put(String key, String value) throws IOException {
+		WriteAheadLog log;
+		WriteAheadLog.Ticket ticket;
+		synchronized (this) {
+			log = memtable.log;
+			ticket = log.appendPut(key, value);
+			memtable.put(key, value);
+			if (memtable.bytes.get() >= memtableBytes) {
+				rotate();
+			}
+		}
+		log.awaitDurable(ticket);
+	}
+
+	/**
+	 * Records a deletion marker; the key disappears from disk once the
+	 * segments holding it are compacted.
+	 */
+	@Override
+	public void delete(String key) throws IOException {
+		WriteAheadLog log;
+		WriteAheadLog.Ticket ticket;
+		synchronized (this) {
+			log = memtable.log;
+			ticket = log.appendDelete(key);
+			memtable.put(key, Segment.TOMBSTONE);
+			if (memtable.bytes.get() >= memtableBytes) {
+				rotate();
+			}
+		}
+		log.awaitDurable(ticket);
+	}
+
+	/**
+	 * Flushes the current memtable and waits until it and any memtable
+	 * already queued are written to segments.
+	 */
+	@Override
+	public void flush() throws IOException {
+		synchronized (this) {
+			if (!open) {
+				return;
+			}
+			if (!memtable.entries.isEmpty()) {
+				rotate();
+			}
+		}
+		awaitBackground(flusher);
+	}
+
+	// Waits for all tasks submitted to the executor so far
+	private void awaitBackground(ExecutorService background) throws IOException {
+		try {
+			background.submit(new Runnable() {
+				@Override
+				public void run() {
+				}
+			}).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for background flush", e);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Removes every segment and log and starts over with an empty memtable.
+	 */
+	@Override
+	public synchronized void clear() throws IOException {
+		awaitBackground(flusher); // Flushes may still schedule compactions
+		awaitBackground(compactor);
+		lock.writeLock().lock();
+		try {
+			for (Segment segment : segments) {
+				segment.close();
+				deleteSegmentFiles(segment.getFile());
+			}
+			segments.clear();
+			writeManifest();
+			memtable.log.close();
+			deleteFile(memtable.log.getFile());
+			memtable = newMemtable();
+		} finally {
+			lock.writeLock().unlock();
+		}
+		LOGGER.info("Cleared LSM store in " + dir);
+	}
+
+	/**
+	 * Iterates over the live keys in key order, merging the memtables with
+	 * the segments that exist when the iteration starts.
+	 */
+	@Override
+	public Iterator<Entry<String, String>> iterator() throws IOException {
+		List<Iterator<Entry<String, String>>> sources = new ArrayList<>();
+		lock.readLock().lock();
+		try {
+			sources.add(memtable.entries.entrySet().iterator());
+			for (Memtable frozen : flushing) {
+				sources.add(frozen.entries.entrySet().iterator());
+			}
+			for (Segment segment : segments) {
+				sources.add(segment.iterator());
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return new MergeIterator(sources, true);
+	}
+
+	/**
+	 * Merges the range of the memtables with that of the segments, each of
+	 * which is entered at the block that may hold the first key.
+	 */
+	@Override
+	public List<Entry<String, String>> scan(String fromKey, String toKey, int limit) throws IOException {
+		List<Entry<String, String>> page = new ArrayList<>();
+		if (toKey != null && fromKey.compareTo(toKey) >= 0) {
+			return page;
+		}
+		List<Iterator<Entry<String, String>>> sources = new ArrayList<>();
+		List<Segment.RecordIterator> opened = new ArrayList<>();
+		try {
+			lock.readLock().lock();
+			try {
+				sources.add(range(memtable.entries, fromKey, toKey));
+				for (Memtable frozen : flushing) {
+					sources.add(range(frozen.entries, fromKey, toKey));
+				}
+				for (Segment segment : segments) {
+					Segment.RecordIterator records = segment.iterator(fromKey);
+					opened.add(records);
+					sources.add(records);
+				}
+			} finally {
+				lock.readLock().unlock();
+			}
+			Iterator<Entry<String, String>> merged = new MergeIterator(sources, true);
+			while (page.size() < limit && merged.hasNext()) {
+				Entry<String, String> entry = merged.next();
+				if (toKey != null && entry.getKey().compareTo(toKey) >= 0) {
+					break;
+				}
+				page.add(entry);
+			}
+		} catch (IllegalStateException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw e;
+		} finally {
+			for (Segment.RecordIterator records : opened) {
+				records.close();
+			}
+		}
+		return page;
+	}
+
+	private static Iterator<Entry<String, String>> range(ConcurrentSkipListMap<String, String> entries, String fromKey,
+			String toKey) {
+		return (toKey == null ? entries.tailMap(fromKey, true) : entries.subMap(fromKey, true, toKey, false))
+				.entrySet().iterator();
+	}
+
+	/*
+	 * Freezes the memtable and queues it for a background flush; caller holds
+	 * this, so while all flush slots are taken every writer waits here
+	 */
+	private void rotate() throws IOException {
+		try {
+			flushSlots.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for memtable flushes");
+		}
+		final Memtable full;
+		lock.writeLock().lock();
+		try {
+			full = memtable;
+			flushing.add(0, full);
+			memtable = newMemtable();
+		} finally {
+			lock.writeLock().unlock();
+		}
+		full.log.close();
+		flusher.submit(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					flush(full);
+				} catch (Exception e) {
+					LOGGER.log(Level.SEVERE, "Error flushing memtable " + full.sequence + " in " + dir, e);
+				} finally {
+					flushSlots.release();
+				}
+				scheduleCompactionIfDue();
+			}
+		});
+	}
+
+	// Writes a frozen memtable to a segment and drops its log
+	private void flush(Memtable frozen) throws IOException {
+		Segment segment = null;
+		if (!frozen.entries.isEmpty()) {
+			File file = new File(dir, SEGMENT_PREFIX + frozen.sequence + SEGMENT_SUFFIX);
+			segment = Segment.write(file, frozen.entries.entrySet().iterator(), frozen.entries.size(),
+					bloomFalsePositiveRate);
+		}
+		lock.writeLock().lock();
+		try {
+			if (segment != null) {
+				segments.add(0, segment);
+			}
+			flushing.remove(frozen);
+			writeManifest();
+		} finally {
+			lock.writeLock().unlock();
+		}
+		deleteFile(frozen.log.getFile());
+	}
+
+	// Queues a compaction unless one is queued or running; the one running checks again when it is done
+	private void scheduleCompactionIfDue() {
+		if (closing || segmentCount() < compactionTrigger || !compactionScheduled.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			compactor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						maybeCompact();
+					} catch (Exception e) {
+						LOGGER.log(Level.SEVERE, "Error compacting segments in " + dir, e);
+					} finally {
+						compactionScheduled.set(false);
+					}
+					scheduleCompactionIfDue(); // Flushed while this one ran
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			compactionScheduled.set(false); // Closing
+		}
+	}
+
+	private int segmentCount() {
+		lock.readLock().lock();
+		try {
+			return segments.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private void maybeCompact() throws IOException {
+		List<Segment> inputs;
+		lock.readLock().lock();
+		try {
+			if (closing || segments.size() < compactionTrigger) {
+				return;
+			}
+			inputs = new ArrayList<>(segments);
+		} finally {
+			lock.readLock().unlock();
+		}
+		compact(inputs);
+	}
+
+	/**
+	 * Merges the given segments, which must be all the segments that existed
+	 * when the compaction started, into a single one. Since no older data can
+	 * exist, deletion markers are dropped along with overwritten values.
+	 */
+	private void compact(List<Segment> inputs) throws IOException {
+		long started = System.currentTimeMillis();
+		List<Iterator<Entry<String, String>>> sources = new ArrayList<>();
+		int inputRecords = 0;
+		for (Segment segment : inputs) {
+			sources.add(segment.iterator());
+			inputRecords += segment.getRecordCount();
+		}
+		Iterator<Entry<String, String>> live = new ThrottledIterator(new MergeIterator(sources, true), compactionLimiter);
+
+		File file = new File(dir, SEGMENT_PREFIX + nextSequence.getAndIncrement() + SEGMENT_SUFFIX);
+		Segment merged;
+		try {
+			merged = Segment.write(file, live, inputRecords, bloomFalsePositiveRate);
+		} catch (IOException | RuntimeException e) {
+			deleteSegmentFiles(file);
+			deleteFile(new File(file.getPath() + ".tmp"));
+			if (closing) {
+				LOGGER.info("Abandoned compaction of " + inputs.size() + " segments in " + dir + " on close");
+				return;
+			}
+			throw e;
+		}
+
+		lock.writeLock().lock();
+		try {
+			segments.removeAll(inputs);
+			if (merged.getRecordCount() > 0) {
+				segments.add(merged); // Everything newer was flushed after the compaction started
+			}
+			writeManifest();
+		} finally {
+			lock.writeLock().unlock();
+		}
+		if (merged.getRecordCount() == 0) {
+			merged.close();
+			deleteSegmentFiles(file);
+		}
+		for (Segment segment : inputs) {
+			segment.close();
+			deleteSegmentFiles(segment.getFile());
+		}
+		LOGGER.info("Compacted " + inputs.size() + " segments (" + inputRecords + " records) into "
+				+ merged.getRecordCount() + " records in " + (System.currentTimeMillis() - started) + " ms");
+	}
+
+	/**
+	 * Waits for the queued flushes, abandons a running compaction and waits
+	 * until it has stopped, then flushes the memtable so the next open does
+	 * not need to replay a log and closes all files. An abandoned compaction
+	 * leaves its input segments in place.
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			if (!open) {
+				return;
+			}
+			closing = true;
+			flusher.shutdown();
+			awaitTermination(flusher);
+			compactor.shutdownNow(); // Interrupts a compaction waiting for its I/O rate
+			awaitTermination(compactor);
+			memtable.log.close();
+			flush(memtable);
+
+			lock.writeLock().lock();
+			try {
+				for (Segment segment : segments) {
+					segment.close();
+				}
+				segments.clear();
+				open = false;
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+		LOGGER.info("Closed LSM store in " + dir);
+	}
+
+	// Files the tasks still use are closed afterwards, so this waits even if interrupted
+	private static void awaitTermination(ExecutorService executor) {
+		boolean interrupted = false;
+		while (!executor.isTerminated()) {
+			try {
+				executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private Memtable newMemtable() throws IOException {
+		long sequence = nextSequence.getAndIncrement();
+		WriteAheadLog log = new WriteAheadLog(new File(dir, LOG_PREFIX + sequence + LOG_SUFFIX), durability);
+		log.open();
+		return new Memtable(sequence, log);
+	}
+
+	private List<String> readManifest() throws IOException {
+		List<String> names = new ArrayList<>();
+		File manifest = new File(dir, MANIFEST_FILE);
+		if (!manifest.exists()) {
+			return names;
+		}
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), UTF8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (!line.isEmpty()) {
+					names.add(line);
+				}
+			}
+		}
+		return names;
+	}
+
+	// Caller holds the write lock
+	private void writeManifest() throws IOException {
+		File tmp = new File(dir, MANIFEST_FILE + ".tmp");
+		FileOutputStream fileOut = new FileOutputStream(tmp);
+		try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(fileOut, UTF8))) {
+			for (Segment segment : segments) {
+				writer.write(segment.getFile().getName());
+				writer.newLine();
+			}
+			writer.flush();
+			fileOut.getFD().sync();
+		}
+		Files.move(tmp.toPath(), new File(dir, MANIFEST_FILE).toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	// Leftovers of flushes or compactions that crashed before the manifest was updated
+	private void deleteUnreferencedSegments() {
+		List<File> live = new ArrayList<>();
+		for (Segment segment : segments) {
+			live.add(segment.getFile());
+		}
+		for (File file : listFiles(SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+			if (!live.contains(file)) {
+				LOGGER.warning("Deleting unreferenced segment " + file);
+				deleteSegmentFiles(file);
+			}
+		}
+		for (File file : listFiles(SEGMENT_PREFIX, Segment.FILTER_SUFFIX)) {
+			String name = file.getName();
+			File segment = new File(dir, name.substring(0, name.length() - Segment.FILTER_SUFFIX.length()) + SEGMENT_SUFFIX);
+			if (!live.contains(segment)) {
+				deleteFile(file); // Filter written just before a crash, or left when deleting its segment failed
+			}
+		}
+	}
+
+	private static void deleteSegmentFiles(File segment) {
+		deleteFile(segment);
+		deleteFile(Segment.filterFileOf(segment));
+	}
+
+	private List<File> listFiles(String prefix, String suffix) {
+		List<File> files = new ArrayList<>();
+		File[] all = dir.listFiles();
+		if (all != null) {
+			for (File file : all) {
+				if (file.getName().startsWith(prefix) && file.getName().endsWith(suffix)) {
+					files.add(file);
+				}
+			}
+		}
+		final String p = prefix;
+		final String s = suffix;
+		Collections.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				return Long.compare(sequenceOf(a.getName(), p, s), sequenceOf(b.getName(), p, s));
+			}
+		});
+		return files;
+	}
+
+	private static long sequenceOf(String name, String prefix, String suffix) {
+		try {
+			return Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length()));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	private static void deleteFile(File file) {
+		if (file.exists() && !file.delete()) {
+			LOGGER.warning("Could not delete " + file);
+		}
+	}
+
+	/**
+	 * Passes entries through at the rate of a {@link RateLimiter}, paying for
+	 * each entry as read from the inputs and written to the output.
+	 */
+	private static class ThrottledIterator implements Iterator<Entry<String, String>> {
+		private final Iterator<Entry<String, String>> source;
+		private final RateLimiter limiter;
+
+		ThrottledIterator(Iterator<Entry<String, String>> source, RateLimiter limiter) {
+			this.source = source;
+			this.limiter = limiter;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return source.hasNext();
+		}
+
+		@Override
+		public Entry<String, String> next() {
+			Entry<String, String> entry = source.next();
+			try {
+				limiter.acquire(2 * (Record.HEADER_BYTES + entry.getKey().length() + entry.getValue().length()));
+			} catch (InterruptedIOException e) {
+				throw new IllegalStateException("Compaction interrupted", e);
+			}
+			return entry;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * K-way merge of sorted sources; on equal keys the source that comes
+	 * first in the list (the newest) wins.
+	 */
+	static class MergeIterator implements Iterator<Entry<String, String>> {
+		private final PriorityQueue<Head> heads;
+		private final boolean dropDeleted;
+		private Entry<String, String> next;
+
+		private static class Head {
+			final Iterator<Entry<String, String>> source;
+			final int rank;
+			Entry<String, String> entry;
+
+			Head(Iterator<Entry<String, String>> source, int rank) {
+				this.source = source;
+				this.rank = rank;
+				this.entry = source.next();
+			}
+		}
+
+		MergeIterator(List<Iterator<Entry<String, String>>> sources, boolean dropDeleted) {
+			this.dropDeleted = dropDeleted;
+			this.heads = new PriorityQueue<>(Math.max(1, sources.size()), new Comparator<Head>() {
+				@Override
+				public int compare(Head a, Head b) {
+					int order = a.entry.getKey().compareTo(b.entry.getKey());
+					return order != 0 ? order : Integer.compare(a.rank, b.rank);
+				}
+			});
+			for (int i = 0; i < sources.size(); i++) {
+				if (sources.get(i).hasNext()) {
+					heads.add(new Head(sources.get(i), i));
+				}
+			}
+			next = advance();
+		}
+
+		private Entry<String, String> advance() {
+			while (!heads.isEmpty()) {
+				Head newest = heads.poll();
+				Entry<String, String> entry = newest.entry;
+				reinsert(newest);
+				// Skip older versions of the same key
+				while (!heads.isEmpty() && heads.peek().entry.getKey().equals(entry.getKey())) {
+					reinsert(heads.poll());
+				}
+				if (!(dropDeleted && entry.getValue() == Segment.TOMBSTONE)) {
+					return entry;
+				}
+			}
+			return null;
+		}
+
+		private void reinsert(Head head) {
+			if (head.source.hasNext()) {
+				head.entry = head.source.next();
+				heads.add(head);
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		public Entry<String, String> next() {
+			if (next == null) {
+				throw new NoSuchElementException();
+			}
+			Entry<String, String> current = next;
+			next = advance();
+			return current;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
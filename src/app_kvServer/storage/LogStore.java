@@ -0,0 +1,318 @@
+package app_kvServer.storage;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Storage engine that keeps every key in memory and makes writes durable
+ * through a {@link WriteAheadLog}.
+ *
+ * Periodically (and on flush) the entries are written to a {@link Snapshot}
+ * so a restart loads the snapshot parts in parallel and only replays the
+ * writes made since. Snapshots are fuzzy: writers are only held up for
+ * switching to the next numbered log, after which the live map is written
+ * out while writes continue into the new log. The snapshot records that log
+ * as the point to replay from; replaying every write made after the switch
+ * fixes up whatever the snapshot caught mid-change. Logs before that point
+ * are deleted once the snapshot is complete.
+ *
+ * Files: kvstorage.log (first log), kvstorage-<n>.log (later logs) and the
+ * snapshot files.
+ */
+public class LogStore implements StorageEngine {
+
+	private static final Logger LOGGER = Logger.getLogger(LogStore.class.getName());
+
+	public static final String LOG_FILE = "kvstorage.log";
+	public static final long DEFAULT_SNAPSHOT_INTERVAL_SECONDS = 60;
+	private static final String LOG_PREFIX = "kvstorage-";
+	private static final String LOG_SUFFIX = ".log";
+	private static final String LEGACY_FILE = "kvstorage.txt"; // Old full-rewrite CSV format
+
+	private final File dir;
+	private final Map<String, String> entries = new ConcurrentHashMap<>();
+	private final Durability durability;
+	private final long snapshotIntervalSeconds;
+	private final Object snapshotLock = new Object(); // One snapshot at a time; taken before this store's lock
+	private WriteAheadLog log;
+	private long logNumber;
+	private ScheduledExecutorService snapshotter;
+	private long writesSinceSnapshot;
+	private boolean open;
+
+	public LogStore(File dir) {
+		this(dir, Durability.DEFAULT);
+	}
+
+	public LogStore(File dir, Durability durability) {
+		this(dir, durability, DEFAULT_SNAPSHOT_INTERVAL_SECONDS);
+	}
+
+	/**
+	 * @param snapshotIntervalSeconds time between background snapshots, 0 to
+	 * 		only take one on flush and close
+	 */
+	public LogStore(File dir, Durability durability, long snapshotIntervalSeconds) {
+		this.dir = dir;
+		this.durability = durability;
+		this.snapshotIntervalSeconds = snapshotIntervalSeconds;
+	}
+
+	/**
+	 * Loads the latest snapshot, replays the logs written since and starts
+	 * the background snapshots.
+	 */
+	@Override
+	public void open() throws IOException {
+		synchronized (snapshotLock) {
+			synchronized (this) {
+				if (open) {
+					return;
+				}
+				recover();
+				open = true;
+			}
+		}
+		if (snapshotIntervalSeconds > 0) {
+			snapshotter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable task) {
+					Thread thread = new Thread(task, "snapshot-" + dir.getName());
+					thread.setDaemon(true); // A store that is never closed must not keep the JVM alive
+					return thread;
+				}
+			});
+			snapshotter.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						snapshot();
+					} catch (IOException | RuntimeException e) {
+						LOGGER.log(Level.SEVERE, "Snapshot of " + dir + " failed", e);
+					}
+				}
+			}, snapshotIntervalSeconds, snapshotIntervalSeconds, TimeUnit.SECONDS);
+		}
+	}
+
+	private void recover() throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create storage directory " + dir);
+		}
+		long started = System.currentTimeMillis();
+		String replayFrom = Snapshot.load(dir, entries);
+		long firstLog = replayFrom == null ? 0 : logNumberOf(replayFrom);
+		if (replayFrom == null && listLogs().isEmpty()) {
+			log = new WriteAheadLog(logFile(0), durability);
+			migrateLegacyStorage();
+		}
+		List<Long> logs = listLogs();
+
+		long replayStarted = System.currentTimeMillis();
+		int applied = 0;
+		logNumber = firstLog;
+		for (long number : logs) {
+			if (number < firstLog) { // Already covered by the snapshot; its deletion was cut short
+				Files.delete(logFile(number).toPath());
+				continue;
+			}
+			applied += new WriteAheadLog(logFile(number)).replay(entries);
+			logNumber = number;
+		}
+		writesSinceSnapshot = applied; // Replayed logs are folded into the next snapshot
+		LOGGER.info("Recovery: replayed " + applied + " records from the log tail in "
+				+ (System.currentTimeMillis() - replayStarted) + " ms");
+
+		log = new WriteAheadLog(logFile(logNumber), durability);
+		log.open();
+		LOGGER.info("Recovered " + entries.size() + " keys into " + dir + " in " + (System.currentTimeMillis() - started)
+				+ " ms");
+	}
+
+	// One-time import of the old "key,value" file into the append-only log
+	private void migrateLegacyStorage() throws IOException {
+		File legacyFile = new File(dir, LEGACY_FILE);
+		if (!legacyFile.exists()) {
+			return;
+		}
+		Map<String, String> legacy = new HashMap<>();
+		try (BufferedReader reader = new BufferedReader(new FileReader(legacyFile))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] parts = line.split(",", 2); // Values may contain commas
+				if (parts.length == 2) {
+					legacy.put(parts[0], parts[1]);
+				}
+			}
+		}
+		log.rewrite(legacy);
+		LOGGER.info("Migrated " + legacy.size() + " keys from " + legacyFile + " to " + log.getFile());
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (snapshotter != null) {
+			snapshotter.shutdown();
+		}
+		flush();
+		WriteAheadLog current;
+		synchronized (this) {
+			open = false;
+			current = log;
+		}
+		if (current != null) {
+			current.close();
+		}
+	}
+
+	@Override
+	public String get(String key) {
+		return entries.get(key);
+	}
+
+	@Override
+	public void put(String key, String value) throws IOException {
+		WriteAheadLog current;
+		WriteAheadLog.Ticket ticket;
+		synchronized (this) {
+			current = log;
+			ticket = current.appendPut(key, value); // Log first, so an acknowledged PUT survives a crash
+			entries.put(key, value);
+			writesSinceSnapshot++;
+		}
+		current.awaitDurable(ticket);
+	}
+
+	@Override
+	public void delete(String key) throws IOException {
+		WriteAheadLog current;
+		WriteAheadLog.Ticket ticket;
+		synchronized (this) {
+			current = log;
+			ticket = current.appendDelete(key);
+			entries.remove(key);
+			writesSinceSnapshot++;
+		}
+		current.awaitDurable(ticket);
+	}
+
+	@Override
+	public boolean containsKey(String key) {
+		return entries.containsKey(key);
+	}
+
+	@Override
+	public void clear() throws IOException {
+		synchronized (snapshotLock) {
+			synchronized (this) {
+				entries.clear();
+				log.rewrite(entries); // Truncate the log so cleared keys do not come back on restart
+				Snapshot.deleteAll(dir);
+				for (long number : listLogs()) {
+					if (number != logNumber) {
+						Files.delete(logFile(number).toPath());
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Takes a snapshot, leaving an empty log tail. Writes are already durable
+	 * once appended, so this only bounds the log size and replay time.
+	 */
+	@Override
+	public void flush() throws IOException {
+		snapshot();
+	}
+
+	/**
+	 * Writes a fuzzy snapshot of the entries and deletes the logs it makes
+	 * redundant. Writers only wait while the next log is created; the
+	 * previous log is synced and closed and the entries are written out
+	 * while writes continue.
+	 */
+	public void snapshot() throws IOException {
+		synchronized (snapshotLock) {
+			WriteAheadLog previous;
+			long replayFrom;
+			synchronized (this) {
+				if (!open || writesSinceSnapshot == 0) { // Never replace the logs of a store that was not loaded
+					return;
+				}
+				WriteAheadLog next = new WriteAheadLog(logFile(logNumber + 1), durability);
+				next.open();
+				previous = log;
+				log = next;
+				replayFrom = ++logNumber;
+				writesSinceSnapshot = 0;
+			}
+			try {
+				previous.close(); // Writers still waiting on its tickets are released by its final sync
+				Snapshot.write(dir, replayFrom, logFile(replayFrom).getName(), entries, Snapshot.defaultParts());
+			} catch (IOException e) {
+				synchronized (this) {
+					writesSinceSnapshot++; // Retry on the next round even without new writes
+				}
+				throw e;
+			}
+			for (long number : listLogs()) {
+				if (number < replayFrom) {
+					Files.delete(logFile(number).toPath());
+				}
+			}
+		}
+	}
+
+	private File logFile(long number) {
+		return new File(dir, number == 0 ? LOG_FILE : LOG_PREFIX + number + LOG_SUFFIX);
+	}
+
+	private static long logNumberOf(String name) {
+		if (LOG_FILE.equals(name)) {
+			return 0;
+		}
+		return Long.parseLong(name.substring(LOG_PREFIX.length(), name.length() - LOG_SUFFIX.length()));
+	}
+
+	// Numbers of the logs in the directory, oldest first
+	private List<Long> listLogs() {
+		List<Long> numbers = new ArrayList<>();
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				String name = file.getName();
+				if (LOG_FILE.equals(name) || (name.startsWith(LOG_PREFIX) && name.endsWith(LOG_SUFFIX))) {
+					try {
+						numbers.add(logNumberOf(name));
+					} catch (NumberFormatException e) {
+						LOGGER.warning("Ignoring unexpected file " + file);
+					}
+				}
+			}
+		}
+		Collections.sort(numbers);
+		return numbers;
+	}
+
+	@Override
+	public Iterator<Map.Entry<String, String>> iterator() {
+		return Collections.unmodifiableMap(entries).entrySet().iterator();
+	}
+}
@@ -0,0 +1,356 @@
+package app_kvServer.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.logging.Logger;
+
+/**
+ * Multi-version store in front of another engine: reads never take a lock,
+ * and a View reads a consistent snapshot while writes continue.
+ *
+ * Every key maps to a chain of immutable versions, newest first, each tagged
+ * with the sequence number of the write that created it; a delete installs a
+ * version without a value. A write goes to the wrapped engine first, so it is
+ * durable, and then installs its version and publishes its sequence number.
+ * Sequence numbers are published in order, so a reader that sees number s
+ * sees every version up to s and none after it. A view reads, for each key,
+ * the newest version not after its sequence number.
+ *
+ * Versions that no open view can see any more are garbage-collected: when a
+ * key is written, and for all keys written meanwhile when a view closes.
+ * All current values are kept on the heap; the wrapped engine only makes
+ * them durable and is read once on open.
+ */
+public class MVCCStore implements OrderedStorageEngine {
+
+	private static final Logger LOGGER = Logger.getLogger(MVCCStore.class.getName());
+
+	private static final int WRITE_STRIPES = 64;
+
+	private final StorageEngine inner;
+	private final ConcurrentSkipListMap<String, Version> versions = new ConcurrentSkipListMap<>();
+	private final Map<String, Boolean> collectable = new ConcurrentHashMap<>(); // Keys with versions to collect
+	private final Object[] writeStripes = new Object[WRITE_STRIPES];
+	private final Object publishLock = new Object();
+	private volatile long lastSequence; // Published; written under publishLock
+	private final TreeMap<Long, Integer> openViews = new TreeMap<>(); // Open views by sequence number, guarded by itself
+
+	/**
+	 * One value of a key. Only the link to older versions changes, when they
+	 * are collected.
+	 */
+	private static class Version {
+		final long sequence;
+		final String value; // Null for a delete
+		volatile Version older;
+
+		Version(long sequence, String value, Version older) {
+			this.sequence = sequence;
+			this.value = value;
+			this.older = older;
+		}
+	}
+
+	/**
+	 * Consistent read-only snapshot of the store, for scans and backups that
+	 * must not see writes made after it was opened. Must be closed, since its
+	 * versions are kept until then.
+	 */
+	public class View implements Closeable {
+		private final long sequence;
+		private boolean closed;
+
+		private View(long sequence) {
+			this.sequence = sequence;
+		}
+
+		public long getSequence() {
+			return sequence;
+		}
+
+		public String get(String key) {
+			return valueAt(versions.get(key), sequence);
+		}
+
+		/**
+		 * @see OrderedStorageEngine#scan(String, String, int)
+		 */
+		public List<Map.Entry<String, String>> scan(String fromKey, String toKey, int limit) {
+			return scanAt(fromKey, toKey, limit, sequence);
+		}
+
+		/**
+		 * @return all entries of the snapshot in ascending key order
+		 */
+		public Iterator<Map.Entry<String, String>> iterator() {
+			return iteratorAt(versions, sequence);
+		}
+
+		@Override
+		public void close() {
+			synchronized (openViews) {
+				if (closed) {
+					return;
+				}
+				closed = true;
+				int count = openViews.get(sequence);
+				if (count == 1) {
+					openViews.remove(sequence);
+				} else {
+					openViews.put(sequence, count - 1);
+				}
+			}
+			collectGarbage();
+		}
+	}
+
+	/**
+	 * @param inner engine that makes the values durable; opened and closed by
+	 * 		this store
+	 */
+	public MVCCStore(StorageEngine inner) {
+		this.inner = inner;
+		for (int i = 0; i < WRITE_STRIPES; i++) {
+			writeStripes[i] = new Object();
+		}
+	}
+
+	/**
+	 * Opens the wrapped engine and loads its entries as the first version of
+	 * every key.
+	 */
+	@Override
+	public void open() throws IOException {
+		inner.open();
+		long started = System.currentTimeMillis();
+		for (Iterator<Map.Entry<String, String>> it = inner.iterator(); it.hasNext();) {
+			Map.Entry<String, String> entry = it.next();
+			versions.put(entry.getKey(), new Version(0, entry.getValue(), null));
+		}
+		LOGGER.info("Loaded " + versions.size() + " keys into the version store in "
+				+ (System.currentTimeMillis() - started) + " ms");
+	}
+
+	@Override
+	public void close() throws IOException {
+		inner.close();
+		versions.clear();
+		collectable.clear();
+	}
+
+	/**
+	 * Opens a snapshot of everything written so far.
+	 */
+	public View openView() {
+		synchronized (openViews) { // Collection must not miss a view between reading and registering its sequence
+			long sequence = lastSequence;
+			Integer count = openViews.get(sequence);
+			openViews.put(sequence, count == null ? 1 : count + 1);
+			return new View(sequence);
+		}
+	}
+
+	/**
+	 * @return number of views not closed yet
+	 */
+	public int getOpenViews() {
+		synchronized (openViews) {
+			int count = 0;
+			for (int views : openViews.values()) {
+				count += views;
+			}
+			return count;
+		}
+	}
+
+	/**
+	 * Reads the newest value without taking a lock.
+	 */
+	@Override
+	public String get(String key) {
+		Version version = versions.get(key);
+		return version == null ? null : version.value;
+	}
+
+	@Override
+	public boolean containsKey(String key) {
+		return get(key) != null;
+	}
+
+	@Override
+	public void put(String key, String value) throws IOException {
+		synchronized (stripeOf(key)) {
+			inner.put(key, value);
+			install(key, value);
+		}
+	}
+
+	@Override
+	public void delete(String key) throws IOException {
+		synchronized (stripeOf(key)) {
+			inner.delete(key);
+			install(key, null);
+		}
+	}
+
+	// Installs a new version and publishes it; the caller holds the key's write stripe
+	private void install(String key, String value) {
+		Version previous = versions.get(key);
+		if (previous == null && value == null) {
+			return;
+		}
+		synchronized (publishLock) { // Brief: keeps sequence numbers published in order
+			long sequence = lastSequence + 1;
+			versions.put(key, new Version(sequence, value, previous));
+			lastSequence = sequence;
+		}
+		collect(key, horizon());
+	}
+
+	@Override
+	public void clear() throws IOException {
+		inner.clear();
+		versions.clear();
+		collectable.clear();
+	}
+
+	@Override
+	public void flush() throws IOException {
+		inner.flush();
+	}
+
+	/**
+	 * Iterates over the newest values; entries written during the iteration
+	 * may or may not be seen. Use a View for a consistent iteration.
+	 */
+	@Override
+	public Iterator<Map.Entry<String, String>> iterator() {
+		return iteratorAt(versions, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Reads one page at the snapshot of the moment it starts.
+	 */
+	@Override
+	public List<Map.Entry<String, String>> scan(String fromKey, String toKey, int limit) {
+		View view = openView(); // Keeps the versions it reads from being collected
+		try {
+			return view.scan(fromKey, toKey, limit);
+		} finally {
+			view.close();
+		}
+	}
+
+	private List<Map.Entry<String, String>> scanAt(String fromKey, String toKey, int limit, long sequence) {
+		if (toKey != null && fromKey.compareTo(toKey) >= 0) {
+			return new ArrayList<>();
+		}
+		ConcurrentNavigableMap<String, Version> range = toKey == null ? versions.tailMap(fromKey, true)
+				: versions.subMap(fromKey, true, toKey, false);
+		List<Map.Entry<String, String>> page = new ArrayList<>(Math.min(limit, 1024));
+		for (Iterator<Map.Entry<String, String>> it = iteratorAt(range, sequence); it.hasNext() && page.size() < limit;) {
+			page.add(it.next());
+		}
+		return page;
+	}
+
+	private static Iterator<Map.Entry<String, String>> iteratorAt(Map<String, Version> map, final long sequence) {
+		final Iterator<Map.Entry<String, Version>> entries = map.entrySet().iterator();
+		return new Iterator<Map.Entry<String, String>>() {
+			private Map.Entry<String, String> next = advance();
+
+			private Map.Entry<String, String> advance() {
+				while (entries.hasNext()) {
+					Map.Entry<String, Version> entry = entries.next();
+					String value = valueAt(entry.getValue(), sequence);
+					if (value != null) {
+						return new SimpleImmutableEntry<>(entry.getKey(), value);
+					}
+				}
+				return null;
+			}
+
+			@Override
+			public boolean hasNext() {
+				return next != null;
+			}
+
+			@Override
+			public Map.Entry<String, String> next() {
+				if (next == null) {
+					throw new NoSuchElementException();
+				}
+				Map.Entry<String, String> current = next;
+				next = advance();
+				return current;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	// Value of the newest version not after the sequence number, null if there is none or it is a delete
+	private static String valueAt(Version version, long sequence) {
+		while (version != null && version.sequence > sequence) {
+			version = version.older;
+		}
+		return version == null ? null : version.value;
+	}
+
+	// Oldest sequence number an open view or a new reader may read at
+	private long horizon() {
+		synchronized (openViews) {
+			return openViews.isEmpty() ? lastSequence : openViews.firstKey();
+		}
+	}
+
+	// Collects old versions of every key written while views were open
+	private void collectGarbage() {
+		long horizon = horizon();
+		for (String key : collectable.keySet()) {
+			collectable.remove(key);
+			synchronized (stripeOf(key)) {
+				collect(key, horizon);
+			}
+		}
+	}
+
+	/*
+	 * Drops the versions of a key that nobody can read at or after the
+	 * horizon: everything behind the newest version not after it, and the key
+	 * itself if that version is a delete and nothing newer exists. The caller
+	 * holds the key's write stripe.
+	 */
+	private void collect(String key, long horizon) {
+		Version newest = versions.get(key);
+		Version visible = newest;
+		while (visible != null && visible.sequence > horizon) {
+			visible = visible.older;
+		}
+		if (visible != null) {
+			visible.older = null; // Readers at or after the horizon stop here
+		}
+		if (newest != null && newest == visible && newest.value == null) {
+			versions.remove(key, newest);
+		} else if (newest != null && newest != visible) {
+			collectable.put(key, Boolean.TRUE); // Still needed by an open view
+		}
+	}
+
+	private Object stripeOf(String key) {
+		return writeStripes[(key.hashCode() & Integer.MAX_VALUE) % WRITE_STRIPES];
+	}
+}
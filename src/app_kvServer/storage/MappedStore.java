@@ -0,0 +1,594 @@
+package app_kvServer.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Storage engine whose data file is memory-mapped. The heap only holds the
+ * offset and length of every value; GETs copy the value straight out of the
+ * page cache.
+ *
+ * The file is mapped in fixed-size chunks. When the last chunk is full a new
+ * one is mapped and published; existing mappings are never replaced, so
+ * ClientHandler threads can keep reading while the file grows. A record never
+ * spans two chunks: if it does not fit into what is left of the current
+ * chunk, the rest is marked as padding and the record starts the next one.
+ *
+ * File layout:
+ * 		header : int MAGIC, int chunkBytes, long endOfData
+ * 		record : a {@link Record}, or int -1 as padding up to the next chunk
+ * endOfData is advanced after a record is completely written, so a restart
+ * rebuilds the index by walking the records up to it and ignores anything
+ * written after it. The pages of the records and of the header reach the
+ * disk in no particular order, so a record that does not fit its chunk or
+ * fails its CRC cuts the file off there.
+ *
+ * Overwritten values and deleted keys stay in the file until it is
+ * compacted: once they take more room than the live records, and at least a
+ * chunk, a background thread copies the live records into a new file that
+ * replaces the old one. Writers only wait while it copies the records
+ * written during the copy and swaps the files; readers go on reading the
+ * old mapping through the locations they already hold.
+ */
+public class MappedStore implements StorageEngine {
+
+	private static final Logger LOGGER = Logger.getLogger(MappedStore.class.getName());
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	public static final int DEFAULT_CHUNK_BYTES = 16 * 1024 * 1024;
+	public static final String DATA_FILE = "kvstorage.mmap";
+
+	private static final int MAGIC = 0x4D4D4150; // "MMAP"
+	private static final int HEADER_BYTES = 16;
+	private static final int PADDING = -1;
+
+	private final File file;
+	private int chunkBytes;
+	private final Durability durability;
+	private GroupCommit commit;
+	private long syncedTo; // Records before this offset have been forced to disk
+
+	private FileChannel channel;
+	private volatile MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+	private final Map<String, Location> index = new ConcurrentHashMap<>();
+	private long endOfData;
+	private long liveBytes; // Of the records holding the current values
+	private ExecutorService compactor;
+	private boolean compactionScheduled;
+	private long clears; // Bumped by clear, so a compaction running across it discards its result
+
+	/**
+	 * Position of the current value of a key within the mapped file, with
+	 * the chunks of the file it was written to, which outlive a compaction.
+	 */
+	private static class Location {
+		final MappedByteBuffer[] chunks;
+		final long offset;
+		final int length;
+
+		Location(MappedByteBuffer[] chunks, long offset, int length) {
+			this.chunks = chunks;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	public MappedStore(File dir) {
+		this(dir, DEFAULT_CHUNK_BYTES);
+	}
+
+	/**
+	 * @param dir directory holding the data file
+	 * @param chunkBytes size of each mapped chunk, which also bounds the size
+	 * 		of a single record; an existing file keeps the chunk size it was
+	 * 		created with
+	 */
+	public MappedStore(File dir, int chunkBytes) {
+		this(dir, chunkBytes, Durability.DEFAULT);
+	}
+
+	/**
+	 * @param durability when written records are forced to disk
+	 */
+	public MappedStore(File dir, int chunkBytes, Durability durability) {
+		this.file = new File(dir, DATA_FILE);
+		this.chunkBytes = chunkBytes;
+		this.durability = durability;
+	}
+
+	@Override
+	public synchronized void open() throws IOException {
+		if (channel != null) {
+			return;
+		}
+		File dir = file.getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create storage directory " + dir);
+		}
+		long started = System.currentTimeMillis();
+		boolean exists = file.exists() && file.length() >= HEADER_BYTES;
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+		if (exists) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+			while (header.hasRemaining() && channel.read(header, header.position()) >= 0) {
+			}
+			header.flip();
+			int magic = header.getInt();
+			chunkBytes = header.getInt();
+			endOfData = header.getLong();
+			if (magic != MAGIC || chunkBytes < HEADER_BYTES) {
+				channel.close();
+				channel = null;
+				throw new IOException("Not a mapped storage file: " + file);
+			}
+			if (endOfData < HEADER_BYTES || endOfData > channel.size()) {
+				LOGGER.warning("Mapped store " + file + " has a damaged end of data " + endOfData + ", reading what is there");
+				endOfData = channel.size();
+			}
+			long mapped = 0;
+			while (mapped < channel.size()) {
+				addChunk();
+				mapped += chunkBytes;
+			}
+			rebuildIndex();
+		} else {
+			addChunk();
+			endOfData = HEADER_BYTES;
+			chunks[0].putInt(0, MAGIC);
+			chunks[0].putInt(4, chunkBytes);
+			chunks[0].putLong(8, endOfData);
+		}
+		syncedTo = endOfData;
+		commit = new GroupCommit(file.getName(), new GroupCommit.Syncable() {
+			@Override
+			public void sync(boolean force) {
+				if (force) {
+					forceWritten();
+				}
+			}
+		}, durability);
+		compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "compact-" + file.getParentFile().getName());
+				thread.setDaemon(true); // A store that is never closed must not keep the JVM alive
+				return thread;
+			}
+		});
+		LOGGER.info("Opened mapped store " + file + ": " + index.size() + " keys, " + chunks.length + " chunks in "
+				+ (System.currentTimeMillis() - started) + " ms");
+	}
+
+	/*
+	 * Walks the records up to endOfData and cuts the file off at the first
+	 * one that does not fit its chunk or fails its CRC
+	 */
+	private void rebuildIndex() {
+		Map<String, Integer> recordBytes = new HashMap<>();
+		long position = HEADER_BYTES;
+		while (position < endOfData) {
+			int room = chunkBytes - (int) (position % chunkBytes);
+			ByteBuffer chunk = chunkAt(chunks, position);
+			int keyLength = room < Record.HEADER_BYTES ? PADDING : chunk.getInt();
+			if (keyLength == PADDING) {
+				position += room;
+				continue;
+			}
+			int valueLength = chunk.getInt();
+			byte flags = chunk.get();
+			long length = (long) Record.HEADER_BYTES + keyLength + valueLength;
+			if (keyLength < 0 || valueLength < 0 || length > room || position + length > endOfData) {
+				truncate(position);
+				break;
+			}
+			byte[] record = new byte[(int) length];
+			chunkAt(chunks, position).get(record);
+			if (chunk.getInt() != Record.checksum(record, 0, record.length)) {
+				truncate(position);
+				break;
+			}
+			String key = new String(record, Record.HEADER_BYTES, keyLength, UTF8);
+			Integer replaced;
+			if ((flags & Record.FLAG_TOMBSTONE) != 0) {
+				index.remove(key);
+				replaced = recordBytes.remove(key);
+			} else {
+				index.put(key, new Location(chunks, position + Record.HEADER_BYTES + keyLength, valueLength));
+				replaced = recordBytes.put(key, (int) length);
+				liveBytes += length;
+			}
+			if (replaced != null) {
+				liveBytes -= replaced;
+			}
+			position += length;
+		}
+	}
+
+	private void truncate(long position) {
+		LOGGER.warning("Mapped store " + file + " has a damaged record at " + position + ", dropping the "
+				+ (endOfData - position) + " bytes from there");
+		endOfData = position;
+		chunks[0].putLong(8, endOfData);
+		chunks[0].force();
+	}
+
+	// Maps one more chunk at the end of the file and publishes it to readers
+	private void addChunk() throws IOException {
+		MappedByteBuffer[] current = chunks;
+		MappedByteBuffer chunk = channel.map(MapMode.READ_WRITE, (long) current.length * chunkBytes, chunkBytes);
+		MappedByteBuffer[] grown = Arrays.copyOf(current, current.length + 1);
+		grown[current.length] = chunk;
+		chunks = grown;
+	}
+
+	// Independent view of the chunk holding the given file offset, positioned at it
+	private ByteBuffer chunkAt(MappedByteBuffer[] chunks, long position) {
+		ByteBuffer chunk = chunks[(int) (position / chunkBytes)].duplicate();
+		chunk.position((int) (position % chunkBytes));
+		return chunk;
+	}
+
+	@Override
+	public String get(String key) {
+		Location location = index.get(key);
+		if (location == null) {
+			return null;
+		}
+		return new String(read(location), UTF8);
+	}
+
+	private byte[] read(Location location) {
+		byte[] value = new byte[location.length];
+		chunkAt(location.chunks, location.offset).get(value);
+		return value;
+	}
+
+	@Override
+	public boolean containsKey(String key) {
+		return index.containsKey(key);
+	}
+
+	@Override
+	public void put(String key, String value) throws IOException {
+		byte[] keyBytes = key.getBytes(UTF8);
+		byte[] valueBytes = value.getBytes(UTF8);
+		long ticket;
+		synchronized (this) {
+			long valueOffset = append(keyBytes, valueBytes, (byte) 0);
+			Location replaced = index.put(key, new Location(chunks, valueOffset, valueBytes.length));
+			liveBytes += Record.HEADER_BYTES + keyBytes.length + valueBytes.length;
+			if (replaced != null) {
+				liveBytes -= Record.HEADER_BYTES + keyBytes.length + replaced.length;
+			}
+			ticket = commit.appended();
+			compactIfDue();
+		}
+		commit.await(ticket);
+	}
+
+	@Override
+	public void delete(String key) throws IOException {
+		byte[] keyBytes = key.getBytes(UTF8);
+		long ticket;
+		synchronized (this) {
+			append(keyBytes, new byte[0], Record.FLAG_TOMBSTONE);
+			Location removed = index.remove(key);
+			if (removed != null) {
+				liveBytes -= Record.HEADER_BYTES + keyBytes.length + removed.length;
+			}
+			ticket = commit.appended();
+			compactIfDue();
+		}
+		commit.await(ticket);
+	}
+
+	// Queues a compaction once dead records outweigh the live ones by at least a chunk; caller holds this
+	private void compactIfDue() {
+		long garbage = endOfData - HEADER_BYTES - liveBytes;
+		if (compactionScheduled || garbage <= liveBytes || garbage < chunkBytes) {
+			return;
+		}
+		compactionScheduled = true;
+		try {
+			compactor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						compact();
+					} catch (IOException e) {
+						LOGGER.log(Level.SEVERE, "Compaction of mapped store " + file + " failed", e);
+					} finally {
+						synchronized (MappedStore.this) {
+							compactionScheduled = false;
+						}
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			compactionScheduled = false; // Closing
+		}
+	}
+
+	/*
+	 * Copies the live records into a new file without holding this store's
+	 * lock, then takes it to copy the records written meanwhile, moves the
+	 * new file over the current one and maps it. The old chunks stay mapped
+	 * for the readers that still hold locations in them.
+	 */
+	private void compact() throws IOException {
+		long started = System.currentTimeMillis();
+		Map<String, Location> copied;
+		long clearsBefore;
+		synchronized (this) {
+			if (channel == null) {
+				return;
+			}
+			copied = new HashMap<>(index);
+			clearsBefore = clears;
+		}
+		Rewrite rewrite = new Rewrite();
+		try {
+			for (Map.Entry<String, Location> entry : copied.entrySet()) {
+				rewrite.add(entry.getKey(), entry.getValue());
+			}
+			rewrite.out.force(true);
+			synchronized (this) {
+				if (channel == null || clears != clearsBefore) {
+					return;
+				}
+				for (Map.Entry<String, Location> entry : index.entrySet()) {
+					if (copied.get(entry.getKey()) != entry.getValue()) {
+						rewrite.add(entry.getKey(), entry.getValue()); // Written during the copy
+					}
+				}
+				writeFully(rewrite.out, header(rewrite.position), 0);
+				rewrite.out.force(true);
+				Files.move(rewrite.tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+				long before = endOfData;
+				remap(rewrite.position);
+				MappedByteBuffer[] mapped = chunks;
+				liveBytes = 0;
+				for (Map.Entry<String, Location> entry : index.entrySet()) {
+					String key = entry.getKey();
+					index.put(key, new Location(mapped, rewrite.valueOffsets.get(key), entry.getValue().length));
+					liveBytes += rewrite.recordBytes.get(key);
+				}
+				LOGGER.info("Compacted mapped store " + file + " from " + before + " to " + endOfData + " bytes in "
+						+ (System.currentTimeMillis() - started) + " ms");
+			}
+		} finally {
+			rewrite.out.close();
+			Files.deleteIfExists(rewrite.tmp.toPath());
+		}
+	}
+
+	/**
+	 * New data file written by a compaction, laid out like the current one
+	 * but for its header, which is written last.
+	 */
+	private class Rewrite {
+		final File tmp = new File(file.getPath() + ".compact");
+		final FileChannel out;
+		final Map<String, Long> valueOffsets = new HashMap<>();
+		final Map<String, Integer> recordBytes = new HashMap<>();
+		long position = HEADER_BYTES;
+
+		Rewrite() throws IOException {
+			out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+		}
+
+		// Appends the current value of a key; a later call for the same key supersedes it
+		void add(String key, Location location) throws IOException {
+			byte[] keyBytes = key.getBytes(UTF8);
+			ByteBuffer record = Record.encode(keyBytes, read(location), (byte) 0);
+			int length = record.remaining();
+			int room = chunkBytes - (int) (position % chunkBytes);
+			if (room < length) {
+				if (room >= 4) {
+					writeFully(out, (ByteBuffer) ByteBuffer.allocate(4).putInt(PADDING).flip(), position);
+				}
+				position += room;
+			}
+			writeFully(out, record, position);
+			valueOffsets.put(key, position + Record.HEADER_BYTES + keyBytes.length);
+			recordBytes.put(key, length);
+			position += length;
+		}
+	}
+
+	private ByteBuffer header(long endOfData) {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+		header.putInt(MAGIC).putInt(chunkBytes).putLong(endOfData).flip();
+		return header;
+	}
+
+	// Opens the data file again after it was replaced and maps it up to the given end of data
+	private void remap(long end) throws IOException {
+		channel.close();
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		chunks = new MappedByteBuffer[0];
+		endOfData = end;
+		while ((long) chunks.length * chunkBytes < endOfData) {
+			addChunk();
+		}
+		syncedTo = endOfData;
+	}
+
+	private static void writeFully(FileChannel out, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += out.write(buffer, position);
+		}
+	}
+
+	// Forces the chunks written since the last sync, then the header with the commit point
+	private synchronized void forceWritten() {
+		if (channel == null) {
+			return;
+		}
+		int first = (int) (syncedTo / chunkBytes);
+		int last = (int) ((endOfData - 1) / chunkBytes);
+		for (int i = Math.max(first, 1); i <= last && i < chunks.length; i++) {
+			chunks[i].force();
+		}
+		chunks[0].force();
+		syncedTo = endOfData;
+	}
+
+	// Writes one record, growing the mapping if needed, and returns the offset of its value
+	private long append(byte[] key, byte[] value, byte flags) throws IOException {
+		int length = Record.HEADER_BYTES + key.length + value.length;
+		if (length > chunkBytes) {
+			throw new IOException("Record of " + length + " bytes does not fit into a " + chunkBytes + " byte chunk");
+		}
+		long position = endOfData;
+		int room = chunkBytes - (int) (position % chunkBytes);
+		if (room < length) {
+			if (room >= 4) {
+				chunkAt(chunks, position).putInt(PADDING);
+			}
+			position += room;
+		}
+		while (position + length > (long) chunks.length * chunkBytes) {
+			addChunk();
+		}
+
+		chunkAt(chunks, position).put(Record.encode(key, value, flags));
+		endOfData = position + length;
+		chunks[0].putLong(8, endOfData); // Commit point
+		return position + Record.HEADER_BYTES + key.length;
+	}
+
+	/**
+	 * Replaces the data file with an empty one, so the disk space of the old
+	 * one is freed once no reader maps it any more.
+	 */
+	@Override
+	public synchronized void clear() throws IOException {
+		index.clear();
+		clears++;
+		liveBytes = 0;
+		File tmp = new File(file.getPath() + ".tmp");
+		try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			writeFully(out, header(HEADER_BYTES), 0);
+			out.force(true);
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		remap(HEADER_BYTES);
+		LOGGER.info("Cleared mapped store " + file);
+	}
+
+	/**
+	 * Forces the mapped chunks out to the file.
+	 */
+	@Override
+	public synchronized void flush() {
+		for (MappedByteBuffer chunk : chunks) {
+			chunk.force();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		GroupCommit current;
+		ExecutorService currentCompactor;
+		synchronized (this) {
+			if (channel == null) {
+				return;
+			}
+			current = commit;
+			currentCompactor = compactor;
+		}
+		currentCompactor.shutdown(); // A compaction takes this store's lock to finish, so it is not awaited while holding it
+		try {
+			currentCompactor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		current.close(); // Final sync; takes this store's lock, so not called while holding it
+		closeChannel();
+	}
+
+	private synchronized void closeChannel() throws IOException {
+		if (channel == null) {
+			return;
+		}
+		flush();
+		channel.close();
+		channel = null;
+		chunks = new MappedByteBuffer[0]; // Unmapped once garbage collected
+		index.clear();
+		LOGGER.info("Closed mapped store " + file);
+	}
+
+	public int size() {
+		return index.size();
+	}
+
+	/**
+	 * Iterates over the indexed keys, reading each value when it is reached.
+	 */
+	@Override
+	public Iterator<Map.Entry<String, String>> iterator() {
+		final Iterator<String> keys = index.keySet().iterator();
+		return new Iterator<Map.Entry<String, String>>() {
+			private Map.Entry<String, String> next = advance();
+
+			private Map.Entry<String, String> advance() {
+				while (keys.hasNext()) {
+					String key = keys.next();
+					String value = get(key);
+					if (value != null) {
+						return new SimpleImmutableEntry<>(key, value);
+					}
+				}
+				return null;
+			}
+
+			@Override
+			public boolean hasNext() {
+				return next != null;
+			}
+
+			@Override
+			public Map.Entry<String, String> next() {
+				if (next == null) {
+					throw new NoSuchElementException();
+				}
+				Map.Entry<String, String> current = next;
+				next = advance();
+				return current;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+}
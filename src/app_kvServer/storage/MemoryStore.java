@@ -0,0 +1,56 @@
+package app_kvServer.storage;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Heap-only storage engine; everything is lost when the server stops.
+ */
+public class MemoryStore implements StorageEngine {
+
+	private final Map<String, String> entries = new ConcurrentHashMap<>();
+
+	@Override
+	public void open() {
+	}
+
+	@Override
+	public void close() {
+	}
+
+	@Override
+	public String get(String key) {
+		return entries.get(key);
+	}
+
+	@Override
+	public void put(String key, String value) {
+		entries.put(key, value);
+	}
+
+	@Override
+	public void delete(String key) {
+		entries.remove(key);
+	}
+
+	@Override
+	public boolean containsKey(String key) {
+		return entries.containsKey(key);
+	}
+
+	@Override
+	public void clear() {
+		entries.clear();
+	}
+
+	@Override
+	public void flush() {
+	}
+
+	@Override
+	public Iterator<Map.Entry<String, String>> iterator() {
+		return Collections.unmodifiableMap(entries).entrySet().iterator();
+	}
+}
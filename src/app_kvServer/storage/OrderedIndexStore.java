@@ -0,0 +1,125 @@
+package app_kvServer.storage;
+
+import java.io.IOException;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.logging.Logger;
+
+/**
+ * Adds range scans to an engine that keeps its keys unordered, such as a
+ * hash map or a Bitcask key directory.
+ *
+ * A skip list of all keys is kept on the heap next to the wrapped engine and
+ * rebuilt from it on open. It shares the key strings the engine keeps, so it
+ * costs little more than its nodes. A scan walks the skip list through the
+ * range and reads each value from the wrapped engine.
+ */
+public class OrderedIndexStore implements OrderedStorageEngine {
+
+	private static final Logger LOGGER = Logger.getLogger(OrderedIndexStore.class.getName());
+
+	private static final int WRITE_STRIPES = 64;
+
+	private final StorageEngine inner;
+	private final ConcurrentSkipListSet<String> keys = new ConcurrentSkipListSet<>();
+	private final Object[] writeStripes = new Object[WRITE_STRIPES];
+
+	/**
+	 * @param inner engine holding the values; opened and closed by this store
+	 */
+	public OrderedIndexStore(StorageEngine inner) {
+		this.inner = inner;
+		for (int i = 0; i < WRITE_STRIPES; i++) {
+			writeStripes[i] = new Object();
+		}
+	}
+
+	@Override
+	public void open() throws IOException {
+		inner.open();
+		long started = System.currentTimeMillis();
+		for (Iterator<Map.Entry<String, String>> it = inner.iterator(); it.hasNext();) {
+			keys.add(it.next().getKey());
+		}
+		LOGGER.info("Indexed " + keys.size() + " keys in " + (System.currentTimeMillis() - started) + " ms");
+	}
+
+	@Override
+	public void close() throws IOException {
+		inner.close();
+		keys.clear();
+	}
+
+	@Override
+	public String get(String key) throws IOException {
+		return inner.get(key);
+	}
+
+	@Override
+	public boolean containsKey(String key) throws IOException {
+		return inner.containsKey(key);
+	}
+
+	/**
+	 * Writes to the wrapped engine, then to the index. Writes to the same key
+	 * are ordered by a lock stripe, so the index ends up agreeing with the
+	 * engine.
+	 */
+	@Override
+	public void put(String key, String value) throws IOException {
+		synchronized (stripeOf(key)) {
+			inner.put(key, value);
+			keys.add(key);
+		}
+	}
+
+	@Override
+	public void delete(String key) throws IOException {
+		synchronized (stripeOf(key)) {
+			inner.delete(key);
+			keys.remove(key);
+		}
+	}
+
+	@Override
+	public void clear() throws IOException {
+		inner.clear();
+		keys.clear();
+	}
+
+	@Override
+	public void flush() throws IOException {
+		inner.flush();
+	}
+
+	@Override
+	public Iterator<Map.Entry<String, String>> iterator() throws IOException {
+		return inner.iterator();
+	}
+
+	@Override
+	public List<Map.Entry<String, String>> scan(String fromKey, String toKey, int limit) throws IOException {
+		if (toKey != null && fromKey.compareTo(toKey) >= 0) {
+			return new ArrayList<>();
+		}
+		NavigableSet<String> range = toKey == null ? keys.tailSet(fromKey, true) : keys.subSet(fromKey, true, toKey, false);
+		List<Map.Entry<String, String>> page = new ArrayList<>(Math.min(limit, 1024));
+		for (Iterator<String> it = range.iterator(); it.hasNext() && page.size() < limit;) {
+			String key = it.next();
+			String value = inner.get(key);
+			if (value != null) { // Otherwise deleted since the index was read
+				page.add(new SimpleImmutableEntry<>(key, value));
+			}
+		}
+		return page;
+	}
+
+	private Object stripeOf(String key) {
+		return writeStripes[(key.hashCode() & Integer.MAX_VALUE) % WRITE_STRIPES];
+	}
+}
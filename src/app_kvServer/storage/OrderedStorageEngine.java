@@ -0,0 +1,22 @@
+package app_kvServer.storage;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Storage engine that can read a range of keys in ascending key order.
+ */
+public interface OrderedStorageEngine extends StorageEngine {
+
+	/**
+	 * Reads one page of a range scan. A scan longer than a page continues
+	 * with the next page starting just behind the last key returned.
+	 * @param fromKey first key of the range (inclusive)
+	 * @param toKey end of the range (exclusive), null for no end
+	 * @param limit maximum number of entries to return
+	 * @return entries in the range in ascending key order; fewer than limit
+	 * 		only if the range holds no more
+	 */
+	public List<Map.Entry<String, String>> scan(String fromKey, String toKey, int limit) throws IOException;
+}
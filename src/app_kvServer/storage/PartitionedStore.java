@@ -0,0 +1,269 @@
+package app_kvServer.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+/**
+ * Spreads keys over a fixed number of engines by the hash of the key, so
+ * writes to different partitions go to different files under different
+ * locks. Open, flush, clear and close run on all partitions in parallel;
+ * every partition compacts in its own background threads anyway.
+ *
+ * A key's partition depends on the partition count, which is therefore
+ * recorded in the directory on first open, also for a single partition;
+ * opening it with another count fails instead of losing track of the keys.
+ * So does opening a store written before the count was recorded with more
+ * than one partition.
+ *
+ * Files: PARTITIONS_FILE with the count, and one directory per partition
+ * (see partitionDir) holding that partition's engine files. A single
+ * partition keeps its engine files directly in the directory, where they
+ * were before the store was partitioned.
+ */
+public class PartitionedStore implements OrderedStorageEngine {
+
+	private static final Logger LOGGER = Logger.getLogger(PartitionedStore.class.getName());
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	public static final String PARTITIONS_FILE = "partitions";
+
+	private final File dir;
+	private final List<OrderedStorageEngine> partitions;
+	private final String engineFile;
+	private ExecutorService workers;
+
+	/**
+	 * @param dir directory holding the partition directories
+	 * @param partitions engines in partition order, each keeping its files in
+	 * 		partitionDir(dir, i), or in dir if there is only one; opened and
+	 * 		closed by this store
+	 * @param engineFile file or directory the engine of a single partition
+	 * 		keeps in dir, which marks a store written without a count
+	 */
+	public PartitionedStore(File dir, List<OrderedStorageEngine> partitions, String engineFile) {
+		this.dir = dir;
+		this.partitions = new ArrayList<>(partitions);
+		this.engineFile = engineFile;
+	}
+
+	public static File partitionDir(File dir, int partition) {
+		return new File(dir, "partition-" + partition);
+	}
+
+	@Override
+	public void open() throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create storage directory " + dir);
+		}
+		checkPartitionCount();
+		workers = Executors.newFixedThreadPool(partitions.size(), new ThreadFactory() {
+			private int created;
+
+			@Override
+			public synchronized Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "partition-worker-" + created++);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		long started = System.currentTimeMillis();
+		forEachPartition(new PartitionTask() {
+			@Override
+			public void run(StorageEngine partition) throws IOException {
+				partition.open();
+			}
+		});
+		LOGGER.info("Opened " + partitions.size() + " partitions in " + dir + " in "
+				+ (System.currentTimeMillis() - started) + " ms");
+	}
+
+	private void checkPartitionCount() throws IOException {
+		File countFile = new File(dir, PARTITIONS_FILE);
+		if (!countFile.exists()) {
+			if (partitions.size() > 1 && new File(dir, engineFile).exists()) {
+				throw new IOException(dir + " holds an unpartitioned store, not " + partitions.size() + " partitions");
+			}
+			Files.write(countFile.toPath(), String.valueOf(partitions.size()).getBytes(UTF8));
+			return;
+		}
+		String count = new String(Files.readAllBytes(countFile.toPath()), UTF8).trim();
+		if (!count.equals(String.valueOf(partitions.size()))) {
+			throw new IOException(dir + " holds " + count + " partitions, not " + partitions.size());
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (workers == null) {
+			return;
+		}
+		try {
+			forEachPartition(new PartitionTask() {
+				@Override
+				public void run(StorageEngine partition) throws IOException {
+					partition.close();
+				}
+			});
+		} finally {
+			workers.shutdown();
+			workers = null;
+		}
+	}
+
+	@Override
+	public String get(String key) throws IOException {
+		return partitionOf(key).get(key);
+	}
+
+	@Override
+	public boolean containsKey(String key) throws IOException {
+		return partitionOf(key).containsKey(key);
+	}
+
+	@Override
+	public void put(String key, String value) throws IOException {
+		partitionOf(key).put(key, value);
+	}
+
+	@Override
+	public void delete(String key) throws IOException {
+		partitionOf(key).delete(key);
+	}
+
+	@Override
+	public void clear() throws IOException {
+		forEachPartition(new PartitionTask() {
+			@Override
+			public void run(StorageEngine partition) throws IOException {
+				partition.clear();
+			}
+		});
+	}
+
+	@Override
+	public void flush() throws IOException {
+		forEachPartition(new PartitionTask() {
+			@Override
+			public void run(StorageEngine partition) throws IOException {
+				partition.flush();
+			}
+		});
+	}
+
+	/**
+	 * Iterates over one partition after the other, so entries are not in key
+	 * order.
+	 */
+	@Override
+	public Iterator<Map.Entry<String, String>> iterator() throws IOException {
+		final List<Iterator<Map.Entry<String, String>>> iterators = new ArrayList<>();
+		for (StorageEngine partition : partitions) {
+			iterators.add(partition.iterator());
+		}
+		return new Iterator<Map.Entry<String, String>>() {
+			private int current;
+
+			@Override
+			public boolean hasNext() {
+				while (current < iterators.size() && !iterators.get(current).hasNext()) {
+					current++;
+				}
+				return current < iterators.size();
+			}
+
+			@Override
+			public Map.Entry<String, String> next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return iterators.get(current).next();
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Reads up to limit entries from every partition and keeps the first
+	 * limit of them in key order.
+	 */
+	@Override
+	public List<Map.Entry<String, String>> scan(String fromKey, String toKey, int limit) throws IOException {
+		List<Map.Entry<String, String>> merged = new ArrayList<>();
+		for (OrderedStorageEngine partition : partitions) {
+			merged.addAll(partition.scan(fromKey, toKey, limit));
+		}
+		Collections.sort(merged, new Comparator<Map.Entry<String, String>>() {
+			@Override
+			public int compare(Map.Entry<String, String> a, Map.Entry<String, String> b) {
+				return a.getKey().compareTo(b.getKey());
+			}
+		});
+		return merged.size() > limit ? new ArrayList<>(merged.subList(0, limit)) : merged;
+	}
+
+	public int getPartitionCount() {
+		return partitions.size();
+	}
+
+	private OrderedStorageEngine partitionOf(String key) {
+		return partitions.get((key.hashCode() & Integer.MAX_VALUE) % partitions.size());
+	}
+
+	private interface PartitionTask {
+		void run(StorageEngine partition) throws IOException;
+	}
+
+	// Runs the task on all partitions in parallel and waits for all of them
+	private void forEachPartition(final PartitionTask task) throws IOException {
+		if (workers == null) {
+			throw new IOException("Partitioned store is not open");
+		}
+		List<Future<Void>> results = new ArrayList<>();
+		for (final StorageEngine partition : partitions) {
+			results.add(workers.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws IOException {
+					task.run(partition);
+					return null;
+				}
+			}));
+		}
+		IOException failure = null;
+		for (Future<Void> result : results) {
+			try {
+				result.get();
+			} catch (ExecutionException e) {
+				if (failure == null) {
+					failure = e.getCause() instanceof IOException ? (IOException) e.getCause()
+							: new IOException("Partition task failed", e.getCause());
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for partitions", e);
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+}
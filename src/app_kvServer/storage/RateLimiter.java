@@ -0,0 +1,49 @@
+package app_kvServer.storage;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throttles background I/O such as compactions to a number of bytes per
+ * second, so it leaves disk bandwidth for the requests of clients. Bytes
+ * are paid for before they are moved; a caller that runs ahead of the rate
+ * sleeps until its budget catches up.
+ */
+class RateLimiter {
+
+	private static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(100); // Unused budget kept after idling
+
+	private final long bytesPerSecond;
+	private long nextFree = System.nanoTime(); // Time at which all bytes paid for so far are within the rate
+
+	/**
+	 * @param bytesPerSecond sustained rate, 0 or less for no limit
+	 */
+	RateLimiter(long bytesPerSecond) {
+		this.bytesPerSecond = bytesPerSecond;
+	}
+
+	/**
+	 * Blocks until the given number of bytes may be read or written.
+	 */
+	void acquire(long bytes) throws InterruptedIOException {
+		if (bytesPerSecond <= 0) {
+			return;
+		}
+		long wait;
+		synchronized (this) {
+			long now = System.nanoTime();
+			nextFree = Math.max(nextFree, now - BURST_NANOS);
+			nextFree += bytes * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond;
+			wait = nextFree - now;
+		}
+		if (wait > 0) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(wait);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while throttling background I/O");
+			}
+		}
+	}
+}
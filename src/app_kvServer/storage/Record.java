@@ -0,0 +1,103 @@
+package app_kvServer.storage;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+/**
+ * Binary record used by the append-only files of the {@link WriteAheadLog}
+ * and the {@link BitcaskStore}.
+ *
+ * Layout: int keyLength, int valueLength, byte flags, int crc, key, value
+ * The CRC32 covers the lengths, the flags, the key and the value, so keys and
+ * values may contain any character and damaged records are detected when the
+ * file is read back by a {@link RecordReader}.
+ */
+final class Record {
+
+	static final int HEADER_BYTES = 13;
+	static final byte FLAG_TOMBSTONE = 1;
+
+	private static final int CRC_OFFSET = 9;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final long offset;
+	private final byte[] key;
+	private final byte[] value;
+	private final byte flags;
+
+	Record(long offset, byte[] key, byte[] value, byte flags) {
+		this.offset = offset;
+		this.key = key;
+		this.value = value;
+		this.flags = flags;
+	}
+
+	/**
+	 * @return file offset of the start of the record
+	 */
+	long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * @return file offset of the first value byte
+	 */
+	long getValueOffset() {
+		return offset + HEADER_BYTES + key.length;
+	}
+
+	/**
+	 * @return file offset just behind the record
+	 */
+	long getEnd() {
+		return getValueOffset() + value.length;
+	}
+
+	String getKey() {
+		return new String(key, UTF8);
+	}
+
+	String getValue() {
+		return new String(value, UTF8);
+	}
+
+	int getValueLength() {
+		return value.length;
+	}
+
+	boolean isTombstone() {
+		return (flags & FLAG_TOMBSTONE) != 0;
+	}
+
+	boolean hasFlag(byte flag) {
+		return (flags & flag) != 0;
+	}
+
+	/**
+	 * Encodes a record into a buffer ready to be written.
+	 */
+	static ByteBuffer encode(byte[] key, byte[] value, byte flags) {
+		byte[] record = new byte[HEADER_BYTES + key.length + value.length];
+		ByteBuffer buffer = ByteBuffer.wrap(record);
+		buffer.putInt(key.length).putInt(value.length).put(flags).putInt(0).put(key).put(value);
+		buffer.putInt(CRC_OFFSET, checksum(record, 0, record.length));
+		buffer.flip();
+		return buffer;
+	}
+
+	static ByteBuffer encode(String key, String value, byte flags) {
+		return encode(key.getBytes(UTF8), value.getBytes(UTF8), flags);
+	}
+
+	/**
+	 * Computes the checksum of an encoded record, skipping its CRC field.
+	 * @param length length of the whole record including the header
+	 */
+	static int checksum(byte[] bytes, int start, int length) {
+		CRC32 crc = new CRC32();
+		crc.update(bytes, start, CRC_OFFSET);
+		crc.update(bytes, start + HEADER_BYTES, length - HEADER_BYTES);
+		return (int) crc.getValue();
+	}
+}
@@ -0,0 +1,175 @@
+package app_kvServer.storage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Logger;
+
+/**
+ * Reads {@link Record}s front to back through a large buffer.
+ *
+ * Reading stops at the first record that does not decode (impossible
+ * lengths or a CRC mismatch). If no valid record follows it, it is a torn
+ * tail left by a crash in the middle of an append: {@link #next()} returns
+ * null and {@link #truncateTornTail()} cuts it off so appends can continue
+ * behind the last good record. If a valid record does follow, the file was
+ * damaged in the middle and a {@link CorruptRecordException} is thrown
+ * rather than silently dropping everything behind the damage.
+ */
+class RecordReader implements Closeable {
+
+	private static final Logger LOGGER = Logger.getLogger(RecordReader.class.getName());
+	private static final int BUFFER_BYTES = 256 * 1024;
+
+	private final File file;
+	private final FileChannel channel;
+	private final long size;
+	private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES);
+	private long position; // File offset of the next record, i.e. of buffer.position()
+	private boolean torn;
+
+	/**
+	 * @param start file offset of the first record
+	 */
+	RecordReader(File file, long start) throws IOException {
+		this.file = file;
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		this.size = channel.size();
+		this.position = start;
+		buffer.flip();
+	}
+
+	/**
+	 * @return the next record, or null at the end of the file or of the
+	 * 		readable part of it
+	 * @throws CorruptRecordException
+	 * 		when an undecodable record is followed by valid ones
+	 */
+	Record next() throws IOException {
+		if (torn || position == size) {
+			return null;
+		}
+		if (!fill(Record.HEADER_BYTES)) {
+			return damaged();
+		}
+		int start = buffer.position();
+		int keyLength = buffer.getInt(start);
+		int valueLength = buffer.getInt(start + 4);
+		byte flags = buffer.get(start + 8);
+		int crc = buffer.getInt(start + 9);
+		long length = (long) Record.HEADER_BYTES + keyLength + valueLength;
+		if (keyLength < 0 || valueLength < 0 || length > size - position) {
+			return damaged();
+		}
+		fill((int) length);
+		start = buffer.position();
+		if (Record.checksum(buffer.array(), start, (int) length) != crc) {
+			return damaged();
+		}
+
+		byte[] key = new byte[keyLength];
+		byte[] value = new byte[valueLength];
+		buffer.position(start + Record.HEADER_BYTES);
+		buffer.get(key);
+		buffer.get(value);
+		Record record = new Record(position, key, value, flags);
+		position += length;
+		return record;
+	}
+
+	/**
+	 * @return true if reading stopped at a torn record rather than at the
+	 * 		end of the file
+	 */
+	boolean isTorn() {
+		return torn;
+	}
+
+	/**
+	 * @return file offset behind the last record returned
+	 */
+	long getPosition() {
+		return position;
+	}
+
+	/**
+	 * Cuts the file behind the last valid record if reading stopped at a
+	 * torn record. Call after {@link #next()} returned null.
+	 */
+	void truncateTornTail() throws IOException {
+		if (!torn) {
+			return;
+		}
+		LOGGER.warning("Truncating torn record at offset " + position + " of " + file + " (" + (size - position)
+				+ " bytes)");
+		try (FileChannel writable = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+			writable.truncate(position);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	// Makes at least the given number of bytes available in the buffer unless the file ends first
+	private boolean fill(int bytes) throws IOException {
+		if (buffer.remaining() >= bytes) {
+			return true;
+		}
+		if (buffer.capacity() < bytes) {
+			ByteBuffer grown = ByteBuffer.allocate(Math.max(bytes, 2 * buffer.capacity()));
+			grown.put(buffer);
+			buffer = grown;
+		} else {
+			buffer.compact();
+		}
+		long fileOffset = position + buffer.position();
+		while (buffer.hasRemaining() && fileOffset < size) {
+			int read = channel.read(buffer, fileOffset);
+			if (read < 0) {
+				break;
+			}
+			fileOffset += read;
+		}
+		buffer.flip();
+		return buffer.remaining() >= bytes;
+	}
+
+	private Record damaged() throws IOException {
+		if (hasValidRecordAfter(position + 1)) {
+			throw new CorruptRecordException(file, position);
+		}
+		torn = true;
+		return null;
+	}
+
+	// Looks for any decodable record starting behind the given offset; only runs once a record failed to decode
+	private boolean hasValidRecordAfter(long from) throws IOException {
+		if (from >= size) {
+			return false;
+		}
+		MappedByteBuffer tail = channel.map(MapMode.READ_ONLY, from, size - from);
+		int end = tail.limit();
+		for (int i = 0; i + Record.HEADER_BYTES <= end; i++) {
+			int keyLength = tail.getInt(i);
+			int valueLength = tail.getInt(i + 4);
+			long length = (long) Record.HEADER_BYTES + keyLength + valueLength;
+			if (keyLength < 0 || valueLength < 0 || length > end - i) {
+				continue;
+			}
+			byte[] candidate = new byte[(int) length];
+			tail.position(i);
+			tail.get(candidate);
+			if (Record.checksum(candidate, 0, candidate.length) == tail.getInt(i + 9)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
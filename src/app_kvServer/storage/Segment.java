@@ -0,0 +1,351 @@
+package app_kvServer.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable, sorted on-disk run of key-value records written by the
+ * {@link LSMStore} when a memtable is flushed or segments are compacted.
+ *
+ * File layout:
+ * 		record*   : int keyLength, key, byte flags, int valueLength, value
+ * 		index     : int count, (int keyLength, key, long offset)*
+ * 		footer    : long indexOffset, int recordCount, int MAGIC
+ * The index holds the first key of every block of roughly
+ * {@link #BLOCK_BYTES} bytes, so a lookup reads a single block. A
+ * {@link BloomFilter} over all keys of the segment is kept in a .bloom file
+ * next to it, so most lookups of keys the segment does not hold read
+ * nothing at all.
+ */
+class Segment {
+
+	static final String TOMBSTONE = new String("\u0000deleted"); // Compared by identity only
+	static final byte FLAG_TOMBSTONE = 1;
+	static final String FILTER_SUFFIX = ".bloom";
+
+	private static final int MAGIC = 0x4C534D31; // "LSM1"
+	private static final int FOOTER_BYTES = 16;
+	private static final int BLOCK_BYTES = 4096;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final File file;
+	private final FileChannel channel;
+	private final String[] blockKeys;
+	private final long[] blockOffsets;
+	private final long dataEnd;
+	private final int recordCount;
+	private BloomFilter filter; // Set by open before the segment is handed out
+
+	private Segment(File file, FileChannel channel, String[] blockKeys, long[] blockOffsets, long dataEnd, int recordCount) {
+		this.file = file;
+		this.channel = channel;
+		this.blockKeys = blockKeys;
+		this.blockOffsets = blockOffsets;
+		this.dataEnd = dataEnd;
+		this.recordCount = recordCount;
+	}
+
+	/**
+	 * Writes the given entries, which must be sorted by key, to a new segment
+	 * file. A value identical to {@link #TOMBSTONE} is stored as a deletion
+	 * marker. The segment and its filter are synced and moved into place
+	 * before the segment is opened.
+	 * @param expectedKeys number of entries the filter is sized for
+	 * @param falsePositiveRate false-positive rate of the filter
+	 */
+	static Segment write(File file, Iterator<Entry<String, String>> entries, long expectedKeys, double falsePositiveRate)
+			throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		BloomFilter filter = BloomFilter.create(expectedKeys, falsePositiveRate);
+		List<String> keys = new ArrayList<>();
+		List<Long> offsets = new ArrayList<>();
+		long position = 0;
+		long blockStart = -BLOCK_BYTES;
+		int count = 0;
+
+		FileOutputStream fileOut = new FileOutputStream(tmp);
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 64 * 1024))) {
+			while (entries.hasNext()) {
+				Entry<String, String> entry = entries.next();
+				if (position - blockStart >= BLOCK_BYTES) {
+					keys.add(entry.getKey());
+					offsets.add(position);
+					blockStart = position;
+				}
+				filter.add(entry.getKey()); // Deletion markers too, they hide older segments
+				byte[] key = entry.getKey().getBytes(UTF8);
+				boolean deleted = entry.getValue() == TOMBSTONE;
+				byte[] value = deleted ? new byte[0] : entry.getValue().getBytes(UTF8);
+				out.writeInt(key.length);
+				out.write(key);
+				out.writeByte(deleted ? FLAG_TOMBSTONE : 0);
+				out.writeInt(value.length);
+				out.write(value);
+				position += 9 + key.length + value.length;
+				count++;
+			}
+
+			long indexOffset = position;
+			out.writeInt(keys.size());
+			for (int i = 0; i < keys.size(); i++) {
+				byte[] key = keys.get(i).getBytes(UTF8);
+				out.writeInt(key.length);
+				out.write(key);
+				out.writeLong(offsets.get(i));
+			}
+			out.writeLong(indexOffset);
+			out.writeInt(count);
+			out.writeInt(MAGIC);
+			out.flush();
+			fileOut.getFD().sync();
+		}
+		filter.write(filterFileOf(file));
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return open(file, falsePositiveRate);
+	}
+
+	/**
+	 * Opens an existing segment file and loads its block index and filter.
+	 * A missing or damaged filter is rebuilt from the segment and written.
+	 * @param falsePositiveRate false-positive rate of a rebuilt filter
+	 */
+	static Segment open(File file, double falsePositiveRate) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			if (size < FOOTER_BYTES) {
+				throw new IOException("Segment file too short: " + file);
+			}
+			ByteBuffer footer = read(channel, size - FOOTER_BYTES, FOOTER_BYTES);
+			long indexOffset = footer.getLong();
+			int recordCount = footer.getInt();
+			if (footer.getInt() != MAGIC || indexOffset < 0 || indexOffset > size - FOOTER_BYTES) {
+				throw new IOException("Corrupt segment footer: " + file);
+			}
+
+			ByteBuffer index = read(channel, indexOffset, (int) (size - FOOTER_BYTES - indexOffset));
+			int blocks = index.getInt();
+			String[] blockKeys = new String[blocks];
+			long[] blockOffsets = new long[blocks];
+			for (int i = 0; i < blocks; i++) {
+				byte[] key = new byte[index.getInt()];
+				index.get(key);
+				blockKeys[i] = new String(key, UTF8);
+				blockOffsets[i] = index.getLong();
+			}
+			Segment segment = new Segment(file, channel, blockKeys, blockOffsets, indexOffset, recordCount);
+			segment.filter = BloomFilter.read(filterFileOf(file));
+			if (segment.filter == null) {
+				segment.filter = segment.rebuildFilter(falsePositiveRate);
+			}
+			return segment;
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new EOFException("Unexpected end of segment at " + (position + buffer.position()));
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private BloomFilter rebuildFilter(double falsePositiveRate) throws IOException {
+		BloomFilter rebuilt = BloomFilter.create(recordCount, falsePositiveRate);
+		Iterator<Entry<String, String>> entries = iterator();
+		while (entries.hasNext()) {
+			rebuilt.add(entries.next().getKey());
+		}
+		rebuilt.write(filterFileOf(file));
+		return rebuilt;
+	}
+
+	/**
+	 * @return the filter file belonging to a segment file
+	 */
+	static File filterFileOf(File segmentFile) {
+		String name = segmentFile.getName();
+		int dot = name.lastIndexOf('.');
+		return new File(segmentFile.getParentFile(), (dot < 0 ? name : name.substring(0, dot)) + FILTER_SUFFIX);
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	int getRecordCount() {
+		return recordCount;
+	}
+
+	/**
+	 * Looks up a key by reading the one block that may contain it, unless the
+	 * filter rules the key out.
+	 * @return the value, {@link #TOMBSTONE} if the key was deleted in this
+	 * 		segment, or null if the segment does not mention the key
+	 */
+	String get(String key) throws IOException {
+		if (!filter.mightContain(key)) {
+			return null;
+		}
+		int block = Arrays.binarySearch(blockKeys, key);
+		if (block < 0) {
+			block = -block - 2; // Block whose first key is the greatest one below key
+			if (block < 0) {
+				return null;
+			}
+		}
+		long start = blockOffsets[block];
+		long end = block + 1 < blockOffsets.length ? blockOffsets[block + 1] : dataEnd;
+		ByteBuffer buffer = read(channel, start, (int) (end - start));
+
+		while (buffer.hasRemaining()) {
+			byte[] candidate = new byte[buffer.getInt()];
+			buffer.get(candidate);
+			byte flags = buffer.get();
+			int valueLength = buffer.getInt();
+			int order = new String(candidate, UTF8).compareTo(key);
+			if (order == 0) {
+				if ((flags & FLAG_TOMBSTONE) != 0) {
+					return TOMBSTONE;
+				}
+				byte[] value = new byte[valueLength];
+				buffer.get(value);
+				return new String(value, UTF8);
+			}
+			if (order > 0) {
+				return null;
+			}
+			buffer.position(buffer.position() + valueLength);
+		}
+		return null;
+	}
+
+	/**
+	 * Streams all records of the segment in key order, including deletion
+	 * markers. The iterator reads the file independently of lookups.
+	 */
+	Iterator<Entry<String, String>> iterator() throws IOException {
+		return iterator(null);
+	}
+
+	/**
+	 * Streams the records from the given key on, starting at the block that
+	 * may hold it. The caller closes the iterator if it stops early.
+	 * @param fromKey first key to return, null for the start of the segment
+	 */
+	RecordIterator iterator(String fromKey) throws IOException {
+		long start = 0;
+		if (fromKey != null && blockKeys.length > 0) {
+			int block = Arrays.binarySearch(blockKeys, fromKey);
+			if (block < 0) {
+				block = Math.max(0, -block - 2);
+			}
+			start = blockOffsets[block];
+		}
+		return new RecordIterator(start, fromKey);
+	}
+
+	/**
+	 * Iterator over the records of a segment file through its own stream.
+	 */
+	class RecordIterator implements Iterator<Entry<String, String>>, Closeable {
+		private final DataInputStream in;
+		private long position;
+		private Entry<String, String> next;
+
+		private RecordIterator(long start, String fromKey) throws IOException {
+			FileInputStream fileIn = new FileInputStream(file);
+			fileIn.getChannel().position(start);
+			in = new DataInputStream(new BufferedInputStream(fileIn, 64 * 1024));
+			position = start;
+			next = advance();
+			while (fromKey != null && next != null && next.getKey().compareTo(fromKey) < 0) {
+				next = advance();
+			}
+		}
+
+		private Entry<String, String> advance() {
+			if (position >= dataEnd) {
+				closeQuietly();
+				return null;
+			}
+			try {
+				byte[] key = new byte[in.readInt()];
+				in.readFully(key);
+				byte flags = in.readByte();
+				byte[] value = new byte[in.readInt()];
+				in.readFully(value);
+				position += 9 + key.length + value.length;
+				String decoded = (flags & FLAG_TOMBSTONE) != 0 ? TOMBSTONE : new String(value, UTF8);
+				return new SimpleImmutableEntry<>(new String(key, UTF8), decoded);
+			} catch (IOException e) {
+				closeQuietly();
+				throw new IllegalStateException("Error reading segment " + file, e);
+			}
+		}
+
+		private void closeQuietly() {
+			try {
+				in.close();
+			} catch (IOException e) {
+				// Nothing left to read anyway
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		public Entry<String, String> next() {
+			if (next == null) {
+				throw new NoSuchElementException();
+			}
+			Entry<String, String> current = next;
+			next = advance();
+			return current;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+	void close() throws IOException {
+		channel.close();
+	}
+}
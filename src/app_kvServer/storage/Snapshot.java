@@ -0,0 +1,258 @@
+package app_kvServer.storage;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Copy of the entries of a {@link LogStore} that, together with the logs
+ * written since it was started, restores the store. The entries are spread
+ * over several part files by key hash, so the parts hold disjoint keys and
+ * are written and loaded by one thread each.
+ *
+ * Files:
+ * 		SNAPSHOT                        : name of the first log to replay on top of the snapshot,
+ * 		                                  then the names of its parts, one per line
+ * 		snapshot-<generation>-<part>.snap : sequence of {@link Record}s
+ * The SNAPSHOT file is replaced atomically once all parts are synced, so a
+ * crash while writing leaves the previous snapshot in place.
+ */
+class Snapshot {
+
+	private static final Logger LOGGER = Logger.getLogger(Snapshot.class.getName());
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	static final String POINTER_FILE = "SNAPSHOT";
+	private static final String PART_PREFIX = "snapshot-";
+	private static final String PART_SUFFIX = ".snap";
+
+	private Snapshot() {
+	}
+
+	/**
+	 * @return number of parts to split a snapshot into on this machine
+	 */
+	static int defaultParts() {
+		return Math.max(1, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Writes the given entries as snapshot generation and makes it the
+	 * current snapshot. Parts of older generations are deleted afterwards.
+	 * The entries may change while they are written, as long as every change
+	 * is also in the given log or a later one.
+	 *
+	 * The parts are written by one thread each, up to the number of cores.
+	 * Every thread walks all entries and writes those of its part, so the
+	 * encoding, writing and syncing run in parallel.
+	 * @param replayFrom name of the first log to replay on top of the snapshot
+	 * @param entries map that can be iterated by several threads at once
+	 */
+	static void write(File dir, long generation, String replayFrom, final Map<String, String> entries, final int parts)
+			throws IOException {
+		long started = System.currentTimeMillis();
+		final File[] files = new File[parts];
+		for (int i = 0; i < parts; i++) {
+			files[i] = new File(dir, PART_PREFIX + generation + "-" + i + PART_SUFFIX);
+		}
+		ExecutorService writers = Executors.newFixedThreadPool(Math.min(parts, defaultParts()));
+		try {
+			List<Future<Integer>> results = new ArrayList<>();
+			for (int i = 0; i < parts; i++) {
+				final int part = i;
+				results.add(writers.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() throws IOException {
+						return writePart(files[part], part, parts, entries);
+					}
+				}));
+			}
+			for (Future<Integer> result : results) {
+				result.get();
+			}
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Writing snapshot to " + dir + " failed", e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while writing snapshot to " + dir, e);
+		} finally {
+			writers.shutdownNow();
+		}
+
+		File tmp = new File(dir, POINTER_FILE + ".tmp");
+		FileOutputStream pointerOut = new FileOutputStream(tmp);
+		try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(pointerOut, UTF8))) {
+			writer.write(replayFrom);
+			writer.newLine();
+			for (File file : files) {
+				writer.write(file.getName());
+				writer.newLine();
+			}
+			writer.flush();
+			pointerOut.getFD().sync();
+		}
+		Files.move(tmp.toPath(), new File(dir, POINTER_FILE).toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		deleteParts(dir, generation);
+		LOGGER.info("Wrote snapshot " + generation + " of about " + entries.size() + " keys in " + parts + " parts to "
+				+ dir + " in " + (System.currentTimeMillis() - started) + " ms");
+	}
+
+	private static int partOf(String key, int parts) {
+		return (key.hashCode() & Integer.MAX_VALUE) % parts;
+	}
+
+	// Writes and syncs the entries that belong to the given part
+	private static int writePart(File file, int part, int parts, Map<String, String> entries) throws IOException {
+		int keys = 0;
+		FileOutputStream fileOut = new FileOutputStream(file);
+		try (BufferedOutputStream out = new BufferedOutputStream(fileOut, 64 * 1024)) {
+			for (Map.Entry<String, String> entry : entries.entrySet()) {
+				String value = entry.getValue();
+				if (value != null && partOf(entry.getKey(), parts) == part) {
+					ByteBuffer record = Record.encode(entry.getKey(), value, (byte) 0);
+					out.write(record.array(), 0, record.limit());
+					keys++;
+				}
+			}
+			out.flush();
+			fileOut.getFD().sync();
+		}
+		return keys;
+	}
+
+	/**
+	 * Loads the parts of the current snapshot into the given map, one thread
+	 * per part up to the number of cores, and logs progress after each part.
+	 * @return name of the first log to replay on top of the snapshot, or null
+	 * 		if there is no snapshot
+	 */
+	static String load(File dir, final Map<String, String> target) throws IOException {
+		List<String> pointer = readPointer(dir);
+		if (pointer.isEmpty()) {
+			return null;
+		}
+		final List<File> parts = new ArrayList<>();
+		for (String name : pointer.subList(1, pointer.size())) {
+			parts.add(new File(dir, name));
+		}
+		if (parts.isEmpty()) {
+			return pointer.get(0);
+		}
+		long started = System.currentTimeMillis();
+		ExecutorService loaders = Executors.newFixedThreadPool(Math.min(parts.size(), defaultParts()));
+		final AtomicInteger loaded = new AtomicInteger();
+		try {
+			List<Future<Integer>> results = new ArrayList<>();
+			for (final File part : parts) {
+				results.add(loaders.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() throws IOException {
+						int keys = loadPart(part, target);
+						LOGGER.info("Recovery: loaded snapshot part " + loaded.incrementAndGet() + " of " + parts.size()
+								+ " (" + keys + " keys from " + part.getName() + ")");
+						return keys;
+					}
+				}));
+			}
+			for (Future<Integer> result : results) {
+				result.get();
+			}
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Loading snapshot from " + dir + " failed", e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while loading snapshot from " + dir, e);
+		} finally {
+			loaders.shutdownNow();
+		}
+		LOGGER.info("Recovery: loaded " + target.size() + " keys from snapshot " + generationOf(parts.get(0)) + " in "
+				+ (System.currentTimeMillis() - started) + " ms, replaying from " + pointer.get(0));
+		return pointer.get(0);
+	}
+
+	private static int loadPart(File part, Map<String, String> target) throws IOException {
+		int keys = 0;
+		try (RecordReader reader = new RecordReader(part, 0)) {
+			Record record;
+			while ((record = reader.next()) != null) {
+				target.put(record.getKey(), record.getValue());
+				keys++;
+			}
+			if (reader.isTorn()) { // Parts are synced before they are published
+				throw new IOException("Snapshot part " + part + " is damaged at offset " + reader.getPosition());
+			}
+		}
+		return keys;
+	}
+
+	private static List<String> readPointer(File dir) throws IOException {
+		List<String> lines = new ArrayList<>();
+		File pointer = new File(dir, POINTER_FILE);
+		if (!pointer.exists()) {
+			return lines;
+		}
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(pointer), UTF8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (!line.isEmpty()) {
+					lines.add(line);
+				}
+			}
+		}
+		return lines;
+	}
+
+	private static long generationOf(File part) {
+		String name = part.getName();
+		return Long.parseLong(name.substring(PART_PREFIX.length(), name.lastIndexOf('-')));
+	}
+
+	/**
+	 * Deletes the pointer and all parts, e.g. when the store is cleared.
+	 */
+	static void deleteAll(File dir) throws IOException {
+		Files.deleteIfExists(new File(dir, POINTER_FILE).toPath());
+		deleteParts(dir, Long.MAX_VALUE);
+	}
+
+	// Parts of generations other than the given one: superseded snapshots or leftovers of failed ones
+	private static void deleteParts(File dir, long keep) throws IOException {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			String name = file.getName();
+			if (name.startsWith(PART_PREFIX) && name.endsWith(PART_SUFFIX) && generationOf(file) != keep) {
+				Files.deleteIfExists(file.toPath());
+			}
+		}
+	}
+}
@@ -0,0 +1,176 @@
+package app_kvServer.storage;
+
+import java.io.File;
+
+/**
+ * Settings that select and tune the storage engine of a KVServer.
+ */
+public class StorageConfig {
+
+	public static final String DEFAULT_ENGINE = StorageFactory.LOG;
+
+	private String engine = DEFAULT_ENGINE;
+	private File dataDir = new File(".");
+	private Durability durability = Durability.DEFAULT;
+	private long snapshotIntervalSeconds = LogStore.DEFAULT_SNAPSHOT_INTERVAL_SECONDS;
+	private long memoryBudgetBytes = TieredStore.DEFAULT_MEMORY_BUDGET_BYTES;
+	private double bloomFalsePositiveRate = LSMStore.DEFAULT_BLOOM_FALSE_POSITIVE_RATE;
+	private long compactionBytesPerSecond = LSMStore.DEFAULT_COMPACTION_BYTES_PER_SECOND;
+	private String compression = ValueCodec.NONE;
+	private int compressionThresholdBytes = ValueCodec.DEFAULT_THRESHOLD_BYTES;
+	private int dedupMinValueLength = 0;
+	private boolean multiVersion = false;
+	private int partitions = 1;
+	private Boolean readThrough; // Null: decided by the engine
+
+	public String getEngine() {
+		return engine;
+	}
+
+	public void setEngine(String engine) {
+		this.engine = engine;
+	}
+
+	/**
+	 * @return directory under which the engine keeps its files
+	 */
+	public File getDataDir() {
+		return dataDir;
+	}
+
+	public void setDataDir(File dataDir) {
+		this.dataDir = dataDir;
+	}
+
+	/**
+	 * @return when writes are synced to disk and may be acknowledged
+	 */
+	public Durability getDurability() {
+		return durability;
+	}
+
+	public void setDurability(Durability durability) {
+		this.durability = durability;
+	}
+
+	/**
+	 * @return seconds between background snapshots of the log engine, 0 to
+	 * 		only snapshot on shutdown
+	 */
+	public long getSnapshotIntervalSeconds() {
+		return snapshotIntervalSeconds;
+	}
+
+	public void setSnapshotIntervalSeconds(long snapshotIntervalSeconds) {
+		this.snapshotIntervalSeconds = snapshotIntervalSeconds;
+	}
+
+	/**
+	 * @return heap budget of the tiered engine's hot tier in bytes
+	 */
+	public long getMemoryBudgetBytes() {
+		return memoryBudgetBytes;
+	}
+
+	public void setMemoryBudgetBytes(long memoryBudgetBytes) {
+		this.memoryBudgetBytes = memoryBudgetBytes;
+	}
+
+	/**
+	 * @return false-positive rate of the Bloom filters of the LSM engine's segments
+	 */
+	public double getBloomFalsePositiveRate() {
+		return bloomFalsePositiveRate;
+	}
+
+	public void setBloomFalsePositiveRate(double bloomFalsePositiveRate) {
+		this.bloomFalsePositiveRate = bloomFalsePositiveRate;
+	}
+
+	/**
+	 * @return I/O rate of background compactions and merges, 0 for no limit
+	 */
+	public long getCompactionBytesPerSecond() {
+		return compactionBytesPerSecond;
+	}
+
+	public void setCompactionBytesPerSecond(long compactionBytesPerSecond) {
+		this.compactionBytesPerSecond = compactionBytesPerSecond;
+	}
+
+	/**
+	 * @return codec compressing stored and cached values, see {@link ValueCodec}
+	 */
+	public String getCompression() {
+		return compression;
+	}
+
+	public void setCompression(String compression) {
+		this.compression = compression;
+	}
+
+	/**
+	 * @return UTF-8 size from which values are compressed
+	 */
+	public int getCompressionThresholdBytes() {
+		return compressionThresholdBytes;
+	}
+
+	public void setCompressionThresholdBytes(int compressionThresholdBytes) {
+		this.compressionThresholdBytes = compressionThresholdBytes;
+	}
+
+	/**
+	 * @return length from which equal values are stored once, see
+	 * 		{@link DedupStore}; 0 turns deduplication off
+	 */
+	public int getDedupMinValueLength() {
+		return dedupMinValueLength;
+	}
+
+	public void setDedupMinValueLength(int dedupMinValueLength) {
+		this.dedupMinValueLength = dedupMinValueLength;
+	}
+
+	/**
+	 * @return whether the engine is fronted by an {@link MVCCStore}, which
+	 * 		keeps all values on the heap and serves reads and scans from
+	 * 		consistent snapshots without locking
+	 */
+	public boolean isMultiVersion() {
+		return multiVersion;
+	}
+
+	public void setMultiVersion(boolean multiVersion) {
+		this.multiVersion = multiVersion;
+	}
+
+	/**
+	 * @return number of hash partitions, each an engine with its own files
+	 * 		under the data directory, see {@link PartitionedStore}; must stay
+	 * 		the same for a data directory
+	 */
+	public int getPartitions() {
+		return partitions;
+	}
+
+	public void setPartitions(int partitions) {
+		this.partitions = partitions;
+	}
+
+	/**
+	 * @return whether GETs that miss the server's cache load the value into
+	 * 		it; by default only when values are not all on the heap anyway,
+	 * 		that is for every engine but memory and without multi-version
+	 */
+	public boolean isReadThrough() {
+		if (readThrough != null) {
+			return readThrough;
+		}
+		return !StorageFactory.MEMORY.equals(engine) && !multiVersion;
+	}
+
+	public void setReadThrough(boolean readThrough) {
+		this.readThrough = readThrough;
+	}
+}
@@ -0,0 +1,63 @@
+package app_kvServer.storage;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Persistent key-value storage used by the KVServer. Implementations must be
+ * safe to call from several ClientHandler threads at once.
+ */
+public interface StorageEngine {
+
+	/**
+	 * Opens the engine and loads or recovers any data it has persisted.
+	 * @throws IOException
+	 *      when the persisted data cannot be read
+	 */
+	public void open() throws IOException;
+
+	/**
+	 * Persists anything still buffered and releases all files.
+	 */
+	public void close() throws IOException;
+
+	/**
+	 * Get the value associated with the key
+	 * @return  value associated with key, null if the key is not stored
+	 */
+	public String get(String key) throws IOException;
+
+	/**
+	 * Insert or overwrite the value of a key
+	 */
+	public void put(String key, String value) throws IOException;
+
+	/**
+	 * Remove a key; removing a key that is not stored has no effect
+	 */
+	public void delete(String key) throws IOException;
+
+	/**
+	 * Check if key is in storage.
+	 * @return  true if key in storage, false otherwise
+	 */
+	public boolean containsKey(String key) throws IOException;
+
+	/**
+	 * Remove all keys, including their persisted copies
+	 */
+	public void clear() throws IOException;
+
+	/**
+	 * Bring the persisted state up to date so the next open is as fast as
+	 * possible (e.g. compact a log or flush buffered writes).
+	 */
+	public void flush() throws IOException;
+
+	/**
+	 * Iterate over all stored key-value pairs. The iteration reflects the
+	 * state at some point at or after the call; order is engine specific.
+	 */
+	public Iterator<Map.Entry<String, String>> iterator() throws IOException;
+}
@@ -0,0 +1,92 @@
+package app_kvServer.storage;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+public final class StorageFactory {
+
+	public static final String MEMORY = "memory";
+	public static final String LOG = "log";
+	public static final String LSM = "lsm";
+	public static final String BITCASK = "bitcask";
+	public static final String MMAP = "mmap";
+	public static final String TIERED = "tiered";
+
+	private StorageFactory() {
+	}
+
+	/*
+	 * Creates the (not yet opened) storage engine named in the config,
+	 * wrapped in a DedupStore if the config asks for deduplication, in an
+	 * MVCCStore if it asks for multi-versioning and in an OrderedIndexStore
+	 * unless the engine can scan key ranges itself. Each partition is such an
+	 * engine of its own, deduplicated and ordered, under one
+	 * PartitionedStore, which records the partition count even when there is
+	 * only one. The memory engine keeps nothing to lay out and is only
+	 * partitioned when asked to.
+	 */
+	public static OrderedStorageEngine createStorageEngine(StorageConfig config) {
+		StorageEngine engine;
+		int partitions = config.getPartitions();
+		if (partitions > 1 || !MEMORY.equals(config.getEngine())) {
+			List<OrderedStorageEngine> engines = new ArrayList<>();
+			for (int i = 0; i < partitions; i++) {
+				File dataDir = partitions > 1 ? PartitionedStore.partitionDir(config.getDataDir(), i) : config.getDataDir();
+				engines.add(ordered(deduplicated(createEngine(config, dataDir, partitions), config)));
+			}
+			engine = new PartitionedStore(config.getDataDir(), engines, engineFile(config.getEngine()));
+		} else {
+			engine = deduplicated(createEngine(config, config.getDataDir(), 1), config);
+		}
+		if (config.isMultiVersion()) {
+			engine = new MVCCStore(engine);
+		}
+		return ordered(engine);
+	}
+
+	private static StorageEngine deduplicated(StorageEngine engine, StorageConfig config) {
+		return config.getDedupMinValueLength() > 0 ? new DedupStore(engine, config.getDedupMinValueLength()) : engine;
+	}
+
+	private static OrderedStorageEngine ordered(StorageEngine engine) {
+		if (engine instanceof OrderedStorageEngine) {
+			return (OrderedStorageEngine) engine;
+		}
+		return new OrderedIndexStore(engine);
+	}
+
+	// Name of the file or directory the engine keeps directly in its data directory
+	private static String engineFile(String engine) {
+		return LOG.equals(engine) ? LogStore.LOG_FILE : engine;
+	}
+
+	// Engine in dataDir with its share of the memory budget and compaction I/O rate when they are split between shares engines
+	private static StorageEngine createEngine(StorageConfig config, File dataDir, int shares) {
+		String engine = config.getEngine();
+		Durability durability = config.getDurability();
+		long compactionRate = config.getCompactionBytesPerSecond() > 0 ? Math.max(1, config.getCompactionBytesPerSecond() / shares) : 0;
+		if (MEMORY.equals(engine)) {
+			return new MemoryStore();
+		} else if (LOG.equals(engine)) {
+			return new LogStore(dataDir, durability, config.getSnapshotIntervalSeconds());
+		} else if (LSM.equals(engine)) {
+			return new LSMStore(new File(dataDir, "lsm"), LSMStore.DEFAULT_MEMTABLE_BYTES,
+					LSMStore.DEFAULT_COMPACTION_TRIGGER, durability, config.getBloomFalsePositiveRate(), compactionRate);
+		} else if (BITCASK.equals(engine)) {
+			return new BitcaskStore(new File(dataDir, "bitcask"), BitcaskStore.DEFAULT_MAX_FILE_BYTES, durability,
+					BitcaskStore.DEFAULT_MERGE_TRIGGER, compactionRate);
+		} else if (MMAP.equals(engine)) {
+			return new MappedStore(new File(dataDir, "mmap"), MappedStore.DEFAULT_CHUNK_BYTES, durability);
+		} else if (TIERED.equals(engine)) {
+			StorageEngine cold = new BitcaskStore(new File(dataDir, "tiered"), BitcaskStore.DEFAULT_MAX_FILE_BYTES, durability,
+					BitcaskStore.DEFAULT_MERGE_TRIGGER, compactionRate);
+			return new TieredStore(cold, config.getMemoryBudgetBytes() / shares);
+		}
+		throw new IllegalArgumentException("Unknown storage engine: " + engine);
+	}
+
+	public static String getPossibleEngines() {
+		return MEMORY + " | " + LOG + " | " + LSM + " | " + BITCASK + " | " + MMAP + " | " + TIERED;
+	}
+}
@@ -0,0 +1,176 @@
+package app_kvServer.storage;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Storage engine that keeps recently used values on the heap within a byte
+ * budget and everything else in a disk-backed engine.
+ *
+ * Every write goes to the cold (disk) tier, which stays complete and makes
+ * the write durable, and then to the hot tier. When the hot tier exceeds its
+ * budget the least recently used values are dropped from the heap; a GET of
+ * such a key reads it from the cold tier and brings it back into the hot
+ * one. Callers see the same data whichever tier a key is in.
+ */
+public class TieredStore implements StorageEngine {
+
+	private static final Logger LOGGER = Logger.getLogger(TieredStore.class.getName());
+
+	public static final long DEFAULT_MEMORY_BUDGET_BYTES = 64L * 1024 * 1024;
+
+	private static final int WRITE_STRIPES = 64;
+
+	private final StorageEngine cold;
+	private final long budgetBytes;
+	private final LinkedHashMap<String, String> hot = new LinkedHashMap<>(16, 0.75f, true); // Guarded by itself
+	private final Object[] writeStripes = new Object[WRITE_STRIPES];
+	private long hotBytes;
+	private long writes; // Bumped on every hot tier update, so a slow cold read cannot promote a stale value
+
+	/**
+	 * @param cold engine holding every key; opened and closed by this store
+	 * @param budgetBytes approximate heap size of the values kept in the hot tier
+	 */
+	public TieredStore(StorageEngine cold, long budgetBytes) {
+		this.cold = cold;
+		this.budgetBytes = budgetBytes;
+		for (int i = 0; i < WRITE_STRIPES; i++) {
+			writeStripes[i] = new Object();
+		}
+	}
+
+	@Override
+	public void open() throws IOException {
+		cold.open();
+		LOGGER.info("Opened tiered store with a hot tier of " + budgetBytes + " bytes");
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (hot) {
+			hot.clear();
+			hotBytes = 0;
+		}
+		cold.close();
+	}
+
+	@Override
+	public String get(String key) throws IOException {
+		long seen;
+		synchronized (hot) {
+			String value = hot.get(key);
+			if (value != null) {
+				return value;
+			}
+			seen = writes;
+		}
+		String value = cold.get(key);
+		if (value != null) {
+			synchronized (hot) {
+				if (writes == seen) {
+					admit(key, value);
+				}
+			}
+		}
+		return value;
+	}
+
+	@Override
+	public boolean containsKey(String key) throws IOException {
+		synchronized (hot) {
+			if (hot.containsKey(key)) {
+				return true;
+			}
+		}
+		return cold.containsKey(key);
+	}
+
+	/**
+	 * Writes to the cold tier first, so the value is durable before it is
+	 * served from the heap. Writes to the same key are ordered by a lock
+	 * stripe so the hot tier ends up with the value the cold tier kept.
+	 */
+	@Override
+	public void put(String key, String value) throws IOException {
+		synchronized (stripeOf(key)) {
+			cold.put(key, value);
+			synchronized (hot) {
+				writes++;
+				admit(key, value);
+			}
+		}
+	}
+
+	@Override
+	public void delete(String key) throws IOException {
+		synchronized (stripeOf(key)) {
+			cold.delete(key);
+			synchronized (hot) {
+				writes++;
+				String removed = hot.remove(key);
+				if (removed != null) {
+					hotBytes -= weigh(key, removed);
+				}
+			}
+		}
+	}
+
+	// Caller holds the hot tier lock
+	private void admit(String key, String value) {
+		String previous = hot.put(key, value);
+		if (previous != null) {
+			hotBytes -= weigh(key, previous);
+		}
+		hotBytes += weigh(key, value);
+		Iterator<Map.Entry<String, String>> eldest = hot.entrySet().iterator();
+		while (hotBytes > budgetBytes && eldest.hasNext()) {
+			Map.Entry<String, String> entry = eldest.next();
+			hotBytes -= weigh(entry.getKey(), entry.getValue());
+			eldest.remove(); // Still in the cold tier
+		}
+	}
+
+	private static long weigh(String key, String value) {
+		return 2 * (key.length() + value.length()) + 64;
+	}
+
+	private Object stripeOf(String key) {
+		return writeStripes[(key.hashCode() & Integer.MAX_VALUE) % WRITE_STRIPES];
+	}
+
+	/**
+	 * @return approximate heap size of the values currently in the hot tier
+	 */
+	public long getHotBytes() {
+		synchronized (hot) {
+			return hotBytes;
+		}
+	}
+
+	@Override
+	public void clear() throws IOException {
+		cold.clear();
+		synchronized (hot) {
+			writes++;
+			hot.clear();
+			hotBytes = 0;
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		cold.flush();
+	}
+
+	/**
+	 * Iterates over the cold tier, which holds every key.
+	 */
+	@Override
+	public Iterator<Map.Entry<String, String>> iterator() throws IOException {
+		return cold.iterator();
+	}
+}
@@ -0,0 +1,311 @@
+package app_kvServer.storage;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses values at or above a size threshold before the server stores
+ * and caches them, and restores them when they are read.
+ *
+ * Engines and cache hold strings, so a compressed value is kept as a string
+ * of ASCII characters carrying seven bits of the compressed bytes each. That
+ * costs 8/7 of the compressed size both on a JVM with compact strings and
+ * in the engines' UTF-8 files, and is what must come to 10% less than the
+ * value's UTF-8 size for a value to be stored compressed.
+ *
+ * Stored form: a value that does not start with MARKER is stored unchanged,
+ * otherwise it is MARKER, a tag and a payload:
+ * 		MARKER 'r' value                                           : value that itself starts with MARKER
+ * 		MARKER 's' septets of int length, Deflate stream of UTF-8 : compressed value of length UTF-8 bytes
+ * 		MARKER 't' expiry ' ' stored form                          : value with a TTL, expiry in decimal ms since the epoch
+ * The expiry travels with the value, so it survives restarts on every engine.
+ * Decoding does not depend on the configured codec, so values written with
+ * any setting stay readable after it changes.
+ */
+public class ValueCodec {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	public static final String NONE = "none";
+	public static final String DEFLATE = "deflate";
+	public static final String FAST = "fast";
+	public static final int DEFAULT_THRESHOLD_BYTES = 4096;
+
+	private static final char MARKER = '\u0000';
+	private static final char TAG_RAW = 'r';
+	private static final char TAG_DEFLATE = 's';
+	private static final char TAG_EXPIRY = 't';
+	private static final int LENGTH_BYTES = 4;
+
+	private final String name;
+	private final int level;
+	private final int thresholdBytes;
+	private final ThreadLocal<Deflater> deflaters;
+	private final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater(true);
+		}
+	};
+	private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+	private final AtomicLong compressedValues = new AtomicLong();
+	private final AtomicLong uncompressedBytes = new AtomicLong(); // UTF-8 size of the values that were compressed
+	private final AtomicLong compressedBytes = new AtomicLong(); // Stored size, at seven bits per char
+	private final AtomicLong compressNanos = new AtomicLong(); // Includes values that did not shrink enough
+	private final AtomicLong decompressedValues = new AtomicLong();
+	private final AtomicLong decompressNanos = new AtomicLong();
+
+	/**
+	 * @param name NONE, DEFLATE (default Deflate level) or FAST (fastest
+	 * 		Deflate level, for lower CPU time at a lower ratio)
+	 * @param thresholdBytes UTF-8 size from which values are compressed
+	 */
+	public ValueCodec(String name, int thresholdBytes) {
+		if (DEFLATE.equals(name)) {
+			level = Deflater.DEFAULT_COMPRESSION;
+		} else if (FAST.equals(name)) {
+			level = Deflater.BEST_SPEED;
+		} else if (NONE.equals(name)) {
+			level = Deflater.NO_COMPRESSION;
+		} else {
+			throw new IllegalArgumentException("Unknown compression codec: " + name);
+		}
+		this.name = name;
+		this.thresholdBytes = Math.max(1, thresholdBytes);
+		this.deflaters = new ThreadLocal<Deflater>() {
+			@Override
+			protected Deflater initialValue() {
+				return new Deflater(level, true);
+			}
+		};
+	}
+
+	public static String getPossibleCodecs() {
+		return NONE + " | " + DEFLATE + " | " + FAST;
+	}
+
+	/**
+	 * @return the form in which a value is stored and cached
+	 */
+	public String encode(String value) {
+		if (!NONE.equals(name) && value.length() * 3L >= thresholdBytes) { // UTF-8 needs at most 3 bytes per char
+			byte[] bytes = value.getBytes(UTF8);
+			if (bytes.length >= thresholdBytes) {
+				String compressed = compress(bytes);
+				if (compressed != null) {
+					return compressed;
+				}
+			}
+		}
+		if (!value.isEmpty() && value.charAt(0) == MARKER) {
+			return new StringBuilder(value.length() + 2).append(MARKER).append(TAG_RAW).append(value).toString();
+		}
+		return value;
+	}
+
+	/**
+	 * @param expiresAt expiry in milliseconds since the epoch, 0 for none
+	 * @return the form in which a value with the given expiry is stored and cached
+	 */
+	public String encode(String value, long expiresAt) {
+		String stored = encode(value);
+		if (expiresAt <= 0) {
+			return stored;
+		}
+		return new StringBuilder(stored.length() + 22).append(MARKER).append(TAG_EXPIRY).append(expiresAt).append(' ')
+				.append(stored).toString();
+	}
+
+	/**
+	 * @return expiry of a stored value in milliseconds since the epoch, 0 if
+	 * 		it has none or is null
+	 */
+	public static long getExpiry(String stored) {
+		if (stored == null || stored.length() < 2 || stored.charAt(0) != MARKER || stored.charAt(1) != TAG_EXPIRY) {
+			return 0;
+		}
+		int end = stored.indexOf(' ', 2);
+		try {
+			return Long.parseLong(stored.substring(2, end));
+		} catch (RuntimeException e) {
+			throw new IllegalArgumentException("Stored value has a damaged expiry", e);
+		}
+	}
+
+	// Stored form of the compressed bytes, or null if compression saves less than it costs to decode
+	private String compress(byte[] bytes) {
+		long started = cpuTime();
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		deflater.setInput(bytes);
+		deflater.finish();
+		// Not worth it unless the stored form, at seven bits per byte, saves 10%
+		long limit = (bytes.length * 9L / 10 - 2) * 7 / 8;
+		if (limit <= LENGTH_BYTES) {
+			return null;
+		}
+		byte[] out = new byte[(int) limit];
+		out[0] = (byte) (bytes.length >>> 24);
+		out[1] = (byte) (bytes.length >>> 16);
+		out[2] = (byte) (bytes.length >>> 8);
+		out[3] = (byte) bytes.length;
+		int length = LENGTH_BYTES;
+		while (!deflater.finished() && length < out.length) {
+			length += deflater.deflate(out, length, out.length - length);
+		}
+		boolean shrunk = deflater.finished();
+		compressNanos.addAndGet(cpuTime() - started);
+		if (!shrunk) {
+			return null;
+		}
+		StringBuilder stored = new StringBuilder(2 + (length * 8 + 6) / 7).append(MARKER).append(TAG_DEFLATE);
+		int bits = 0;
+		int pending = 0;
+		for (int i = 0; i < length; i++) {
+			pending = pending << 8 | out[i] & 0xff;
+			bits += 8;
+			while (bits >= 7) {
+				bits -= 7;
+				stored.append((char) (pending >>> bits & 0x7f));
+			}
+		}
+		if (bits > 0) {
+			stored.append((char) (pending << 7 - bits & 0x7f));
+		}
+		compressedValues.incrementAndGet();
+		uncompressedBytes.addAndGet(bytes.length);
+		compressedBytes.addAndGet(stored.length());
+		return stored.toString();
+	}
+
+	// Bytes packed seven bits per char from offset on; the bits left over pad the last char
+	private static byte[] unpack(String stored, int offset) {
+		byte[] bytes = new byte[(stored.length() - offset) * 7 / 8];
+		int bits = 0;
+		int pending = 0;
+		int length = 0;
+		for (int i = offset; i < stored.length() && length < bytes.length; i++) {
+			char c = stored.charAt(i);
+			if (c > 0x7f) {
+				throw new IllegalArgumentException("Compressed value is damaged");
+			}
+			pending = pending << 7 | c;
+			bits += 7;
+			if (bits >= 8) {
+				bits -= 8;
+				bytes[length++] = (byte) (pending >>> bits);
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return the value whose stored form is given; null stays null
+	 */
+	public String decode(String stored) {
+		if (stored == null || stored.isEmpty() || stored.charAt(0) != MARKER) {
+			return stored;
+		}
+		if (stored.length() >= 2 && stored.charAt(1) == TAG_EXPIRY) {
+			int end = stored.indexOf(' ', 2);
+			if (end < 0) {
+				throw new IllegalArgumentException("Stored value has a damaged expiry");
+			}
+			return decode(stored.substring(end + 1));
+		}
+		if (stored.length() >= 2 && stored.charAt(1) == TAG_RAW) {
+			return stored.substring(2);
+		}
+		if (stored.length() < 2 || stored.charAt(1) != TAG_DEFLATE) {
+			throw new IllegalArgumentException("Stored value has an unknown encoding");
+		}
+		long started = cpuTime();
+		byte[] in = unpack(stored, 2);
+		if (in.length < LENGTH_BYTES) {
+			throw new IllegalArgumentException("Compressed value is truncated");
+		}
+		int length = (in[0] & 0xff) << 24 | (in[1] & 0xff) << 16 | (in[2] & 0xff) << 8 | (in[3] & 0xff);
+		byte[] out = new byte[length];
+		Inflater inflater = inflaters.get();
+		inflater.reset();
+		inflater.setInput(in, LENGTH_BYTES, in.length - LENGTH_BYTES);
+		try {
+			int inflated = 0;
+			while (inflated < length && !inflater.finished()) {
+				int n = inflater.inflate(out, inflated, length - inflated);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				inflated += n;
+			}
+			if (inflated != length) {
+				throw new IllegalArgumentException("Compressed value is truncated");
+			}
+		} catch (DataFormatException e) {
+			throw new IllegalArgumentException("Compressed value is damaged", e);
+		}
+		decompressedValues.incrementAndGet();
+		decompressNanos.addAndGet(cpuTime() - started);
+		return new String(out, UTF8);
+	}
+
+	// CPU time of the calling thread where the JVM measures it, wall time otherwise
+	private long cpuTime() {
+		return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : System.nanoTime();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getThresholdBytes() {
+		return thresholdBytes;
+	}
+
+	/**
+	 * @return number of values stored compressed since start-up
+	 */
+	public long getCompressedValues() {
+		return compressedValues.get();
+	}
+
+	/**
+	 * @return UTF-8 size of the compressed values divided by their stored
+	 * 		size, 1 if nothing was compressed yet
+	 */
+	public double getCompressionRatio() {
+		long compressed = compressedBytes.get();
+		return compressed == 0 ? 1 : (double) uncompressedBytes.get() / compressed;
+	}
+
+	/**
+	 * @return CPU time spent compressing, in nanoseconds
+	 */
+	public long getCompressNanos() {
+		return compressNanos.get();
+	}
+
+	public long getDecompressedValues() {
+		return decompressedValues.get();
+	}
+
+	/**
+	 * @return CPU time spent decompressing, in nanoseconds
+	 */
+	public long getDecompressNanos() {
+		return decompressNanos.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s (threshold %d bytes): %d values compressed %.2f:1 in %d ms, %d decompressed in %d ms",
+				name, thresholdBytes, getCompressedValues(), getCompressionRatio(), getCompressNanos() / 1000000,
+				getDecompressedValues(), getDecompressNanos() / 1000000);
+	}
+}
@@ -0,0 +1,329 @@
+package app_kvServer.storage;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.logging.Logger;
+
+/**
+ * Append-only log of storage mutations. Every PUT and DELETE is written as a
+ * single record at the end of the file, so the cost of a write does not
+ * depend on how many keys are stored. The current state is rebuilt by
+ * replaying the log from the beginning.
+ *
+ * File layout: int MAGIC, then one {@link Record} per mutation; a DELETE is
+ * a record flagged as tombstone. Logs written in the older text format
+ * ("PUT key value" / "DELETE key" lines) are converted when first opened or
+ * replayed.
+ *
+ * Appends only buffer the record; when it reaches the disk is decided by the
+ * log's {@link Durability}. Writers wait for that with
+ * {@link #awaitDurable(Ticket)} after releasing their own locks, so that in
+ * BATCH mode concurrent writers share one fsync.
+ */
+public class WriteAheadLog {
+
+	private static final Logger LOGGER = Logger.getLogger(WriteAheadLog.class.getName());
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	public static final String PUT = "PUT";
+	public static final String DELETE = "DELETE";
+
+	private static final int MAGIC = 0x4B564C31; // "KVL1"
+	private static final int MAGIC_BYTES = 4;
+	private static final byte[] NO_VALUE = new byte[0];
+
+	private final File file;
+	private final Durability durability;
+	private FileOutputStream fileOut;
+	private BufferedOutputStream writer;
+	private GroupCommit commit;
+	private boolean formatChecked;
+
+	/**
+	 * Identifies an appended record until it is durable. It stays tied to
+	 * the group commit that registered the record, so waiting on it works
+	 * even after the log was closed or reopened meanwhile.
+	 */
+	public static final class Ticket {
+		private final GroupCommit commit;
+		private final long number;
+
+		private Ticket(GroupCommit commit, long number) {
+			this.commit = commit;
+			this.number = number;
+		}
+	}
+
+	/**
+	 * Receives the records of the log during {@link #replay(Replayer)}.
+	 */
+	public interface Replayer {
+		void onPut(String key, String value);
+		void onDelete(String key);
+	}
+
+	/**
+	 * @param file the log file, created on first open if it does not exist
+	 */
+	public WriteAheadLog(File file) {
+		this(file, Durability.DEFAULT);
+	}
+
+	/**
+	 * @param file the log file, created on first open if it does not exist
+	 * @param durability when appended records are synced to disk
+	 */
+	public WriteAheadLog(File file, Durability durability) {
+		this.file = file;
+		this.durability = durability;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public boolean exists() {
+		return file.exists();
+	}
+
+	/**
+	 * Opens the log for appending. Calling open on an already opened log has
+	 * no effect.
+	 */
+	public synchronized void open() throws IOException {
+		if (writer == null) {
+			convertTextLog();
+			openWriter();
+		}
+		if (commit == null) {
+			commit = new GroupCommit(file.getName(), new GroupCommit.Syncable() {
+				@Override
+				public void sync(boolean force) throws IOException {
+					WriteAheadLog.this.sync(force);
+				}
+			}, durability);
+		}
+	}
+
+	private void openWriter() throws IOException {
+		boolean empty = !file.exists() || file.length() == 0;
+		fileOut = new FileOutputStream(file, true);
+		writer = new BufferedOutputStream(fileOut, 64 * 1024);
+		if (empty) {
+			writeMagic(writer);
+		}
+	}
+
+	private static void writeMagic(BufferedOutputStream out) throws IOException {
+		out.write(ByteBuffer.allocate(MAGIC_BYTES).putInt(MAGIC).array());
+	}
+
+	/**
+	 * Appends a PUT record.
+	 * @return ticket to pass to {@link #awaitDurable(Ticket)}
+	 */
+	public synchronized Ticket appendPut(String key, String value) throws IOException {
+		return append(Record.encode(key.getBytes(UTF8), value.getBytes(UTF8), (byte) 0));
+	}
+
+	/**
+	 * Appends a DELETE record.
+	 * @return ticket to pass to {@link #awaitDurable(Ticket)}
+	 */
+	public synchronized Ticket appendDelete(String key) throws IOException {
+		return append(Record.encode(key.getBytes(UTF8), NO_VALUE, Record.FLAG_TOMBSTONE));
+	}
+
+	private Ticket append(ByteBuffer record) throws IOException {
+		open();
+		writer.write(record.array(), 0, record.limit());
+		return new Ticket(commit, commit.appended());
+	}
+
+	/**
+	 * Blocks until the record with the given ticket is durable according to
+	 * the log's durability mode, also when the log is being closed: then the
+	 * final sync of close releases it. Must not be called while holding a
+	 * lock that other writers need, or no batch can form.
+	 */
+	public void awaitDurable(Ticket ticket) throws IOException {
+		ticket.commit.await(ticket.number);
+	}
+
+	// Pushes buffered records to the OS and, if forced, to the disk
+	private synchronized void sync(boolean force) throws IOException {
+		if (writer != null) {
+			writer.flush();
+			if (force) {
+				fileOut.getFD().sync();
+			}
+		}
+	}
+
+	/**
+	 * Replays every record of the log into the given map, in the order the
+	 * records were written.
+	 * @return number of records applied
+	 */
+	public int replay(final Map<String, String> target) throws IOException {
+		return replay(new Replayer() {
+			@Override
+			public void onPut(String key, String value) {
+				target.put(key, value);
+			}
+
+			@Override
+			public void onDelete(String key) {
+				target.remove(key);
+			}
+		});
+	}
+
+	/**
+	 * Hands every record of the log to the given replayer, in the order the
+	 * records were written. A torn record at the end of the log (a crash
+	 * during an append) is cut off so later appends follow the last intact
+	 * record; replay before appending to a log that may have one.
+	 * @return number of records applied
+	 * @throws CorruptRecordException
+	 *      when a damaged record is followed by intact ones
+	 */
+	public synchronized int replay(Replayer target) throws IOException {
+		if (!file.exists() || file.length() == 0) {
+			return 0;
+		}
+		convertTextLog();
+		int applied = 0;
+		try (RecordReader reader = new RecordReader(file, MAGIC_BYTES)) {
+			Record record;
+			while ((record = reader.next()) != null) {
+				if (record.isTombstone()) {
+					target.onDelete(record.getKey());
+				} else {
+					target.onPut(record.getKey(), record.getValue());
+				}
+				applied++;
+			}
+			reader.truncateTornTail();
+		}
+		return applied;
+	}
+
+	// Rewrites a log from the older line-based format as binary records, keeping their order
+	private void convertTextLog() throws IOException {
+		if (formatChecked) {
+			return;
+		}
+		formatChecked = true;
+		if (!file.exists() || file.length() == 0) {
+			return;
+		}
+		try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+			if (file.length() >= MAGIC_BYTES && in.readInt() == MAGIC) {
+				return;
+			}
+		}
+
+		File tmp = new File(file.getPath() + ".tmp");
+		FileOutputStream tmpOut = new FileOutputStream(tmp, false);
+		int converted = 0;
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+				BufferedOutputStream out = new BufferedOutputStream(tmpOut, 64 * 1024)) {
+			writeMagic(out);
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] parts = line.split(" ", 3);
+				ByteBuffer record;
+				if (parts.length == 3 && PUT.equals(parts[0])) {
+					record = Record.encode(parts[1], parts[2], (byte) 0);
+				} else if (parts.length == 2 && DELETE.equals(parts[0])) {
+					record = Record.encode(parts[1], "", Record.FLAG_TOMBSTONE);
+				} else {
+					if (!line.isEmpty()) {
+						LOGGER.warning("Skipping malformed log record in " + file + ": " + line);
+					}
+					continue;
+				}
+				out.write(record.array(), 0, record.limit());
+				converted++;
+			}
+			out.flush();
+			tmpOut.getFD().sync();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		LOGGER.info("Converted " + converted + " records of text log " + file + " to the binary format");
+	}
+
+	/**
+	 * Replaces the log with one PUT record per live entry of the given map.
+	 * The new log is written next to the old one and moved over it, so a
+	 * crash while rewriting leaves the previous log intact.
+	 */
+	public synchronized void rewrite(Map<String, String> entries) throws IOException {
+		boolean wasOpen = writer != null;
+		closeWriter();
+
+		File tmp = new File(file.getPath() + ".tmp");
+		FileOutputStream tmpOut = new FileOutputStream(tmp, false);
+		try (BufferedOutputStream out = new BufferedOutputStream(tmpOut, 64 * 1024)) {
+			writeMagic(out);
+			for (Entry<String, String> entry : entries.entrySet()) {
+				if (entry.getValue() != null) {
+					ByteBuffer record = Record.encode(entry.getKey(), entry.getValue(), (byte) 0);
+					out.write(record.array(), 0, record.limit());
+				}
+			}
+			out.flush();
+			tmpOut.getFD().sync();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		formatChecked = true;
+
+		if (wasOpen) {
+			openWriter();
+		}
+	}
+
+	/**
+	 * Syncs and closes the log. It is reopened automatically on the next
+	 * append.
+	 */
+	public void close() throws IOException {
+		GroupCommit current;
+		synchronized (this) {
+			current = commit;
+		}
+		try {
+			if (current != null) {
+				current.close(); // Final sync; takes this log's lock, so not called while holding it
+			}
+		} finally {
+			synchronized (this) {
+				closeWriter();
+				if (commit == current) { // Cleared only now, so the next append cannot slip past the final sync
+					commit = null;
+				}
+			}
+		}
+	}
+
+	private void closeWriter() throws IOException {
+		if (writer != null) {
+			writer.close();
+			writer = null;
+			fileOut = null;
+		}
+	}
+}
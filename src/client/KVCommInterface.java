@@ -1,5 +1,7 @@
 package client;
 
+import java.util.List;
+
 import shared.messages.KVMessage;
 
 public interface KVCommInterface {
@@ -31,6 +33,23 @@ public interface KVCommInterface {
 	 */
 	public KVMessage put(String key, String value) throws Exception;
 
+	/**
+	 * Inserts a key-value pair into the KVServer that expires after the
+	 * given time; until then it behaves like any other pair.
+	 *
+	 * @param key
+	 *            the key that identifies the given value.
+	 * @param value
+	 *            the value that is indexed by the given key.
+	 * @param ttlSeconds
+	 *            the number of seconds after which the pair is deleted.
+	 * @return a message that confirms the insertion of the tuple or an error.
+	 * @throws Exception
+	 *             if put command cannot be executed (e.g. not connected to any
+	 *             KV server).
+	 */
+	public KVMessage put(String key, String value, long ttlSeconds) throws Exception;
+
 	/**
 	 * Retrieves the value for a given key from the KVServer.
 	 *
@@ -42,4 +61,22 @@ public interface KVCommInterface {
 	 *             KV server).
 	 */
 	public KVMessage get(String key) throws Exception;
+
+	/**
+	 * Retrieves the key-value pairs in a key range from the KVServer, in
+	 * ascending key order.
+	 *
+	 * @param startKey
+	 *            the first key of the range (inclusive).
+	 * @param endKey
+	 *            the end of the range (exclusive).
+	 * @param limit
+	 *            the maximum number of pairs to retrieve.
+	 * @return one SCAN_ENTRY message per pair, followed by the SCAN_SUCCESS
+	 *         or SCAN_ERROR message that ends the scan.
+	 * @throws Exception
+	 *             if scan command cannot be executed (e.g. not connected to any
+	 *             KV server).
+	 */
+	public List<KVMessage> scan(String startKey, String endKey, int limit) throws Exception;
 }
@@ -8,7 +8,9 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import org.apache.log4j.Logger;
@@ -26,6 +28,8 @@ public class KVCommunication implements Runnable {
     private Socket clientSocket;
     private OutputStream output;
     private InputStream input;
+    private BufferedReader reader; // One for the whole connection, so lines it buffered ahead are not lost
+    private NearCache nearCache; // Receives the invalidations the server pushes, null without one
     
     private static final int BUFFER_SIZE = 1024;
     private static final int DROP_SIZE = 1024 * BUFFER_SIZE;
@@ -50,6 +54,7 @@ public class KVCommunication implements Runnable {
         try {
             output = clientSocket.getOutputStream();
             input = clientSocket.getInputStream();
+            reader = new BufferedReader(new InputStreamReader(input));
 
             while(isRunning()) {
                 try {
@@ -115,6 +120,81 @@ public class KVCommunication implements Runnable {
     
     
 
+    /**
+     * Sends a SCAN request and collects the SCAN_ENTRY messages the server
+     * streams back until its closing SCAN_SUCCESS or SCAN_ERROR.
+     * @return the entries followed by the closing message
+     */
+    public List<KVMessage> scan(String startKey, String endKey, int limit) throws IOException {
+        if (output == null) {
+            throw new IOException("Output stream not initialized");
+        }
+        sendFormattedMessage(formatMessage(StatusType.SCAN, startKey, endKey + " " + limit));
+        List<KVMessage> messages = new ArrayList<KVMessage>();
+        while (true) {
+            String response = reader.readLine();
+            if (response == null) {
+                throw new IOException("Connection closed during scan");
+            }
+            if (response.isEmpty() || applyInvalidation(response)) {
+                continue;
+            }
+            KVMessage message = parseMessage(response);
+            if (message == null) {
+                throw new IOException("Unexpected scan response: " + response);
+            }
+            messages.add(message);
+            if (message.getStatus() != StatusType.SCAN_ENTRY) {
+                return messages;
+            }
+        }
+    }
+
+    /**
+     * Sets the near cache that the invalidations pushed by the server are
+     * applied to; they arrive between responses.
+     */
+    public void setNearCache(NearCache nearCache) {
+        this.nearCache = nearCache;
+    }
+
+    /**
+     * Applies the invalidations the server has pushed since the last
+     * response, without waiting for more.
+     */
+    public void pollInvalidations() throws IOException {
+        if (input == null) {
+            throw new IOException("Input stream not initialized");
+        }
+        while (reader.ready()) {
+            String line = reader.readLine();
+            if (line == null) {
+                throw new IOException("Connection closed");
+            }
+            if (!line.isEmpty() && !applyInvalidation(line)) {
+                logger.warn("Unexpected message from server: " + line);
+            }
+        }
+    }
+
+    // Applies a line pushed by the server to the near cache; false if the line is not an invalidation
+    private boolean applyInvalidation(String line) {
+        String[] parts = line.split(" ", 3);
+        if (StatusType.INVALIDATE.name().equals(parts[0]) && parts.length > 1) {
+            if (nearCache != null) {
+                nearCache.invalidate(parts[1]);
+            }
+            return true;
+        }
+        if (StatusType.INVALIDATE_ALL.name().equals(parts[0])) {
+            if (nearCache != null) {
+                nearCache.invalidateAll();
+            }
+            return true;
+        }
+        return false;
+    }
+
     // Helper method to format the message to be sent
     private String formatMessage(StatusType status, String key, String value) {
         return status.name() + " " + key + " " + (value != null ? value : "") + "\n";
@@ -131,8 +211,10 @@ public class KVCommunication implements Runnable {
     // Helper method to receive the formatted message
     private String receiveFormattedMessage() throws IOException {
         System.out.println("Waiting for server response...");
-        BufferedReader reader = new BufferedReader(new InputStreamReader(input));
         String response = reader.readLine();
+        while (response != null && (response.isEmpty() || applyInvalidation(response))) { // Responses end with an empty line
+            response = reader.readLine();
+        }
         System.out.println("Raw response received: " + response); // Debugging the raw response
         return response;
     }
@@ -206,5 +288,6 @@ public class KVCommunication implements Runnable {
     public void connect() throws IOException {
         output = clientSocket.getOutputStream();
         input = clientSocket.getInputStream();
+        reader = new BufferedReader(new InputStreamReader(input));
     }
 }
@@ -6,6 +6,7 @@ import java.io.OutputStream;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import org.apache.log4j.Logger;
@@ -14,6 +15,7 @@ import client.KVCommunication;
 
 import shared.messages.KVMessage;
 import shared.messages.KVMessage.StatusType;
+import shared.messages.SimpleKVMessage;
 
 public class KVStore implements KVCommInterface {
 
@@ -24,6 +26,7 @@ public class KVStore implements KVCommInterface {
 	private int serverPort;
 
 	private KVCommunication kvComm;
+	private NearCache nearCache; // Null unless enabled
 
 	/**
 	 * Initialize KVStore with address and port of KVServer
@@ -44,10 +47,46 @@ public class KVStore implements KVCommInterface {
         kvComm = new KVCommunication(serverAddress, serverPort);
         kvComm.connect();
         setRunning(true);
+		if (nearCache != null) {
+			startTracking();
+		}
+	}
+
+	/**
+	 * Keeps up to capacity values read by get in this process and answers
+	 * repeated reads of them without a round trip. The server pushes an
+	 * invalidation when one of them is written, deleted or expires, so reads
+	 * see other clients' writes shortly after they are acknowledged; a value
+	 * is read again after ttlMillis in any case. Call before connect.
+	 */
+	public void enableNearCache(int capacity, long ttlMillis) {
+		nearCache = new NearCache(capacity, ttlMillis);
+	}
+
+	/**
+	 * @return the near cache, null unless enabled
+	 */
+	public NearCache getNearCache() {
+		return nearCache;
+	}
+
+	// Asks the server to push invalidations of the keys read on this connection
+	private void startTracking() throws Exception {
+		nearCache.invalidateAll(); // Nothing read on an earlier connection is tracked any more
+		kvComm.setNearCache(nearCache);
+		KVMessage response = kvComm.sendMessage(StatusType.TRACK, String.valueOf(nearCache.getCapacity()), null);
+		if (response == null || response.getStatus() != StatusType.TRACK_SUCCESS) {
+			logger.warn("Server does not push invalidations, near cache disabled");
+			kvComm.setNearCache(null);
+			nearCache = null;
+		}
 	}
 
 	@Override
 	public void disconnect() {
+		if (nearCache != null) {
+			nearCache.invalidateAll(); // No invalidations arrive once disconnected
+		}
 		if (isRunning()) {
 			kvComm.closeConnection();
 			setRunning(false);
@@ -56,9 +95,20 @@ public class KVStore implements KVCommInterface {
 
 	@Override
 	public KVMessage put(String key, String value) throws Exception {
+		if (nearCache != null) {
+			nearCache.invalidate(key); // Read our own write from the server
+		}
 		return kvComm.sendMessage(StatusType.PUT, key, value);
 	}
 
+	@Override
+	public KVMessage put(String key, String value, long ttlSeconds) throws Exception {
+		if (nearCache != null) {
+			nearCache.invalidate(key);
+		}
+		return kvComm.sendMessage(StatusType.PUT_TTL, key, ttlSeconds + " " + value);
+	}
+
 	// @Override
 	// public KVMessage get(String key) throws Exception {
 	// 	System.out.println("Sending GET request for key: " + key); // Log sending of GET request
@@ -70,8 +120,22 @@ public class KVStore implements KVCommInterface {
 
 	@Override
 	public KVMessage get(String key) throws Exception {
+		long invalidations = 0;
+		if (nearCache != null) {
+			kvComm.pollInvalidations();
+			String cached = nearCache.get(key);
+			if (cached != null) {
+				logger.debug("Near cache hit for key: " + key);
+				return new SimpleKVMessage(StatusType.GET_SUCCESS, key, cached);
+			}
+			invalidations = nearCache.getInvalidations();
+		}
 		logger.info("Sending GET request for key: " + key); // Log the sending of GET request
 		KVMessage requestResponse = kvComm.sendMessage(StatusType.GET, key, null); // Send the GET request and immediately wait for the response
+		if (nearCache != null && requestResponse != null && requestResponse.getStatus() == StatusType.GET_SUCCESS
+				&& nearCache.getInvalidations() == invalidations) { // Otherwise the value may be from before a write
+			nearCache.put(key, requestResponse.getValue());
+		}
 		if (requestResponse != null) {
 			logger.info("Received GET response: " + requestResponse.getStatus() + " for key: " + requestResponse.getKey() + " with value: " + requestResponse.getValue()); // Log the received response
 		} else {
@@ -81,6 +145,15 @@ public class KVStore implements KVCommInterface {
 	}
 
 
+	@Override
+	public List<KVMessage> scan(String startKey, String endKey, int limit) throws Exception {
+		logger.info("Sending SCAN request from " + startKey + " to " + endKey + " for up to " + limit + " pairs");
+		List<KVMessage> responses = kvComm.scan(startKey, endKey, limit);
+		logger.info("Received SCAN response: " + responses.get(responses.size() - 1).getStatus() + " after "
+				+ (responses.size() - 1) + " pairs");
+		return responses;
+	}
+
 	public void setRunning(boolean run) {
 		running = run;
 	}
@@ -0,0 +1,106 @@
+package client;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of values a KVStore has read, kept in the client process.
+ *
+ * The server pushes an invalidation when a key the client has read is
+ * written, deleted or expires, and the KVStore applies it before serving a
+ * read from here. Every value is also dropped after a time to live, which
+ * bounds how stale it can get if an invalidation is lost. Evicts the least
+ * recently read value when full. Used by one KVStore from its calling
+ * thread.
+ */
+public class NearCache {
+
+	private final int capacity;
+	private final long ttlMillis;
+	private final LinkedHashMap<String, CachedValue> entries;
+	private long invalidations; // Received so far, so a read can tell whether one crossed it
+	private long hits;
+	private long misses;
+
+	private static class CachedValue {
+		final String value;
+		final long expiresAt;
+
+		CachedValue(String value, long expiresAt) {
+			this.value = value;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	/**
+	 * @param capacity maximum number of values
+	 * @param ttlMillis time after which a value is read from the server again
+	 */
+	public NearCache(int capacity, long ttlMillis) {
+		this.capacity = Math.max(1, capacity);
+		this.ttlMillis = ttlMillis;
+		this.entries = new LinkedHashMap<String, CachedValue>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedValue> eldest) {
+				return size() > NearCache.this.capacity;
+			}
+		};
+	}
+
+	/**
+	 * @return the value read from the server, null if it is not cached or
+	 * 		its time to live has passed
+	 */
+	public String get(String key) {
+		CachedValue entry = entries.get(key);
+		if (entry != null && entry.expiresAt <= System.currentTimeMillis()) {
+			entries.remove(key);
+			entry = null;
+		}
+		if (entry == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return entry.value;
+	}
+
+	public void put(String key, String value) {
+		entries.put(key, new CachedValue(value, System.currentTimeMillis() + ttlMillis));
+	}
+
+	public void invalidate(String key) {
+		entries.remove(key);
+		invalidations++;
+	}
+
+	public void invalidateAll() {
+		entries.clear();
+		invalidations++;
+	}
+
+	/**
+	 * @return number of invalidations applied so far
+	 */
+	public long getInvalidations() {
+		return invalidations;
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+}
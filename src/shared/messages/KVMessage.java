@@ -7,11 +7,21 @@ public interface KVMessage {
 		GET_ERROR, 		/* requested tuple (i.e. value) not found */
 		GET_SUCCESS, 	/* requested tuple (i.e. value) found */
 		PUT, 			/* Put - request */
+		PUT_TTL, 		/* Put - request with expiry: PUT_TTL <key> <seconds> <value> */
 		PUT_SUCCESS, 	/* Put - request successful, tuple inserted */
 		PUT_UPDATE, 	/* Put - request successful, i.e. value updated */
 		PUT_ERROR, 		/* Put - request not successful */
 		DELETE_SUCCESS, /* Delete - request successful */
-		DELETE_ERROR 	/* Delete - request successful */
+		DELETE_ERROR, 	/* Delete - request successful */
+		SCAN, 			/* Scan - request: SCAN <startKey> <endKey> <limit>, end exclusive */
+		SCAN_ENTRY, 	/* one key-value pair of a scan; sent in pages before SCAN_SUCCESS */
+		SCAN_SUCCESS, 	/* Scan - request successful, key holds the number of entries sent */
+		SCAN_ERROR, 	/* Scan - request not successful */
+		TRACK, 			/* Track - request: TRACK <maxKeys>, the server pushes invalidations of keys read on this connection */
+		TRACK_SUCCESS, 	/* Track - request successful */
+		TRACK_ERROR, 	/* Track - request not successful */
+		INVALIDATE, 	/* pushed by the server: the key was written or deleted since it was read */
+		INVALIDATE_ALL 	/* pushed by the server: every key read so far may have changed */
 	}
 
 	/**
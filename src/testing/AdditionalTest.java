@@ -1,8 +1,66 @@
 package testing;
 
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.junit.Test;
 
+import client.KVStore;
+import client.NearCache;
+
+import app_kvServer.ExpiryIndex;
+import app_kvServer.IKVServer.CacheStrategy;
+import app_kvServer.KVServer;
+import app_kvServer.PushQueue;
+import app_kvServer.TimerWheel;
+import app_kvServer.cache.ARCCache;
+import app_kvServer.cache.Cache;
+import app_kvServer.cache.CacheFactory;
+import app_kvServer.cache.FIFOCache;
+import app_kvServer.cache.LFUCache;
+import app_kvServer.cache.LRUCache;
+import app_kvServer.cache.SegmentedCache;
+import app_kvServer.cache.WTinyLFUCache;
+import app_kvServer.cache.Weigher;
+import app_kvServer.storage.BitcaskStore;
+import app_kvServer.storage.CorruptRecordException;
+import app_kvServer.storage.DedupStore;
+import app_kvServer.storage.Durability;
+import app_kvServer.storage.LSMStore;
+import app_kvServer.storage.LogStore;
+import app_kvServer.storage.MVCCStore;
+import app_kvServer.storage.MappedStore;
+import app_kvServer.storage.MemoryStore;
+import app_kvServer.storage.OrderedIndexStore;
+import app_kvServer.storage.OrderedStorageEngine;
+import app_kvServer.storage.PartitionedStore;
+import app_kvServer.storage.StorageConfig;
+import app_kvServer.storage.StorageEngine;
+import app_kvServer.storage.StorageFactory;
+import app_kvServer.storage.TieredStore;
+import app_kvServer.storage.ValueCodec;
+import app_kvServer.storage.WriteAheadLog;
 import junit.framework.TestCase;
+import shared.messages.KVMessage.StatusType;
 
 public class AdditionalTest extends TestCase {
 	
@@ -12,4 +70,1236 @@ public class AdditionalTest extends TestCase {
 	public void testStub() {
 		assertTrue(true);
 	}
+
+	@Test
+	public void testLRUCacheEvictsLeastRecentlyReadOrWritten() {
+		LRUCache cache = new LRUCache(3);
+		cache.put("a", "1");
+		cache.put("b", "2");
+		cache.put("c", "3");
+		assertEquals("1", cache.get("a")); // b is now the least recently used
+		cache.put("d", "4");
+		assertFalse(cache.containsKey("b"));
+		assertTrue(cache.containsKey("a"));
+
+		cache.put("c", "33"); // An update is a use too, so a goes next
+		assertTrue(cache.containsKey("a")); // containsKey is not a use
+		cache.put("e", "5");
+		assertFalse(cache.containsKey("a"));
+		assertEquals("33", cache.get("c"));
+		assertEquals(3, cache.size());
+
+		cache.remove("c");
+		cache.put("f", "6");
+		cache.put("g", "7");
+		assertFalse(cache.containsKey("d"));
+		assertEquals(3, cache.size());
+		cache.clear();
+		assertNull(cache.get("e"));
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testLFUCacheEvictsLeastFrequentAndAgesOldCounts() {
+		LFUCache cache = new LFUCache(3);
+		cache.put("a", "1");
+		cache.put("b", "2");
+		cache.put("c", "3");
+		cache.get("a");
+		cache.get("a");
+		cache.get("c");
+		cache.put("d", "4"); // b has the fewest accesses
+		assertFalse(cache.containsKey("b"));
+		cache.put("e", "5"); // c has two accesses and d one
+		assertFalse(cache.containsKey("d"));
+		assertTrue(cache.containsKey("a"));
+		assertTrue(cache.containsKey("c"));
+
+		// With aging, a key hot long ago loses to keys in use now
+		LFUCache aging = new LFUCache(2, Weigher.ENTRIES, 4); // Halves after 4 accesses per entry
+		aging.put("old", "1");
+		for (int i = 0; i < 6; i++) {
+			aging.get("old"); // Count 7 without aging
+		}
+		aging.put("new", "2");
+		for (int i = 0; i < 5; i++) {
+			aging.get("new"); // Count 6 without aging, but halved later than old
+		}
+		aging.put("next", "3");
+		assertFalse(aging.containsKey("old"));
+		assertTrue(aging.containsKey("new"));
+		assertEquals(2, aging.size());
+	}
+
+	@Test
+	public void testWTinyLFUAndARCKeepHotKeysThroughScans() {
+		Cache[] caches = { new WTinyLFUCache(100), new ARCCache(100), new LRUCache(100) };
+		int[] hotHits = new int[caches.length];
+		for (int c = 0; c < caches.length; c++) {
+			for (int round = 0; round < 5; round++) {
+				for (int i = 0; i < 50; i++) {
+					access(caches[c], "hot" + i);
+				}
+			}
+			for (int i = 0; i < 1000; i++) {
+				access(caches[c], "scan" + i); // Read once each
+			}
+			for (int i = 0; i < 50; i++) {
+				hotHits[c] += access(caches[c], "hot" + i) ? 1 : 0;
+			}
+			assertTrue(caches[c].size() <= 100);
+		}
+		assertTrue("W-TinyLFU kept " + hotHits[0] + " hot keys", hotHits[0] >= 45);
+		assertTrue("ARC kept " + hotHits[1] + " hot keys", hotHits[1] >= 45);
+		assertEquals(0, hotHits[2]); // LRU loses them all
+	}
+
+	@Test
+	public void testARCGhostListsStayWithinTwiceTheCapacity() {
+		ARCCache cache = new ARCCache(4096, Weigher.BYTES);
+		Random random = new Random(42);
+		for (int i = 0; i < 10000; i++) {
+			String key = "key" + random.nextInt(100);
+			if (random.nextInt(3) == 0) {
+				cache.get(key);
+			} else {
+				// Heavier rewrites of cached keys and ghost hits grow the lists without a plain miss
+				cache.put(key, new String(new char[random.nextInt(200)]));
+			}
+			assertTrue("Cached and ghost weight " + (cache.getWeight() + cache.getGhostWeight()),
+					cache.getWeight() + cache.getGhostWeight() <= 2 * cache.getCapacity());
+		}
+	}
+
+	@Test
+	public void testByteWeightedCachesStayWithinTheirBudget() {
+		long budget = 64 * 1024;
+		char[] large = new char[8 * 1024];
+		Arrays.fill(large, 'x');
+		String largeValue = new String(large);
+		Cache[] caches = { new LRUCache(budget, Weigher.BYTES), new FIFOCache(budget, Weigher.BYTES),
+				new LFUCache(budget, Weigher.BYTES, LFUCache.DEFAULT_AGING_FACTOR),
+				new WTinyLFUCache(budget, Weigher.BYTES), new ARCCache(budget, Weigher.BYTES) };
+		for (Cache cache : caches) {
+			String name = cache.getClass().getSimpleName();
+			for (int i = 0; i < 200; i++) {
+				cache.put("small" + i, "v" + i);
+			}
+			assertEquals(name, 200, cache.size()); // Small entries fit by the hundred
+			for (int round = 0; round < 2; round++) { // Used more often than the small ones, so W-TinyLFU admits them
+				for (int i = 0; i < 50; i++) {
+					cache.put("large" + i, largeValue);
+					cache.get("large" + i);
+					assertTrue(name + " weighs " + cache.getWeight(), cache.getWeight() <= budget);
+				}
+			}
+			assertTrue(name + " holds " + cache.size(), cache.size() < 200); // Large ones only a few at a time
+
+			cache.put("small0", new String(new char[(int) budget])); // Heavier than the whole cache
+			assertFalse(name, cache.containsKey("small0"));
+			assertTrue(name, cache.getWeight() <= budget);
+			cache.clear();
+			assertEquals(name, 0, cache.getWeight());
+		}
+	}
+
+	@Test
+	public void testFIFOCacheKeepsHeavierRewriteOfOldestEntry() {
+		FIFOCache cache = new FIFOCache(1000, new Weigher() {
+			@Override
+			public long weigh(String key, String value) {
+				return value.length();
+			}
+		});
+		char[] value = new char[600];
+		cache.put("oldest", new String(value, 0, 300));
+		cache.put("middle", new String(value, 0, 300));
+		cache.put("newest", new String(value, 0, 300));
+		cache.put("oldest", new String(value, 0, 600)); // Keeps its place, so the next oldest entries make room
+		assertTrue(cache.containsKey("oldest"));
+		assertFalse(cache.containsKey("middle"));
+		assertTrue(cache.containsKey("newest"));
+		assertEquals(900, cache.getWeight());
+	}
+
+	@Test
+	public void testWTinyLFURejectsHeavyEntryWithoutEvictingForIt() {
+		WTinyLFUCache cache = new WTinyLFUCache(1000, new Weigher() {
+			@Override
+			public long weigh(String key, String value) {
+				return value.length();
+			}
+		});
+		char[] value = new char[700];
+		cache.put("cold", new String(value, 0, 400));
+		for (int i = 0; i < 5; i++) {
+			cache.get("hot");
+		}
+		cache.put("hot", new String(value, 0, 400));
+		for (int i = 0; i < 3; i++) {
+			cache.get("heavy");
+		}
+		cache.put("heavy", new String(value)); // Needs the room of both, and is used less than "hot"
+		assertFalse(cache.containsKey("heavy"));
+		assertTrue(cache.containsKey("cold"));
+		assertTrue(cache.containsKey("hot"));
+		assertEquals(800, cache.getWeight());
+
+		for (int i = 0; i < 5; i++) {
+			cache.get("heavy");
+		}
+		cache.put("heavy", new String(value)); // Now used more than both
+		assertTrue(cache.containsKey("heavy"));
+		assertFalse(cache.containsKey("cold"));
+		assertFalse(cache.containsKey("hot"));
+		assertEquals(700, cache.getWeight());
+	}
+
+	@Test
+	public void testSegmentedCacheStaysConsistentUnderConcurrentUse() throws Exception {
+		for (CacheStrategy strategy : new CacheStrategy[] { CacheStrategy.LRU, CacheStrategy.LFU, CacheStrategy.WTINYLFU }) {
+			final Cache cache = CacheFactory.createConcurrentCache(strategy, 1024, Weigher.ENTRIES);
+			assertTrue(((SegmentedCache) cache).getSegmentCount() > 1);
+			assertEquals(1024, cache.getCapacity());
+			final AtomicInteger wrong = new AtomicInteger();
+			Thread[] threads = new Thread[8];
+			for (int t = 0; t < threads.length; t++) {
+				final int seed = t;
+				threads[t] = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						Random random = new Random(seed);
+						for (int i = 0; i < 20000; i++) {
+							String key = "key" + random.nextInt(4096);
+							String value = cache.get(key);
+							if (value == null) {
+								cache.put(key, "value of " + key);
+							} else if (!value.equals("value of " + key)) {
+								wrong.incrementAndGet();
+							}
+							if (i % 100 == 0) {
+								cache.remove(key);
+							}
+						}
+					}
+				});
+				threads[t].start();
+			}
+			for (Thread thread : threads) {
+				thread.join();
+			}
+			assertEquals(0, wrong.get());
+			assertTrue(strategy + " holds " + cache.size(), cache.size() <= 1024);
+			assertEquals(cache.size(), cache.getWeight()); // Each segment's bookkeeping survived
+		}
+	}
+
+	@Test
+	public void testReadThroughLoadsConcurrentMissesOnce() throws Exception {
+		File dir = Files.createTempDirectory("readthrough").toFile();
+		StorageConfig config = new StorageConfig();
+		config.setDataDir(dir);
+		assertTrue(config.isReadThrough()); // On by default for the log engine
+		int port;
+		try (ServerSocket free = new ServerSocket(0)) {
+			port = free.getLocalPort();
+		}
+		final KVServer server = new KVServer(port, 100, "LRU", config);
+		Thread serverThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				server.run();
+			}
+		});
+		serverThread.start();
+		KVStore client = new KVStore("localhost", port);
+		connectWhenListening(client);
+		client.put("key", "value"); // Answered once storage is open
+		client.disconnect();
+
+		server.clearCache();
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicInteger correct = new AtomicInteger();
+		Thread[] readers = new Thread[16];
+		for (int i = 0; i < readers.length; i++) {
+			readers[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						if ("value".equals(server.getKV("key"))) {
+							correct.incrementAndGet();
+						}
+					} catch (Exception e) {
+						// Counted as incorrect
+					}
+				}
+			});
+			readers[i].start();
+		}
+		start.countDown();
+		for (Thread reader : readers) {
+			reader.join();
+		}
+		assertEquals(readers.length, correct.get());
+		assertEquals(1, server.getCacheLoads());
+		assertTrue(server.inCache("key"));
+
+		server.putKV("key", "newer"); // Writes still replace the cached value
+		assertEquals("newer", server.getKV("key"));
+		assertNull(server.getKV("missing"));
+		assertFalse(server.inCache("missing"));
+		server.close();
+		serverThread.join(10000);
+	}
+
+	@Test
+	public void testServerDoesNotStartWithoutItsStorage() throws Exception {
+		StorageConfig config = new StorageConfig();
+		config.setDataDir(File.createTempFile("notadir", null)); // Cannot hold the engine's files
+		int port;
+		try (ServerSocket free = new ServerSocket(0)) {
+			port = free.getLocalPort();
+		}
+		KVServer server = new KVServer(port, 100, "LRU", config);
+		try {
+			server.run();
+			fail("Served without storage");
+		} catch (IllegalStateException e) {
+			assertTrue(e.getCause() instanceof java.io.IOException);
+		}
+		try (ServerSocket again = new ServerSocket(port)) { // Released by the failed server
+			assertEquals(port, again.getLocalPort());
+		}
+	}
+
+	@Test
+	public void testNearCacheFollowsServerInvalidations() throws Exception {
+		File dir = Files.createTempDirectory("nearcache").toFile();
+		StorageConfig config = new StorageConfig();
+		config.setDataDir(dir);
+		int port;
+		try (ServerSocket free = new ServerSocket(0)) {
+			port = free.getLocalPort();
+		}
+		final KVServer server = new KVServer(port, 100, "LRU", config);
+		Thread serverThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				server.run();
+			}
+		});
+		serverThread.start();
+		KVStore writer = new KVStore("localhost", port);
+		connectWhenListening(writer);
+		KVStore reader = new KVStore("localhost", port);
+		reader.enableNearCache(100, 60000);
+		reader.connect();
+		NearCache nearCache = reader.getNearCache();
+		assertNotNull(nearCache);
+
+		writer.put("hot", "1");
+		assertEquals("1", reader.get("hot").getValue());
+		assertEquals("1", reader.get("hot").getValue());
+		assertEquals(1, nearCache.getHits());
+
+		writer.put("hot", "2"); // The server queues an invalidation before acknowledging
+		String value = null;
+		for (int i = 0; i < 100 && !"2".equals(value); i++) {
+			value = reader.get("hot").getValue();
+			if (!"2".equals(value)) {
+				Thread.sleep(20); // The invalidation may still be on its way
+			}
+		}
+		assertEquals("2", value);
+		writer.put("hot", null);
+		for (int i = 0; i < 100 && reader.get("hot").getStatus() == StatusType.GET_SUCCESS; i++) {
+			Thread.sleep(20);
+		}
+		assertEquals(StatusType.GET_ERROR, reader.get("hot").getStatus());
+		reader.disconnect();
+		writer.disconnect();
+		server.close();
+		serverThread.join(10000);
+
+		NearCache expiring = new NearCache(2, 50); // Time to live and capacity bound it without a server
+		expiring.put("a", "1");
+		expiring.put("b", "2");
+		expiring.put("c", "3");
+		assertNull(expiring.get("a"));
+		assertEquals("3", expiring.get("c"));
+		Thread.sleep(100);
+		assertNull(expiring.get("c"));
+	}
+
+	@Test
+	public void testPushQueueReplacesBacklogWithOverflowLine() throws Exception {
+		PushQueue queue = new PushQueue(3, "INVALIDATE_ALL");
+		assertTrue(queue.offer("INVALIDATE a"));
+		assertTrue(queue.offer("INVALIDATE b"));
+		assertTrue(queue.offer("INVALIDATE c"));
+		assertFalse(queue.offer("INVALIDATE d")); // The client is too slow to follow single keys
+		assertEquals(1, queue.size());
+		assertEquals("INVALIDATE_ALL", queue.take());
+		assertTrue(queue.offer("INVALIDATE e")); // Single keys again once the pusher caught up
+		assertEquals("INVALIDATE e", queue.take());
+	}
+
+	private static Thread startServer(final KVServer server) {
+		Thread serverThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				server.run();
+			}
+		});
+		serverThread.start();
+		return serverThread;
+	}
+
+	// Connects to a server that was just started in another thread
+	private static void connectWhenListening(KVStore client) throws Exception {
+		for (int attempt = 0;; attempt++) {
+			try {
+				client.connect();
+				return;
+			} catch (ConnectException e) {
+				if (attempt == 100) {
+					throw e;
+				}
+				Thread.sleep(50);
+			}
+		}
+	}
+
+	// Reads a key, loading it into the cache on a miss; returns whether it was a hit
+	private static boolean access(Cache cache, String key) {
+		if (cache.get(key) != null) {
+			return true;
+		}
+		cache.put(key, "value of " + key);
+		return false;
+	}
+
+	@Test
+	public void testWriteAheadLogReplay() throws Exception {
+		File file = File.createTempFile("wal", ".log");
+		file.deleteOnExit();
+		WriteAheadLog log = new WriteAheadLog(file);
+		log.appendPut("a", "first value");
+		log.appendPut("b", "2");
+		log.appendPut("a", "second value");
+		log.appendDelete("b");
+		log.close();
+
+		Map<String, String> replayed = new HashMap<String, String>();
+		assertEquals(4, log.replay(replayed));
+		assertEquals("second value", replayed.get("a"));
+		assertFalse(replayed.containsKey("b"));
+
+		log.rewrite(replayed);
+		Map<String, String> compacted = new HashMap<String, String>();
+		assertEquals(1, log.replay(compacted));
+		assertEquals(replayed, compacted);
+	}
+
+	@Test
+	public void testWriteAheadLogTruncatesTornTailButRejectsCorruption() throws Exception {
+		File file = File.createTempFile("wal", ".log");
+		file.deleteOnExit();
+		WriteAheadLog log = new WriteAheadLog(file);
+		log.appendPut("a", "comma, and\nnewline");
+		log.appendPut("b", "2");
+		log.close();
+		long intact = file.length();
+
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.seek(intact);
+			raf.write(new byte[] { 0, 0, 0, 1, 0, 0 }); // Header cut short by a crash
+		}
+		Map<String, String> replayed = new HashMap<String, String>();
+		assertEquals(2, log.replay(replayed));
+		assertEquals("comma, and\nnewline", replayed.get("a"));
+		assertEquals(intact, file.length());
+
+		log.appendPut("c", "3");
+		log.close();
+		assertEquals(3, log.replay(new HashMap<String, String>()));
+
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.seek(4 + 13 + 1); // First value byte of the first record
+			raf.write('X');
+		}
+		try {
+			log.replay(new HashMap<String, String>());
+			fail("Corruption in the middle of the log must not be skipped");
+		} catch (CorruptRecordException e) {
+			assertEquals(4, e.getOffset());
+		}
+	}
+
+	@Test
+	public void testWriteAheadLogConvertsTextLog() throws Exception {
+		File file = File.createTempFile("wal", ".log");
+		file.deleteOnExit();
+		Files.write(file.toPath(), "PUT x 1\nPUT y two words\nDELETE x\n".getBytes(Charset.forName("UTF-8")));
+
+		WriteAheadLog log = new WriteAheadLog(file);
+		Map<String, String> replayed = new HashMap<String, String>();
+		assertEquals(3, log.replay(replayed));
+		assertEquals("two words", replayed.get("y"));
+		assertFalse(replayed.containsKey("x"));
+
+		log.appendPut("z", "3");
+		log.close();
+		replayed.clear();
+		assertEquals(4, new WriteAheadLog(file).replay(replayed));
+		assertEquals("3", replayed.get("z"));
+	}
+
+	@Test
+	public void testAcknowledgedWritesAreDurableAcrossLogSwitches() throws Exception {
+		// A ticket stays tied to the log it was appended to, even once that log is reopened
+		File walDir = Files.createTempDirectory("wal").toFile();
+		WriteAheadLog wal = new WriteAheadLog(new File(walDir, "wal.log"),
+				new Durability(Durability.Mode.BATCH, 60000, 1000));
+		WriteAheadLog.Ticket ticket = wal.appendPut("a", "1");
+		wal.close(); // Final sync covers the record
+		wal.open();
+		long started = System.currentTimeMillis();
+		wal.awaitDurable(ticket); // The reopened log would only sync after a minute
+		assertTrue(System.currentTimeMillis() - started < 10000);
+		wal.close();
+
+		Durability[] modes = { new Durability(Durability.Mode.SYNC, 0, 1),
+				new Durability(Durability.Mode.BATCH, Durability.DEFAULT_INTERVAL_MILLIS, Durability.DEFAULT_BATCH_RECORDS) };
+		for (Durability durability : modes) {
+			// Log store: snapshots switch logs under concurrent writers
+			File dir = Files.createTempDirectory("logstore").toFile();
+			final LogStore logStore = new LogStore(dir, durability, 0);
+			logStore.open();
+			final Set<String> acknowledged = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+			final AtomicBoolean writing = new AtomicBoolean(true);
+			Thread[] writers = startWriters(logStore, acknowledged, 4, 200);
+			Thread snapshotter = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					while (writing.get()) {
+						try {
+							logStore.snapshot();
+						} catch (IOException e) {
+							throw new RuntimeException(e);
+						}
+					}
+				}
+			});
+			snapshotter.start();
+			for (Thread writer : writers) {
+				writer.join();
+			}
+			writing.set(false);
+			snapshotter.join();
+			assertEquals(800, acknowledged.size());
+
+			File crashed = Files.createTempDirectory("crashed").toFile(); // The files as a crash would leave them
+			for (File file : dir.listFiles()) {
+				if (file.isFile()) {
+					Files.copy(file.toPath(), new File(crashed, file.getName()).toPath());
+				}
+			}
+			LogStore recovered = new LogStore(crashed, durability, 0);
+			recovered.open();
+			for (String key : acknowledged) {
+				assertEquals(durability.getMode() + " " + key, "value of " + key, recovered.get(key));
+			}
+			recovered.close();
+			logStore.close();
+
+			// LSM store: a tiny memtable closes its log every few writes
+			File lsmDir = Files.createTempDirectory("lsm").toFile();
+			LSMStore lsm = new LSMStore(lsmDir, 512, LSMStore.DEFAULT_COMPACTION_TRIGGER, durability);
+			lsm.open();
+			acknowledged.clear();
+			for (Thread writer : startWriters(lsm, acknowledged, 4, 200)) {
+				writer.join();
+			}
+			lsm.close();
+			LSMStore reopened = new LSMStore(lsmDir, 512, LSMStore.DEFAULT_COMPACTION_TRIGGER, durability);
+			reopened.open();
+			for (String key : acknowledged) {
+				assertEquals(durability.getMode() + " " + key, "value of " + key, reopened.get(key));
+			}
+			reopened.close();
+		}
+	}
+
+	// Starts threads that each put a number of keys and record those acknowledged
+	private static Thread[] startWriters(final StorageEngine store, final Set<String> acknowledged, int threads,
+			final int writes) {
+		Thread[] writers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final int thread = t;
+			writers[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < writes; i++) {
+						String key = "w" + thread + "-" + i;
+						try {
+							store.put(key, "value of " + key);
+						} catch (IOException e) {
+							throw new RuntimeException(e);
+						}
+						acknowledged.add(key);
+					}
+				}
+			});
+			writers[t].start();
+		}
+		return writers;
+	}
+
+	@Test
+	public void testLogStoreRecoversFromSnapshotAndLogTail() throws Exception {
+		File dir = Files.createTempDirectory("logstore").toFile();
+		LogStore store = new LogStore(dir, Durability.DEFAULT, 0);
+		store.open();
+		for (int i = 0; i < 1000; i++) {
+			store.put("key" + i, "value " + i);
+		}
+		store.snapshot();
+		assertTrue(new File(dir, "SNAPSHOT").exists());
+		store.put("key1", "after snapshot");
+		store.delete("key2");
+
+		// Reopen without closing, as after a crash: snapshot plus log tail
+		LogStore recovered = new LogStore(dir, Durability.DEFAULT, 0);
+		recovered.open();
+		assertEquals("after snapshot", recovered.get("key1"));
+		assertNull(recovered.get("key2"));
+		assertEquals("value 999", recovered.get("key999"));
+		recovered.close();
+	}
+
+	@Test
+	public void testLogStoreSnapshotsWhileWritesContinue() throws Exception {
+		File dir = Files.createTempDirectory("logstore").toFile();
+		final LogStore store = new LogStore(dir, new Durability(Durability.Mode.BATCH, 0, 1), 0);
+		store.open();
+		Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					for (int i = 0; i < 5000; i++) {
+						store.put("key" + (i % 500), "value " + i);
+						if (i % 7 == 0) {
+							store.delete("key" + (i % 500));
+						}
+					}
+				} catch (Exception e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		});
+		writer.start();
+		int snapshots = 0;
+		while (writer.isAlive()) {
+			store.snapshot();
+			snapshots++;
+		}
+		writer.join();
+		assertTrue(snapshots > 1);
+
+		Map<String, String> expected = new HashMap<String, String>();
+		for (int i = 4500; i < 5000; i++) {
+			expected.put("key" + (i % 500), i % 7 == 0 ? null : "value " + i);
+		}
+		LogStore recovered = new LogStore(dir, Durability.DEFAULT, 0);
+		recovered.open();
+		for (Map.Entry<String, String> entry : expected.entrySet()) {
+			assertEquals(entry.getValue(), recovered.get(entry.getKey()));
+		}
+		recovered.close();
+	}
+
+	@Test
+	public void testTieredStoreSpillsColdKeysWithinBudget() throws Exception {
+		File dir = Files.createTempDirectory("tiered").toFile();
+		TieredStore store = new TieredStore(new BitcaskStore(dir), 16 * 1024);
+		store.open();
+		for (int i = 0; i < 2000; i++) {
+			store.put("key" + i, "value " + i);
+		}
+		assertTrue(store.getHotBytes() <= 16 * 1024);
+		assertEquals("value 0", store.get("key0")); // Evicted long ago, read back from disk
+		assertTrue(store.containsKey("key1"));
+		store.delete("key0");
+		assertNull(store.get("key0"));
+		assertFalse(store.containsKey("key0"));
+		store.close();
+
+		store = new TieredStore(new BitcaskStore(dir), 16 * 1024);
+		store.open();
+		assertEquals(0, store.getHotBytes());
+		assertEquals("value 1999", store.get("key1999"));
+		assertNull(store.get("key0"));
+		store.close();
+	}
+
+	@Test
+	public void testLSMStoreSurvivesFlushCompactionAndRestart() throws Exception {
+		File dir = Files.createTempDirectory("lsm").toFile();
+		LSMStore store = new LSMStore(dir, 2048, 2);
+		store.open();
+		for (int i = 0; i < 500; i++) {
+			store.put("key" + i, "value" + i);
+		}
+		for (int i = 0; i < 500; i += 2) {
+			store.delete("key" + i);
+		}
+		store.put("key1", "updated");
+		store.close();
+
+		store = new LSMStore(dir, 2048, 2);
+		store.open();
+		assertEquals("updated", store.get("key1"));
+		assertEquals("value499", store.get("key499"));
+		assertNull(store.get("key0"));
+		assertFalse(store.containsKey("key498"));
+		store.close();
+	}
+
+	@Test
+	public void testLSMStoreKeepsBloomFiltersNextToSegments() throws Exception {
+		File dir = Files.createTempDirectory("lsm").toFile();
+		LSMStore store = new LSMStore(dir, 4096, 100, Durability.DEFAULT, 0.001);
+		store.open();
+		for (int i = 0; i < 300; i++) {
+			store.put("key" + i, "value" + i);
+		}
+		store.delete("key5");
+		store.close();
+
+		File[] filters = dir.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File parent, String name) {
+				return name.endsWith(".bloom");
+			}
+		});
+		assertTrue(filters.length > 1);
+		assertTrue(filters[0].delete()); // Rebuilt on the next open
+
+		store = new LSMStore(dir, 4096, 100, Durability.DEFAULT, 0.001);
+		store.open();
+		for (int i = 0; i < 300; i++) {
+			assertEquals(i == 5 ? null : "value" + i, store.get("key" + i));
+			assertNull(store.get("missing" + i));
+		}
+		store.close();
+		assertTrue(filters[0].exists());
+	}
+
+	@Test
+	public void testBitcaskStoreRestartsFromHintsAndScans() throws Exception {
+		File dir = Files.createTempDirectory("bitcask").toFile();
+		BitcaskStore store = new BitcaskStore(dir, 1024, Durability.DEFAULT, Integer.MAX_VALUE, 0); // No merges
+		store.open();
+		for (int i = 0; i < 200; i++) {
+			store.put("key" + i, "value " + i);
+		}
+		store.delete("key7");
+		store.put("key8", "updated");
+		store.close();
+
+		// Drop one hint file so that data file has to be scanned
+		assertTrue(new File(dir, "1.hint").delete());
+		store = new BitcaskStore(dir, 1024, Durability.DEFAULT, Integer.MAX_VALUE, 0);
+		store.open();
+		assertEquals(199, store.size());
+		assertNull(store.get("key7"));
+		assertEquals("updated", store.get("key8"));
+		assertEquals("value 199", store.get("key199"));
+		store.close();
+	}
+
+	@Test
+	public void testBitcaskStoreMergePurgesOverwrittenAndDeletedKeys() throws Exception {
+		File dir = Files.createTempDirectory("bitcask").toFile();
+		BitcaskStore store = new BitcaskStore(dir, 512, Durability.DEFAULT, 2, 0);
+		store.open();
+		for (int round = 0; round < 3; round++) {
+			for (int i = 0; i < 100; i++) {
+				store.put("key" + i, "value " + round + " " + i);
+			}
+		}
+		for (int i = 0; i < 100; i += 2) {
+			store.delete("key" + i);
+		}
+		assertEquals("value 2 1", store.get("key1")); // Readable while merges run
+		store.close(); // Waits for the running merge
+
+		// Opening with two or more closed files merges them into one
+		store = new BitcaskStore(dir, 512, Durability.DEFAULT, 2, 0);
+		store.open();
+		store.close();
+		File[] dataFiles = dir.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File parent, String name) {
+				return name.endsWith(".data");
+			}
+		});
+		assertEquals(1, dataFiles.length);
+
+		store = new BitcaskStore(dir, 512, Durability.DEFAULT, 2, 0);
+		store.open();
+		assertEquals(50, store.size());
+		assertNull(store.get("key0"));
+		assertEquals("value 2 99", store.get("key99"));
+		store.close();
+	}
+
+	@Test
+	public void testMappedStoreGrowsAcrossChunksAndReopens() throws Exception {
+		File dir = Files.createTempDirectory("mmap").toFile();
+		MappedStore store = new MappedStore(dir, 4096);
+		store.open();
+		StringBuilder large = new StringBuilder();
+		for (int i = 0; i < 300; i++) {
+			large.append('x');
+		}
+		for (int i = 0; i < 100; i++) {
+			store.put("key" + i, i + large.toString());
+		}
+		store.delete("key3");
+		store.close();
+
+		store = new MappedStore(dir, 1 << 20); // Chunk size is taken from the file
+		store.open();
+		assertEquals(99, store.size());
+		assertNull(store.get("key3"));
+		assertEquals("99" + large, store.get("key99"));
+		store.close();
+	}
+
+	@Test
+	public void testMappedStoreCutsOffDamagedRecordsAndCompacts() throws Exception {
+		File dir = Files.createTempDirectory("mmap").toFile();
+		char[] filler = new char[100];
+		Arrays.fill(filler, 'x');
+		String value = new String(filler);
+		MappedStore store = new MappedStore(dir, 4096);
+		store.open();
+		for (int i = 0; i < 10; i++) {
+			store.put("key" + i, value);
+		}
+		store.close();
+
+		int recordBytes = 13 + 4 + value.length(); // Header, key, value
+		try (RandomAccessFile file = new RandomAccessFile(new File(dir, MappedStore.DATA_FILE), "rw")) {
+			file.seek(16 + 5 * recordBytes + recordBytes - 1); // Last value byte of key5
+			file.write('y');
+		}
+		store = new MappedStore(dir, 4096);
+		store.open();
+		assertEquals(5, store.size());
+		assertEquals(value, store.get("key4"));
+		assertNull(store.get("key5"));
+
+		for (int round = 0; round < 200; round++) { // Overwrites until compacted in the background
+			for (int i = 0; i < 10; i++) {
+				store.put("key" + i, round + value);
+			}
+		}
+		assertEquals("199" + value, store.get("key9"));
+		store.close(); // Waits for a running compaction
+		assertTrue(new File(dir, MappedStore.DATA_FILE).length() <= 4 * 4096);
+		store = new MappedStore(dir, 4096);
+		store.open();
+		assertEquals(10, store.size());
+		assertEquals("199" + value, store.get("key0"));
+
+		store.clear();
+		assertEquals(4096, new File(dir, MappedStore.DATA_FILE).length()); // The header's chunk
+		store.put("key0", value);
+		store.close();
+		store = new MappedStore(dir, 4096);
+		store.open();
+		assertEquals(1, store.size());
+		assertEquals(value, store.get("key0"));
+		store.close();
+	}
+
+	@Test
+	public void testValueCodecCompressesLargeValuesOnly() throws Exception {
+		ValueCodec codec = new ValueCodec(ValueCodec.FAST, 1024);
+		StringBuilder large = new StringBuilder();
+		for (int i = 0; i < 2000; i++) {
+			large.append("temperature=").append(i % 7).append(" \u00e9t\u00e9 ");
+		}
+		String stored = codec.encode(large.toString());
+		assertTrue(stored.length() < large.length() / 4);
+		assertEquals(large.toString(), codec.decode(stored));
+		assertTrue(codec.getCompressionRatio() > 4);
+
+		assertEquals("small", codec.encode("small"));
+		assertEquals("\u0000raw", codec.decode(codec.encode("\u0000raw")));
+		assertNull(codec.decode(null));
+
+		// Values are readable whatever codec wrote them
+		assertEquals(large.toString(), new ValueCodec(ValueCodec.NONE, 1024).decode(stored));
+
+		// Stored in ASCII, so the UTF-8 files hold no more than the saving was judged on
+		assertEquals(stored.length(), stored.getBytes("UTF-8").length);
+		Random random = new Random(42);
+		StringBuilder dense = new StringBuilder();
+		for (int i = 0; i < 4096; i++) {
+			dense.append((char) ('!' + random.nextInt(90))); // Deflate saves less than 10% once packed
+		}
+		assertEquals(dense.toString(), codec.encode(dense.toString()));
+	}
+
+	@Test
+	public void testTimerWheelFiresNearAndFarTimersOnTime() throws Exception {
+		TimerWheel wheel = new TimerWheel(100, 0);
+		long[] expiries = { 250, 6400, 6450, 500000, 3600000, 90000000 }; // Levels 0 to 3, and one past a cascade
+		for (int i = 0; i < expiries.length; i++) {
+			wheel.schedule("key" + i, expiries[i]);
+		}
+		Map<String, Long> firedAt = new HashMap<>();
+		for (long now = 0; now <= 90000000 && firedAt.size() < expiries.length; now += 100) {
+			for (TimerWheel.Timer timer : wheel.advance(now)) {
+				firedAt.put(timer.getKey(), now);
+			}
+		}
+		for (int i = 0; i < expiries.length; i++) {
+			long fired = firedAt.get("key" + i);
+			assertTrue("key" + i + " fired at " + fired, fired >= expiries[i] && fired < expiries[i] + 100);
+		}
+		assertEquals(0, wheel.size());
+
+		wheel.schedule("late", 100); // Already due
+		assertEquals(1, wheel.advance(90000000).size());
+
+		ValueCodec codec = new ValueCodec(ValueCodec.NONE, 1024);
+		String stored = codec.encode("\u0000session", 1234567890123L);
+		assertEquals(1234567890123L, ValueCodec.getExpiry(stored));
+		assertEquals("\u0000session", codec.decode(stored));
+		assertEquals(0, ValueCodec.getExpiry(codec.encode("session", 0)));
+	}
+
+	@Test
+	public void testExpiryIndexListsKeysWithTheirLatestExpiry() throws Exception {
+		File dir = Files.createTempDirectory("expiries").toFile();
+		ExpiryIndex index = new ExpiryIndex(dir);
+		assertFalse(index.exists()); // The server then scans the storage once
+		index.append("a", 1000);
+		index.append("b", 2000);
+		index.append("a", 3000);
+		index.close();
+		Files.write(new File(dir, ExpiryIndex.FILE_NAME).toPath(), "12".getBytes("UTF-8"),
+				StandardOpenOption.APPEND); // Torn by a crash
+		Map<String, Long> listed = new ExpiryIndex(dir).read();
+		assertEquals(2, listed.size());
+		assertEquals(Long.valueOf(3000), listed.get("a"));
+		assertEquals(Long.valueOf(2000), listed.get("b"));
+
+		Map<String, Long> live = new HashMap<>();
+		live.put("b", 2000L);
+		index.rewrite(live);
+		assertEquals(1, index.getLines());
+		assertEquals(live, new ExpiryIndex(dir).read());
+	}
+
+	@Test
+	public void testServerExpiresKeysFromCacheAndStorageAcrossRestarts() throws Exception {
+		File dir = Files.createTempDirectory("ttl").toFile();
+		StorageConfig config = new StorageConfig();
+		config.setEngine(StorageFactory.LOG);
+		config.setDataDir(dir);
+		int port;
+		try (ServerSocket free = new ServerSocket(0)) {
+			port = free.getLocalPort();
+		}
+		KVServer server = new KVServer(port, 100, "LRU", config);
+		Thread serverThread = startServer(server);
+		KVStore client = new KVStore("localhost", port);
+		connectWhenListening(client);
+		long written = System.currentTimeMillis();
+		assertEquals(StatusType.PUT_SUCCESS, client.put("short", "1", 1).getStatus());
+		assertEquals(StatusType.PUT_SUCCESS, client.put("long", "2", 3).getStatus());
+		assertEquals(StatusType.PUT_SUCCESS, client.put("plain", "3").getStatus());
+		assertEquals("1", client.get("short").getValue());
+		assertTrue(server.inCache("short"));
+
+		Thread.sleep(Math.max(0, written + 1500 - System.currentTimeMillis())); // Past the expiry and a few ticks
+		assertFalse(server.inCache("short")); // Removed by the tick: no read of it since it expired
+		assertEquals(StatusType.GET_ERROR, client.get("short").getStatus());
+		assertEquals("2", client.get("long").getValue());
+		client.disconnect();
+		server.close();
+		serverThread.join(10000);
+		assertTrue(new ExpiryIndex(dir).read().containsKey("long"));
+
+		server = new KVServer(port, 100, "LRU", config); // Schedules "long" again from the index
+		serverThread = startServer(server);
+		client = new KVStore("localhost", port);
+		connectWhenListening(client);
+		assertEquals("2", client.get("long").getValue());
+		Thread.sleep(Math.max(0, written + 3500 - System.currentTimeMillis()));
+		assertEquals(StatusType.GET_ERROR, client.get("long").getStatus());
+		client.disconnect();
+		server.close();
+		serverThread.join(10000);
+
+		StorageEngine store = StorageFactory.createStorageEngine(config); // Deleted by the tick, not only hidden by reads
+		store.open();
+		assertFalse(store.containsKey("short"));
+		assertFalse(store.containsKey("long"));
+		assertTrue(store.containsKey("plain"));
+		store.close();
+	}
+
+	@Test
+	public void testDedupStoreSharesEqualValuesAcrossRestarts() throws Exception {
+		File dir = Files.createTempDirectory("dedup").toFile();
+		StringBuilder template = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			template.append("default setting ").append(i).append('\n');
+		}
+		DedupStore store = new DedupStore(new LogStore(dir, Durability.DEFAULT, 0), 256);
+		store.open();
+		for (int i = 0; i < 10; i++) {
+			store.put("config" + i, template.toString());
+		}
+		store.put("\u0000odd", "\u0000#not a reference");
+		store.put("small", "inline");
+		assertEquals(1, store.getSharedValues());
+		assertEquals(9L * template.length(), store.getSavedChars());
+
+		store.put("config0", "overwritten");
+		for (int i = 1; i < 9; i++) {
+			store.delete("config" + i);
+		}
+		store.close();
+
+		store = new DedupStore(new LogStore(dir, Durability.DEFAULT, 0), 256);
+		store.open();
+		assertEquals(1, store.getSharedValues()); // Still held by config9
+		assertEquals(template.toString(), store.get("config9"));
+		assertEquals("\u0000#not a reference", store.get("\u0000odd"));
+		assertEquals("overwritten", store.get("config0"));
+		store.delete("config9");
+		assertEquals(0, store.getSharedValues());
+		Map<String, String> all = new HashMap<>();
+		for (Iterator<Map.Entry<String, String>> it = store.iterator(); it.hasNext();) {
+			Map.Entry<String, String> entry = it.next();
+			all.put(entry.getKey(), entry.getValue());
+		}
+		assertEquals(3, all.size());
+		assertEquals("inline", all.get("small"));
+		store.close();
+	}
+
+	@Test
+	public void testLSMStoreScansRangesAcrossMemtableAndSegments() throws Exception {
+		File dir = Files.createTempDirectory("lsm").toFile();
+		LSMStore store = new LSMStore(dir, 2048, 100, Durability.DEFAULT, 0.01, 0);
+		store.open();
+		for (int i = 0; i < 300; i++) {
+			store.put(String.format("user:%03d", i), "v" + i);
+			store.put(String.format("item:%03d", i), "i" + i);
+		}
+		store.delete("user:101");
+		store.put("user:102", "updated"); // Newer than its flushed value
+
+		List<Map.Entry<String, String>> page = store.scan("user:100", "user:200", 3);
+		assertEquals(3, page.size());
+		assertEquals("user:100", page.get(0).getKey());
+		assertEquals("user:102", page.get(1).getKey());
+		assertEquals("updated", page.get(1).getValue());
+		assertEquals("user:103", page.get(2).getKey());
+
+		assertEquals(99, store.scan("user:100", "user:200", 1000).size());
+		assertEquals(300, store.scan("item:", "item;", 1000).size());
+		assertEquals("user:299", store.scan("user:299", null, 10).get(0).getKey());
+		assertTrue(store.scan("user:5", "user:6", 10).isEmpty());
+		store.close();
+	}
+
+	@Test
+	public void testLSMStoreFlushesWhileCompactionIsThrottled() throws Exception {
+		File dir = Files.createTempDirectory("lsm").toFile();
+		char[] filler = new char[100];
+		Arrays.fill(filler, 'x');
+		String value = new String(filler);
+		Durability durability = new Durability(Durability.Mode.NONE, Durability.DEFAULT_INTERVAL_MILLIS,
+				Durability.DEFAULT_BATCH_RECORDS);
+		// About 60 entries per memtable; merging the first two segments takes seconds at 4 KB/s
+		LSMStore store = new LSMStore(dir, 16 * 1024, 2, durability, 0.01, 4 * 1024);
+		store.open();
+		for (int i = 0; i < 1000; i++) {
+			store.put(String.format("key%04d", i), value);
+		}
+		store.flush(); // Waits for the flushes only
+		File[] segments = dir.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File parent, String name) {
+				return name.startsWith("segment-") && name.endsWith(".sst");
+			}
+		});
+		assertTrue(segments.length + " segments", segments.length > 10); // None merged yet
+		assertEquals(value, store.get("key0999"));
+		long closing = System.currentTimeMillis();
+		store.close(); // Abandons the compaction
+		assertTrue(System.currentTimeMillis() - closing < 5000);
+
+		store = new LSMStore(dir, 16 * 1024, 2, durability, 0.01, 0);
+		store.open();
+		assertEquals(1000, store.scan("key", "kez", 2000).size());
+		store.close();
+	}
+
+	@Test
+	public void testMVCCStoreViewsReadSnapshotsWhileWritesContinue() throws Exception {
+		File dir = Files.createTempDirectory("mvcc").toFile();
+		MVCCStore store = new MVCCStore(new LogStore(dir, Durability.DEFAULT, 0));
+		store.open();
+		store.put("a", "1");
+		store.put("b", "1");
+		MVCCStore.View view = store.openView();
+		store.put("a", "2");
+		store.delete("b");
+		store.put("c", "2");
+		assertEquals("1", view.get("a"));
+		assertEquals("1", view.get("b"));
+		assertNull(view.get("c"));
+		assertEquals(2, view.scan("a", null, 10).size());
+		assertEquals("2", store.get("a"));
+		assertNull(store.get("b"));
+		assertEquals("[a=2, c=2]", store.scan("a", null, 10).toString());
+
+		final MVCCStore writing = store;
+		Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					for (int i = 3; i < 2000; i++) {
+						writing.put("a", String.valueOf(i));
+					}
+				} catch (Exception e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		});
+		writer.start();
+		MVCCStore.View during = store.openView();
+		String seen = during.get("a");
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(seen, during.get("a"));
+		}
+		writer.join();
+		during.close();
+		view.close();
+		assertEquals(0, store.getOpenViews());
+		assertEquals("1999", store.get("a"));
+		store.close();
+
+		store = new MVCCStore(new LogStore(dir, Durability.DEFAULT, 0));
+		store.open();
+		assertEquals("1999", store.get("a"));
+		assertNull(store.get("b"));
+		assertEquals("2", store.get("c"));
+		store.close();
+	}
+
+	@Test
+	public void testPartitionedStoreSpreadsKeysAndScansInOrder() throws Exception {
+		File dir = Files.createTempDirectory("partitioned").toFile();
+		StorageConfig config = new StorageConfig();
+		config.setEngine(StorageFactory.LOG);
+		config.setDataDir(dir);
+		config.setPartitions(4);
+		OrderedStorageEngine store = StorageFactory.createStorageEngine(config);
+		assertTrue(store instanceof PartitionedStore);
+		store.open();
+		for (int i = 0; i < 200; i++) {
+			store.put(String.format("key%03d", i), "value" + i);
+		}
+		store.delete("key010");
+		List<Map.Entry<String, String>> page = store.scan("key005", "key100", 10);
+		assertEquals(10, page.size());
+		assertEquals("key005", page.get(0).getKey());
+		assertEquals("key009", page.get(4).getKey());
+		assertEquals("key011", page.get(5).getKey());
+		store.close();
+
+		for (int i = 0; i < 4; i++) {
+			assertTrue(PartitionedStore.partitionDir(dir, i).list().length > 0);
+		}
+		store = StorageFactory.createStorageEngine(config);
+		store.open();
+		assertEquals("value199", store.get("key199"));
+		assertNull(store.get("key010"));
+		store.close();
+
+		config.setPartitions(3); // Keys would land in other partitions
+		store = StorageFactory.createStorageEngine(config);
+		try {
+			store.open();
+			fail("Opened 4 partitions as 3");
+		} catch (java.io.IOException e) {
+			// Expected
+		}
+		config.setPartitions(1);
+		store = StorageFactory.createStorageEngine(config);
+		try {
+			store.open();
+			fail("Opened 4 partitions as 1");
+		} catch (java.io.IOException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testUnpartitionedStoreCannotBeOpenedPartitioned() throws Exception {
+		File dir = Files.createTempDirectory("unpartitioned").toFile();
+		StorageConfig config = new StorageConfig();
+		config.setEngine(StorageFactory.LSM);
+		config.setDataDir(dir);
+		OrderedStorageEngine store = StorageFactory.createStorageEngine(config);
+		store.open();
+		store.put("key", "value");
+		store.close();
+		assertEquals("1", new String(Files.readAllBytes(new File(dir, PartitionedStore.PARTITIONS_FILE).toPath()), "UTF-8"));
+
+		new File(dir, PartitionedStore.PARTITIONS_FILE).delete(); // As written before the count was recorded
+		config.setPartitions(4);
+		store = StorageFactory.createStorageEngine(config);
+		try {
+			store.open();
+			fail("Opened an unpartitioned store as 4 partitions");
+		} catch (java.io.IOException e) {
+			// Expected
+		}
+		config.setPartitions(1);
+		store = StorageFactory.createStorageEngine(config);
+		store.open();
+		assertEquals("value", store.get("key"));
+		store.close();
+	}
+
+	@Test
+	public void testOrderedIndexStoreScansUnorderedEngine() throws Exception {
+		OrderedIndexStore store = new OrderedIndexStore(new MemoryStore());
+		store.open();
+		for (int i = 9; i >= 0; i--) {
+			store.put("key" + i, "value" + i);
+		}
+		store.delete("key3");
+		List<Map.Entry<String, String>> page = store.scan("key2", "key6", 10);
+		assertEquals(3, page.size());
+		assertEquals("key2", page.get(0).getKey());
+		assertEquals("key4", page.get(1).getKey());
+		assertEquals("value5", page.get(2).getValue());
+		assertEquals(1, store.scan("key8\u0000", null, 10).size()); // Only key9 lies behind key8
+		store.close();
+	}
 }